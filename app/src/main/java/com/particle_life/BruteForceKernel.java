@@ -0,0 +1,99 @@
+package com.particle_life;
+
+import org.joml.Vector3d;
+
+/**
+ * Checks every pair of particles, without any containers.
+ * <p>
+ * This takes time proportional to the square of the number of particles,
+ * but has no overhead for binning and no ghost copies of the particles.
+ * So it is the fastest kernel if there are fewer than 3 containers per axis
+ * and the kernels are not specialized (see {@link Physics#specializeKernels}).
+ */
+public class BruteForceKernel implements PhysicsKernel {
+
+    private final LoadDistributor loadDistributor = new LoadDistributor();
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] z = new double[0];
+    private int[] type = new int[0];
+
+    @Override
+    public String getName() {
+        return "brute force";
+    }
+
+    @Override
+    public void step(Physics physics) {
+        final Particle[] particles = physics.particles;
+        final PhysicsSettings settings = physics.settings;
+        final Accelerator accelerator = physics.accelerator;
+        final double rmax = settings.rmax;
+        final double rmaxSquared = rmax * rmax;
+        final double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);
+        final double forceFactor = rmax * settings.force * settings.dt;
+        final boolean wrap = settings.wrap;
+        final int n = physics.getParticleCount();
+
+        // copy the positions, so the inner loop only reads primitive arrays
+        if (x.length != n) {
+            x = new double[n];
+            y = new double[n];
+            z = new double[n];
+            type = new int[n];
+        }
+        final double[] x = this.x;
+        final double[] y = this.y;
+        final double[] z = this.z;
+        final int[] type = this.type;
+        for (int i = 0; i < n; i++) {
+            Particle p = particles[i];
+            x[i] = p.position.x;
+            y[i] = p.position.y;
+            z[i] = p.position.z;
+            type[i] = p.type;
+        }
+
+        loadDistributor.distributeLoadEvenly(n, physics.preferredNumberOfThreads, i -> {
+            Particle p = particles[i];
+            final double px = x[i];
+            final double py = y[i];
+            final double pz = z[i];
+            final int pType = type[i];
+            final Vector3d relativePosition = new Vector3d();
+            p.velocity.mul(frictionFactor);
+            for (int j = 0; j < n; j++) {
+                double rx = x[j] - px;
+                double ry = y[j] - py;
+                double rz = z[j] - pz;
+                if (wrap) {
+                    rx = rx >= 0.5 ? rx - 1 : rx < -0.5 ? rx + 1 : rx;
+                    ry = ry >= 0.5 ? ry - 1 : ry < -0.5 ? ry + 1 : ry;
+                    rz = rz >= 0.5 ? rz - 1 : rz < -0.5 ? rz + 1 : rz;
+                }
+
+                double distanceSquared = rx * rx + ry * ry + rz * rz;
+                // also skips the particle itself
+                if (distanceSquared != 0 && distanceSquared <= rmaxSquared) {
+                    relativePosition.set(rx, ry, rz).div(rmax);
+                    Vector3d deltaV = accelerator.accelerate(settings.matrix.get(pType, type[j]), relativePosition);
+                    p.velocity.add(deltaV.mul(forceFactor));
+                }
+            }
+            return true;
+        });
+        loadDistributor.distributeLoadEvenly(n, physics.preferredNumberOfThreads, i -> {
+            Particle p = particles[i];
+            p.velocity.mulAdd(settings.dt, p.position, p.position);
+            Physics.ensurePosition(p.position, settings);
+            return true;
+        });
+    }
+
+    /**
+     * Interrupts all ongoing computations immediately.
+     */
+    public void kill() {
+        loadDistributor.kill();
+    }
+}
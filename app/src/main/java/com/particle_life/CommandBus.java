@@ -0,0 +1,211 @@
+package com.particle_life;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Bounded queue of commands that are posted by any thread and applied in batches by one thread.
+ * <p>
+ * Commands can be posted with a key (see {@link #post(Object, Runnable)}).
+ * If a command with an equal key is still waiting, it is dropped, and the new command takes its place
+ * at the end of the queue, so only the last value that was written e.g. to a setting is applied.
+ * This way, dragging a slider while the physics is slow doesn't pile up commands.
+ * <p>
+ * If the queue is full, {@link #post(Runnable)} blocks until the next batch was taken,
+ * and {@link #offer(Runnable)} drops the command.
+ * <p>
+ * For each command, the time from posting to applying is measured
+ * (for coalesced commands, from the first post that was replaced).
+ */
+public class CommandBus {
+
+    private static final class Entry {
+        final Object key;
+        final Runnable command;
+        final long postTime;
+
+        Entry(Object key, Runnable command, long postTime) {
+            this.key = key;
+            this.command = command;
+            this.postTime = postTime;
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Map<Object, Entry> waitingByKey = new HashMap<>();
+    private Entry[] batch = new Entry[0];
+
+    private volatile double lastLatencyMillis = 0;
+    private volatile double maxLatencyMillis = 0;
+    private volatile int lastBatchSize = 0;
+    private long coalescedCount = 0;
+    private boolean wakeUpRequested = false;
+
+    /**
+     * @param capacity maximum number of waiting commands
+     */
+    public CommandBus(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1, got " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the command to the end of the queue, waiting for space if the queue is full.
+     * So this must not be called from the thread that applies the commands.
+     *
+     * @throws IllegalStateException if the thread was interrupted while waiting
+     */
+    public void post(Runnable command) {
+        post(null, command);
+    }
+
+    /**
+     * Like {@link #post(Runnable)}, but if a command with an equal key is still waiting, that command is dropped.
+     *
+     * @param key e.g. the name of the setting that the command writes, or null if it must not be coalesced
+     */
+    public synchronized void post(Object key, Runnable command) {
+        long postTime = System.nanoTime();
+        if (key != null) {
+            Entry waiting = waitingByKey.remove(key);
+            if (waiting != null) {
+                queue.removeLastOccurrence(waiting);
+                postTime = waiting.postTime;
+                coalescedCount++;
+            }
+        }
+        while (queue.size() >= capacity) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for space in the command queue", e);
+            }
+        }
+        add(new Entry(key, command, postTime));
+    }
+
+    /**
+     * Adds the command to the end of the queue, unless the queue is full.
+     *
+     * @return whether the command was added
+     */
+    public synchronized boolean offer(Runnable command) {
+        if (queue.size() >= capacity) return false;
+        add(new Entry(null, command, System.nanoTime()));
+        return true;
+    }
+
+    private void add(Entry entry) {
+        queue.addLast(entry);
+        if (entry.key != null) waitingByKey.put(entry.key, entry);
+        notifyAll();
+    }
+
+    /**
+     * Runs all commands that were posted before this call, in the order they were posted.
+     * Commands that are posted while this runs are left for the next call.
+     *
+     * @return the number of commands that were run
+     */
+    public int applyAll() {
+        int n;
+        synchronized (this) {
+            n = queue.size();
+            if (batch.length < n) batch = new Entry[Math.max(n, 2 * batch.length)];
+            Iterator<Entry> it = queue.iterator();
+            for (int i = 0; i < n; i++) {
+                batch[i] = it.next();
+            }
+            queue.clear();
+            waitingByKey.clear();
+            notifyAll();  // there is space again
+        }
+        if (n == 0) return 0;
+
+        double maxLatency = 0;
+        for (int i = 0; i < n; i++) {
+            Entry entry = batch[i];
+            batch[i] = null;
+            maxLatency = Math.max(maxLatency, (System.nanoTime() - entry.postTime) / 1e6);
+            entry.command.run();
+        }
+        lastLatencyMillis = maxLatency;
+        maxLatencyMillis = Math.max(maxLatencyMillis, maxLatency);
+        lastBatchSize = n;
+        return n;
+    }
+
+    /**
+     * Waits until at least one command is waiting or {@link #wakeUp()} is called.
+     *
+     * @return whether a command is waiting
+     */
+    public synchronized boolean await() throws InterruptedException {
+        while (queue.isEmpty() && !wakeUpRequested) {
+            wait();
+        }
+        wakeUpRequested = false;
+        return !queue.isEmpty();
+    }
+
+    /**
+     * Waits until at least one command is waiting, {@link #wakeUp()} is called, or the timeout has passed.
+     *
+     * @return whether a command is waiting
+     */
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (queue.isEmpty() && !wakeUpRequested) {
+            long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+            if (remainingMillis <= 0) break;
+            wait(remainingMillis);
+        }
+        wakeUpRequested = false;
+        return !queue.isEmpty();
+    }
+
+    /**
+     * Makes the current or next call of {@link #await()} or {@link #await(long)} return, even if no command is waiting.
+     */
+    public synchronized void wakeUp() {
+        wakeUpRequested = true;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the longest time from posting to applying of the commands in the last batch, in milliseconds
+     */
+    public double getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    /**
+     * @return the longest time from posting to applying of all commands so far, in milliseconds
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * @return how many commands were dropped because a command with the same key was posted after them
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+}
@@ -0,0 +1,258 @@
+package com.particle_life;
+
+import java.util.Arrays;
+
+/**
+ * Copy of the particles' positions and types, binned by containers,
+ * with a halo of ghost containers around the grid.
+ * <p>
+ * If the world wraps around, each ghost container holds the particles of the container
+ * on the opposite border, with their positions shifted by one world size.
+ * Otherwise, the ghost containers are empty.
+ * Either way, the 3x3 neighborhood of every container is inside the padded grid,
+ * and the connection between two particles is just their difference.
+ * <p>
+ * Containers are stored row by row, so the three containers in a row
+ * of a neighborhood are one contiguous range.
+ * <p>
+ * A grid can also cover only some rows of the world (see {@link #begin(int, int, int)}),
+ * in which case the rows above and below are the halo.
+ * <p>
+ * In 3D (see {@link #build3D}), the rows are stored layer by layer, with a ghost layer in front and at the back,
+ * and the z-coordinates are copied as well.
+ */
+final class ContainerGrid {
+
+    /**
+     * Number of containers per row, including the two ghost containers.
+     */
+    int paddedWidth;
+    /**
+     * Number of rows per layer, including the halo rows.
+     */
+    int paddedHeight;
+    /**
+     * Row of the world that is stored after the first halo row.
+     */
+    int firstRow;
+    /**
+     * Index of the first particle in each (padded) container, plus the total count as last entry.
+     */
+    int[] containerStart = new int[0];
+    double[] x = new double[0];
+    double[] y = new double[0];
+    /**
+     * Only filled in 3D.
+     */
+    double[] z = new double[0];
+    int[] type = new int[0];
+
+    private int nx;
+    private boolean withZ = false;
+    private int row;
+    private int offset;
+
+    /**
+     * @param particles  particles, sorted by containers
+     * @param containers for each container, the index after its last particle
+     */
+    void build(Particle[] particles, int[] containers, int nx, int ny, boolean wrap) {
+        begin(nx, ny, 0);
+        if (wrap) {
+            addRow(particles, containers, ny - 1, -1, true);
+        } else {
+            addEmptyRow();
+        }
+        for (int cy = 0; cy < ny; cy++) {
+            addRow(particles, containers, cy, 0, wrap);
+        }
+        if (wrap) {
+            addRow(particles, containers, 0, 1, true);
+        } else {
+            addEmptyRow();
+        }
+        end();
+    }
+
+    /**
+     * Starts a new grid. Afterwards, exactly <code>rows + 2</code> rows must be added,
+     * starting with the halo row above, then {@link #end()} must be called.
+     *
+     * @param rows     number of rows, excluding the halo
+     * @param firstRow the row of the world that the first row (after the halo) corresponds to
+     */
+    void begin(int nx, int rows, int firstRow) {
+        this.nx = nx;
+        this.firstRow = firstRow;
+        withZ = false;
+        paddedWidth = nx + 2;
+        paddedHeight = rows + 2;
+        int numContainers = paddedWidth * (rows + 2);
+        if (containerStart.length != numContainers + 1) {
+            containerStart = new int[numContainers + 1];
+        }
+        row = 0;
+        offset = 0;
+    }
+
+    /**
+     * Appends a row of containers, with a ghost container on each side.
+     *
+     * @param particles  particles, sorted by containers
+     * @param containers for each container, the index after its last particle
+     * @param cy         which row of <code>containers</code> to copy
+     * @param shiftY     added to the y-coordinates of the copied particles
+     */
+    void addRow(Particle[] particles, int[] containers, int cy, double shiftY, boolean wrap) {
+        for (int pcx = 0; pcx < paddedWidth; pcx++) {
+            containerStart[pcx + row * paddedWidth] = offset;
+
+            int cx = pcx - 1;
+            double shiftX = 0;
+            if (cx < 0) {
+                cx += nx;
+                shiftX = -1;
+            } else if (cx >= nx) {
+                cx -= nx;
+                shiftX = 1;
+            }
+            if (shiftX != 0 && !wrap) continue;
+
+            int ci = cx + cy * nx;
+            int start = ci == 0 ? 0 : containers[ci - 1];
+            int stop = containers[ci];
+            ensureCapacity(offset + stop - start);
+            for (int j = start; j < stop; j++) {
+                Particle p = particles[j];
+                x[offset] = p.position.x + shiftX;
+                y[offset] = p.position.y + shiftY;
+                type[offset] = p.type;
+                offset++;
+            }
+        }
+        row++;
+    }
+
+    /**
+     * Appends a row of empty containers.
+     */
+    void addEmptyRow() {
+        for (int pcx = 0; pcx < paddedWidth; pcx++) {
+            containerStart[pcx + row * paddedWidth] = offset;
+        }
+        row++;
+    }
+
+    void end() {
+        containerStart[containerStart.length - 1] = offset;
+    }
+
+    /**
+     * Like {@link #build}, but for <code>nz</code> layers of containers.
+     *
+     * @param containers for each container (<code>cx + cy * nx + cz * nx * ny</code>), the index after its last particle
+     */
+    void build3D(Particle[] particles, int[] containers, int nx, int ny, int nz, boolean wrap) {
+        this.nx = nx;
+        firstRow = 0;
+        withZ = true;
+        paddedWidth = nx + 2;
+        paddedHeight = ny + 2;
+        int numContainers = paddedWidth * paddedHeight * (nz + 2);
+        if (containerStart.length != numContainers + 1) {
+            containerStart = new int[numContainers + 1];
+        }
+        offset = 0;
+
+        int pci = 0;
+        for (int pcz = 0; pcz < nz + 2; pcz++) {
+            int cz = wrapContainer(pcz - 1, nz);
+            double shiftZ = getShift(pcz - 1, nz);
+            for (int pcy = 0; pcy < paddedHeight; pcy++) {
+                int cy = wrapContainer(pcy - 1, ny);
+                double shiftY = getShift(pcy - 1, ny);
+                for (int pcx = 0; pcx < paddedWidth; pcx++) {
+                    containerStart[pci++] = offset;
+
+                    int cx = wrapContainer(pcx - 1, nx);
+                    double shiftX = getShift(pcx - 1, nx);
+                    if (!wrap && (shiftX != 0 || shiftY != 0 || shiftZ != 0)) continue;
+
+                    int ci = cx + cy * nx + cz * nx * ny;
+                    int start = ci == 0 ? 0 : containers[ci - 1];
+                    int stop = containers[ci];
+                    ensureCapacity(offset + stop - start);
+                    for (int j = start; j < stop; j++) {
+                        Particle p = particles[j];
+                        x[offset] = p.position.x + shiftX;
+                        y[offset] = p.position.y + shiftY;
+                        z[offset] = p.position.z + shiftZ;
+                        type[offset] = p.type;
+                        offset++;
+                    }
+                }
+            }
+        }
+        containerStart[numContainers] = offset;
+    }
+
+    private static int wrapContainer(int c, int n) {
+        return c < 0 ? c + n : c >= n ? c - n : c;
+    }
+
+    private static double getShift(int c, int n) {
+        return c < 0 ? -1 : c >= n ? 1 : 0;
+    }
+
+    /**
+     * Sorts particles that are inside <code>rows</code> rows of the world, starting at <code>firstRow</code>,
+     * by their containers (counting sort).
+     *
+     * @param particles  the particles to sort (only the first <code>count</code>)
+     * @param target     where the sorted particles are written to, must have at least <code>count</code> entries
+     * @param containers receives, for each container in these rows, the index after its last particle;
+     *                   must have <code>nx * rows</code> entries
+     */
+    static void sortIntoContainers(Particle[] particles, int count, Particle[] target, int[] containers,
+                                   int nx, int ny, int firstRow, double containerSize) {
+        Arrays.fill(containers, 0);
+        for (int i = 0; i < count; i++) {
+            containers[getLocalContainerIndex(particles[i], nx, ny, firstRow, containerSize)]++;
+        }
+        int offset = 0;
+        for (int ci = 0; ci < containers.length; ci++) {
+            int cap = containers[ci];
+            containers[ci] = offset;
+            offset += cap;
+        }
+        for (int i = 0; i < count; i++) {
+            Particle p = particles[i];
+            int ci = getLocalContainerIndex(p, nx, ny, firstRow, containerSize);
+            target[containers[ci]++] = p;
+        }
+    }
+
+    /**
+     * Same as in {@link Physics}, including the clamping of the last row and column.
+     */
+    static int getRow(double y, int ny, double containerSize) {
+        return Math.min((int) (y / containerSize), ny - 1);
+    }
+
+    private static int getLocalContainerIndex(Particle p, int nx, int ny, int firstRow, double containerSize) {
+        int cx = Math.min((int) (p.position.x / containerSize), nx - 1);
+        return cx + (getRow(p.position.y, ny, containerSize) - firstRow) * nx;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (x.length < capacity) {
+            int newCapacity = Math.max(capacity, x.length + x.length / 2);
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+            type = Arrays.copyOf(type, newCapacity);
+        }
+        if (withZ && z.length < x.length) {
+            z = Arrays.copyOf(z, x.length);
+        }
+    }
+}
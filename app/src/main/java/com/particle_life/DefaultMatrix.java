@@ -59,6 +59,11 @@ public class DefaultMatrix implements Matrix {
         return copy;
     }
 
+    @Override
+    public int hashCode() {
+        return Matrix.hashCode(this);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o instanceof Matrix m) {
@@ -9,7 +9,7 @@ public class DefaultPositionSetter implements PositionSetter {
         position.set(
                 Math.random(),
                 Math.random(),
-                0
+                Math.random()  // dropped in 2D
         );
     }
 }
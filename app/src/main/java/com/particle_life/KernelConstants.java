@@ -0,0 +1,48 @@
+package com.particle_life;
+
+/**
+ * Everything a {@link VelocityKernel} is specialized for.
+ * If any of these values change, a new kernel is generated.
+ * <p>
+ * The accelerator is compared by identity.
+ * Of the matrix, only its class is a constant, so that the values can change
+ * and copies of the matrix (e.g. in a {@link KernelWarmUp}) use the same kernel.
+ */
+record KernelConstants(double rmax, int nx, int ny, int nz, int dimensions, Accelerator accelerator,
+                       Class<? extends Matrix> matrixClass) {
+
+    /**
+     * @param nz number of container layers, 1 in 2D
+     */
+    static KernelConstants of(PhysicsSettings settings, int nx, int ny, int nz, Accelerator accelerator) {
+        return new KernelConstants(settings.rmax, nx, ny, nz, settings.dimensions, accelerator,
+                settings.matrix.getClass());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof KernelConstants k) {
+            return Double.compare(k.rmax, rmax) == 0
+                    && k.nx == nx
+                    && k.ny == ny
+                    && k.nz == nz
+                    && k.dimensions == dimensions
+                    && k.accelerator == accelerator
+                    && k.matrixClass == matrixClass;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Double.hashCode(rmax);
+        h = 31 * h + nx;
+        h = 31 * h + ny;
+        h = 31 * h + nz;
+        h = 31 * h + dimensions;
+        h = 31 * h + System.identityHashCode(accelerator);
+        h = 31 * h + matrixClass.hashCode();
+        return h;
+    }
+}
@@ -0,0 +1,87 @@
+package com.particle_life;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.constant.ConstantDescs;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Creates {@link VelocityKernel velocity kernels} that are specialized for a set of {@link KernelConstants}.
+ * <p>
+ * Each kernel is a new hidden class, defined from the bytecode of {@link SpecializedVelocityKernel}
+ * with the constants attached as class data.
+ * Hidden classes can be unloaded once the kernel is no longer referenced.
+ * <p>
+ * {@link #get(KernelConstants)} shares kernels between all {@link Physics} instances,
+ * so a kernel that was warmed up on one instance (see {@link KernelWarmUp})
+ * is already compiled when another instance uses it.
+ */
+final class KernelGenerator {
+
+    private static final String TEMPLATE_RESOURCE = "SpecializedVelocityKernel.class";
+
+    private static byte[] templateBytes = null;
+
+    private static final int CACHE_SIZE = 16;
+    /**
+     * Recently used kernels, so that toggling a setting back and forth
+     * doesn't define a new class every time.
+     */
+    private static final Map<KernelConstants, VelocityKernel> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KernelConstants, VelocityKernel> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private KernelGenerator() {
+    }
+
+    /**
+     * Like {@link #generate(KernelConstants)}, but returns the same kernel for equal constants
+     * as long as it was used recently.
+     */
+    static synchronized VelocityKernel get(KernelConstants constants) throws ReflectiveOperationException, IOException {
+        VelocityKernel kernel = cache.get(constants);
+        if (kernel == null) {
+            kernel = generate(constants);
+            cache.put(constants, kernel);
+        }
+        return kernel;
+    }
+
+    /**
+     * @throws ReflectiveOperationException if the hidden class could not be defined or instantiated
+     * @throws IOException                   if the bytecode of the template could not be read
+     */
+    static synchronized VelocityKernel generate(KernelConstants constants) throws ReflectiveOperationException, IOException {
+        if (templateBytes == null) {
+            try (InputStream in = KernelGenerator.class.getResourceAsStream(TEMPLATE_RESOURCE)) {
+                if (in == null) throw new IOException("Could not find " + TEMPLATE_RESOURCE);
+                templateBytes = in.readAllBytes();
+            }
+        }
+
+        Class<?> kernelClass = MethodHandles.lookup()
+                .defineHiddenClassWithClassData(templateBytes, constants, true)
+                .lookupClass();
+        return (VelocityKernel) kernelClass.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Called by the static initializer of each generated kernel.
+     */
+    static KernelConstants classData(MethodHandles.Lookup lookup) {
+        try {
+            KernelConstants constants = MethodHandles.classData(lookup, ConstantDescs.DEFAULT_NAME, KernelConstants.class);
+            if (constants == null) {
+                throw new IllegalStateException(lookup.lookupClass() + " was not created by KernelGenerator");
+            }
+            return constants;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
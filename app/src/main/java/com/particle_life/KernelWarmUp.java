@@ -0,0 +1,166 @@
+package com.particle_life;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs physics kernels on a small throwaway copy of a {@link Physics} until their step time stops improving,
+ * i.e. until the JIT compiler has compiled them.
+ * Afterwards, the real simulation runs at full speed from its first step instead of stuttering.<br>
+ * Example:
+ * <pre>
+ * // on the thread that updates the physics
+ * KernelWarmUp warmUp = new KernelWarmUp(physics, KernelWarmUp.DEFAULT_PARTICLE_COUNT, false);
+ *
+ * // on any thread
+ * List&lt;KernelWarmUp.Result&gt; results = warmUp.run(2000);
+ * </pre>
+ * <p>
+ * The copy uses the same accelerator and a copy of the matrix (of the same class) as the original,
+ * so it uses the same specialized velocity kernel (see {@link Physics#specializeKernels}),
+ * and the compiled code is shared.
+ * The original is only read by the constructor, so the original's matrix can be edited while this runs.
+ */
+public class KernelWarmUp {
+
+    public static final int DEFAULT_PARTICLE_COUNT = 2000;
+    /**
+     * Step times are averaged over this many steps.
+     */
+    private static final int WINDOW_STEPS = 5;
+    /**
+     * The step time has converged if this many consecutive windows are within {@link #TOLERANCE} of each other.
+     */
+    private static final int STABLE_WINDOWS = 4;
+    private static final double TOLERANCE = 0.05;
+    /**
+     * Compilation happens in tiers, so stop at a plateau only after this many steps.
+     */
+    private static final int MIN_STEPS = 60;
+
+    /**
+     * @param kernelName see {@link PhysicsKernel#getName()}
+     * @param steps      number of steps that were done
+     * @param millis     how long the warm-up took
+     * @param stepMillis average time per step at the end of the warm-up
+     * @param converged  whether the step time stopped improving before the time limit
+     */
+    public record Result(String kernelName, int steps, double millis, double stepMillis, boolean converged) {
+    }
+
+    private final Physics copy;
+    private final List<PhysicsKernel> kernels = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Must be called from the thread that updates <code>original</code>, or while it is not updated.
+     *
+     * @param particleCount number of particles of the copy
+     * @param allKernels    whether to warm up every kernel instead of only the one that <code>original</code> uses
+     */
+    public KernelWarmUp(Physics original, int particleCount, boolean allKernels) {
+        copy = new Physics(original.accelerator);
+        copy.settings = original.settings.deepCopy();
+        copy.specializeKernels = original.specializeKernels;
+        copy.sleeping = original.sleeping;
+        copy.tileCount = original.tileCount;
+        copy.preferredNumberOfThreads = original.preferredNumberOfThreads;
+        copy.setParticleCount(particleCount);
+        copy.setTypes();
+        copy.setPositions();
+
+        if (allKernels) {
+            kernels.add(copy.optimizedKernel);
+            kernels.add(copy.bruteForceKernel);
+            kernels.add(copy.referenceKernel);
+        } else {
+            PhysicsKernel used = original.kernel != null ? original.kernel : original.getActiveKernel();
+            kernels.add(used == original.bruteForceKernel ? copy.bruteForceKernel
+                    : used == original.referenceKernel ? copy.referenceKernel
+                    : copy.optimizedKernel);
+        }
+    }
+
+    /**
+     * Steps the copy with each kernel until the step time converges or the time limit is reached.
+     * Stops early if {@link #cancel()} is called or the thread is interrupted.
+     *
+     * @param maxMillis time limit per kernel
+     * @return one result for each kernel that was warmed up
+     */
+    public List<Result> run(long maxMillis) {
+        List<Result> results = new ArrayList<>();
+        try {
+            for (PhysicsKernel kernel : kernels) {
+                if (isStopped()) break;
+                results.add(warmUp(kernel, maxMillis));
+            }
+        } finally {
+            copy.kill();
+        }
+        return results;
+    }
+
+    private Result warmUp(PhysicsKernel kernel, long maxMillis) {
+        copy.kernel = kernel;
+        double[] windows = new double[STABLE_WINDOWS];
+        int windowCount = 0;
+        int steps = 0;
+        double stepMillis = 0;
+        boolean converged = false;
+        final long start = System.nanoTime();
+        final long deadline = start + maxMillis * 1_000_000;
+
+        while (!isStopped() && System.nanoTime() < deadline) {
+            long windowStart = System.nanoTime();
+            for (int i = 0; i < WINDOW_STEPS; i++) {
+                copy.update();
+            }
+            steps += WINDOW_STEPS;
+            stepMillis = (System.nanoTime() - windowStart) / 1e6 / WINDOW_STEPS;
+            windows[windowCount++ % STABLE_WINDOWS] = stepMillis;
+
+            if (steps >= MIN_STEPS && windowCount >= STABLE_WINDOWS && isStable(windows)) {
+                converged = true;
+                break;
+            }
+        }
+
+        return new Result(kernel.getName(), steps, (System.nanoTime() - start) / 1e6, stepMillis, converged);
+    }
+
+    private static boolean isStable(double[] windows) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = 0;
+        for (double w : windows) {
+            min = Math.min(min, w);
+            max = Math.max(max, w);
+        }
+        return max <= min * (1 + TOLERANCE);
+    }
+
+    /**
+     * Must be called from the thread that updates the physics.
+     *
+     * @return an object that is equal for two calls if the same compiled code is used for the steps in between,
+     * so that a new warm-up is only needed if it changes
+     */
+    public static Object getKey(Physics physics) {
+        int n = (int) Math.floor(1 / physics.settings.rmax);
+        KernelConstants constants = KernelConstants.of(physics.settings, n, n,
+                physics.settings.dimensions == 3 ? n : 1, physics.accelerator);
+        return Arrays.asList(constants, physics.kernel, physics.specializeKernels, physics.sleeping, physics.tileCount);
+    }
+
+    private boolean isStopped() {
+        return cancelled || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Makes {@link #run(long)} return after the current window of steps.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+}
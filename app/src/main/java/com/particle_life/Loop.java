@@ -1,8 +1,8 @@
 package com.particle_life;
 
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Utility class for starting a thread that repeatedly calls a given method.<br>
@@ -16,7 +16,8 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>
  * To start the thread, call {@link #start(Callback)}.<br>
  * To stop the thread, call {@link #stop(long millis)} or {@link #kill()}.<br>
- * To execute code synchronously with the loop, use {@link #enqueue(Runnable)}.
+ * To execute code synchronously with the loop, use {@link #enqueue(Runnable)}
+ * or {@link #enqueue(Object, Runnable)}.
  * Example:
  * <pre>
  * loop.enqueue(() -> {
@@ -24,6 +25,9 @@ import java.util.concurrent.atomic.AtomicReference;
  *     // in parallel with the code in the loop
  * });
  * </pre>
+ * <p>
+ * The loop either runs as fast as possible or at a fixed rate (see {@link #targetStepRate}).
+ * While it is paused, the thread sleeps until a command arrives.
  */
 public class Loop {
 
@@ -35,15 +39,50 @@ public class Loop {
     public double maxDt = 1.0 / 20.0; // min. 20 fps
 
     /**
-     * If this is <code>true</code>, the callback won't be called in the loop.
+     * How many times per second the callback should be called.
+     * If this is 0, the callback is called again as soon as it returns.
+     * <p>If an iteration takes longer than planned, the next ones start right away to catch up,
+     * but at most one iteration is caught up.
+     */
+    public volatile double targetStepRate = 0;
+
+    /**
+     * If this is <code>true</code>, the callback won't be called in the loop,
+     * and the loop thread sleeps until a command is enqueued.
+     */
+    private volatile boolean pause = false;
+    /**
+     * Whether the paused loop thread is sleeping until a command arrives.
      */
-    public boolean pause = false;
+    private volatile boolean idle = false;
     private final Clock clock = new Clock(60);
 
+    /**
+     * How long before the start of the next iteration the thread stops sleeping and starts spinning,
+     * as waking up from sleep is not that precise.
+     */
+    private static final long SPIN_NANOS = 500_000;
+    private long nextStepTime = 0;
+    private boolean resumed = true;
+    /**
+     * Set while paused if commands were applied that the {@link #doOnce(Runnable)} command didn't see yet.
+     */
+    private boolean onceOutdated = false;
+    private volatile boolean waitingForOnce = false;
+    private double lastIntervalMillis = -1;
+    private volatile double jitterMillis = 0;
+    private volatile long lastIterationTime = System.currentTimeMillis();
+    private volatile long stepCount = 0;
+    private volatile long workNanos = 0;
+
     private Thread loopThread = null;
     private final AtomicBoolean loopShouldRun = new AtomicBoolean(false);
 
-    private final LinkedBlockingDeque<Runnable> commandQueue = new LinkedBlockingDeque<>();
+    /**
+     * Maximum number of commands waiting for the next iteration, see {@link CommandBus}.
+     */
+    public static final int COMMAND_CAPACITY = 1024;
+    private final CommandBus commands = new CommandBus(COMMAND_CAPACITY);
     private final AtomicReference<Runnable> once = new AtomicReference<>(null);
 
     /**
@@ -69,8 +108,38 @@ public class Loop {
      * @param cmd the command to be executed in the loop thread
      */
     public void enqueue(Runnable cmd) {
-        //todo: debug print if some GUI elements spam commands
-        commandQueue.addLast(cmd);
+        commands.post(cmd);
+    }
+
+    /**
+     * Like {@link #enqueue(Runnable)}, but if a command with an equal key is still waiting
+     * for the next iteration, that command won't be executed anymore.
+     * Use this for commands that set something to a new value, e.g. a setting that is changed with a slider,
+     * so that only the last value is applied if the loop is slow.
+     *
+     * @param key identifies what the command changes (e.g. the name of a setting)
+     * @param cmd the command to be executed in the loop thread
+     */
+    public void enqueue(Object key, Runnable cmd) {
+        commands.post(key, cmd);
+    }
+
+    /**
+     * Like {@link #enqueue(Runnable)}, but drops the command if too many commands are waiting already.
+     * Use this for commands that are sent again and again (e.g. every frame),
+     * where it's better to lose some than to wait for the loop.
+     *
+     * @return whether the command will be executed
+     */
+    public boolean tryEnqueue(Runnable cmd) {
+        return commands.offer(cmd);
+    }
+
+    /**
+     * @return the queue behind {@link #enqueue(Runnable)}, e.g. to read how long commands waited
+     */
+    public CommandBus getCommands() {
+        return commands;
     }
 
     /**
@@ -84,13 +153,11 @@ public class Loop {
      */
     public void doOnce(Runnable cmd) {
         once.set(cmd);
+        if (waitingForOnce) commands.wakeUp();
     }
 
-    private void processCommandQueue() {
-        Runnable cmd;
-        while ((cmd = commandQueue.pollFirst()) != null) {
-            cmd.run();
-        }
+    private int processCommandQueue() {
+        return commands.applyAll();
     }
 
     public synchronized void start(Callback loop) {
@@ -109,15 +176,122 @@ public class Loop {
 
     private void loop(Callback loop) {
 
-        clock.tick();
+        lastIterationTime = System.currentTimeMillis();
+
+        if (pause) {
+            idle();
+            return;
+        }
+        waitingForOnce = false;
+
+        waitForNextStep();
+        long workStart = System.nanoTime();
+        if (resumed) {
+            // don't count the pause as an iteration
+            clock.in();
+            lastIntervalMillis = -1;
+            resumed = false;
+        } else {
+            clock.tick();
+            measureJitter();
+        }
 
         processCommandQueue();
         Runnable onceCommand = once.getAndSet(null);
         if (onceCommand != null) onceCommand.run();
 
-        if (!pause) {
-            loop.call(computeDt());
+        loop.call(computeDt());
+
+        // only this thread writes them
+        workNanos += System.nanoTime() - workStart;
+        stepCount++;
+    }
+
+    /**
+     * One iteration while paused: applies the commands, then sleeps until the next command arrives.
+     * The {@link #doOnce(Runnable)} command is only run if something was applied since it last ran.
+     */
+    private void idle() {
+        if (!resumed) {
+            resumed = true;
+            nextStepTime = 0;
+            onceOutdated = true;  // the last command might have been skipped in favor of the callback
         }
+
+        if (processCommandQueue() > 0) onceOutdated = true;
+        // set before checking, so that doOnce() either is seen here or wakes up the thread
+        waitingForOnce = onceOutdated;
+        if (onceOutdated) {
+            Runnable onceCommand = once.getAndSet(null);
+            if (onceCommand != null) {
+                onceCommand.run();
+                onceOutdated = false;
+                waitingForOnce = false;
+            }
+        }
+
+        if (!pause || !loopShouldRun.get()) return;  // don't miss a wake-up that came before
+        idle = true;
+        try {
+            commands.await();
+        } catch (InterruptedException e) {
+            // killed
+            Thread.currentThread().interrupt();
+        }
+        // in this order, so that getLastIterationTime() is recent once isIdle() is false
+        lastIterationTime = System.currentTimeMillis();
+        idle = false;
+    }
+
+    /**
+     * While paused, the loop thread sleeps until a command arrives or the loop is unpaused.
+     */
+    public void setPause(boolean pause) {
+        this.pause = pause;
+        if (!pause) commands.wakeUp();
+    }
+
+    public boolean isPaused() {
+        return pause;
+    }
+
+    /**
+     * If {@link #targetStepRate} is set, sleeps until the next iteration is due.
+     */
+    private void waitForNextStep() {
+        double rate = targetStepRate;
+        if (!(rate > 0)) {
+            nextStepTime = 0;
+            return;
+        }
+        long period = (long) (1e9 / rate);
+        long now = System.nanoTime();
+        if (nextStepTime == 0 || now - nextStepTime > period) {
+            // first iteration, or too far behind to catch up
+            nextStepTime = now;
+            return;
+        }
+        while (true) {
+            long remaining = nextStepTime - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) break;
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        nextStepTime += period;
+    }
+
+    /**
+     * Smoothed difference between consecutive iteration times, like the interarrival jitter of RFC 3550.
+     */
+    private void measureJitter() {
+        double interval = clock.getDtMillis();
+        if (lastIntervalMillis >= 0) {
+            jitterMillis += (Math.abs(interval - lastIntervalMillis) - jitterMillis) / 16;
+        }
+        lastIntervalMillis = interval;
     }
 
     /**
@@ -141,6 +315,7 @@ public class Loop {
             return true;
         }
         boolean oldValue = loopShouldRun.getAndSet(false);
+        commands.wakeUp();  // if paused
         try {
             loopThread.join(millis);  // A timeout of 0 means to wait forever.
         } catch (InterruptedException e) {
@@ -189,8 +364,7 @@ public class Loop {
     /**
      * Returns how much time passed between the last two iterations of the loop, in seconds.
      * Unlike the value given to the callback in {@link #start(Callback)}, this value is not limited by {@link #maxDt}.
-     * Note that therefore the return value of this method can be very small if <code>{@link #pause} == true</code>,
-     * as there is no work to be done in the loop.
+     * While the loop is paused, this is the value from before the pause.
      *
      * @return how much time passed between the last two iterations of the loop, in seconds.
      */
@@ -201,8 +375,7 @@ public class Loop {
     /**
      * Average framerate over the last couple of frames.
      * Unlike the value given to the callback in {@link #start(Callback)}, this value is not limited by {@link #maxDt}.
-     * Note that therefore the return value of this method can be very high if <code>{@link #pause} == true</code>,
-     * as there is no work to be done in the loop.
+     * While the loop is paused, this is the value from before the pause.
      *
      * @return average framerate in frames per second.
      * @see #getActualDt()
@@ -210,4 +383,49 @@ public class Loop {
     public double getAvgFramerate() {
         return clock.getAvgFramerate();
     }
+
+    /**
+     * How much the time between iterations varies, smoothed over roughly the last 16 iterations.
+     * With a {@link #targetStepRate}, this shows how precisely the rate is kept.
+     *
+     * @return the step jitter in milliseconds
+     */
+    public double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * @return how many times the callback was called so far
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Unlike the time between iterations, this doesn't include the time spent waiting for {@link #targetStepRate}.
+     *
+     * @return how much time the iterations took so far (callback and commands), in nanoseconds
+     */
+    public long getWorkNanos() {
+        return workNanos;
+    }
+
+    /**
+     * If this is long ago and the loop isn't {@link #isIdle() idle},
+     * the loop thread is stuck in an iteration.
+     * Check {@link #isIdle()} first: once it is false, this is the time the thread woke up or later.
+     *
+     * @return unix timestamp (milliseconds) of when the current iteration started
+     */
+    public long getLastIterationTime() {
+        return lastIterationTime;
+    }
+
+    /**
+     * @return whether the loop is paused and sleeping until a command arrives,
+     * i.e. it is not stuck even if the {@link #getLastIterationTime() last iteration} was long ago
+     */
+    public boolean isIdle() {
+        return idle;
+    }
 }
@@ -5,4 +5,35 @@ public interface Matrix {
     double get(int i, int j);
     void set(int i, int j, double value);
     Matrix deepCopy();
+
+    /**
+     * Implementations compare their entries with any other matrix in <code>equals</code>,
+     * so they must use this hash code (or one that always gives the same result).
+     *
+     * @return the size plus the sum of {@link #entryWeight}(i, j) * {@link #valueHash}(value) over all entries,
+     * with int overflow
+     */
+    static int hashCode(Matrix m) {
+        int size = m.size();
+        int hash = 31 * size;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                hash += entryWeight(i, j) * valueHash(m.get(i, j));
+            }
+        }
+        return hash;
+    }
+
+    int ROW_WEIGHT = 0x9E3779B1;
+
+    static int entryWeight(int i, int j) {
+        return i * ROW_WEIGHT + j + 1;
+    }
+
+    /**
+     * Like {@link Double#hashCode(double)}, but the same for 0.0 and -0.0, which are equal entries.
+     */
+    static int valueHash(double value) {
+        return value == 0 ? 0 : Double.hashCode(value);
+    }
 }
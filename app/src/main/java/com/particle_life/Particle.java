@@ -6,4 +6,31 @@ public class Particle {
     public Vector3d position = new Vector3d(0, 0, 0);
     public Vector3d velocity = new Vector3d(0, 0, 0);
     public int type = 0;
+    /**
+     * Number of consecutive steps in which this particle was nearly at rest,
+     * up to {@link Physics#sleepSteps}, at which point it is sleeping.
+     * 0 means that it moved in the last step.
+     */
+    int quietSteps = 0;
+    /**
+     * Container that {@link Physics} computed for this particle right after it moved it.
+     */
+    int container = 0;
+    /**
+     * Index of this particle in the {@link ParticleState} that {@link Physics} writes.
+     * It stays the same from step to step, even though the particles are reordered,
+     * until particles are added or removed. -1 if not assigned yet.
+     */
+    int slot = -1;
+    /**
+     * Set by {@link Physics#removeParticle(Particle)}.
+     */
+    boolean removed = false;
+
+    /**
+     * @return whether the particle was removed from the physics, but may still be in its array until the next step
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
 }
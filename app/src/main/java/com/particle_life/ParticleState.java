@@ -0,0 +1,129 @@
+package com.particle_life;
+
+/**
+ * Compact copy of the particles' positions, velocities and types in flat arrays, e.g. for rendering.
+ * <p>
+ * Positions are floats, velocities are half floats (see {@link #toHalfFloat(float)}),
+ * and both only have as many components as the world has dimensions.
+ * This is a fraction of the size of the particles themselves, so it is quick to copy and upload.
+ *
+ * @see ParticleStateSink
+ */
+public class ParticleState {
+
+    /**
+     * The coordinates of each particle ({@link #dimensions} per particle), one after the other.
+     * May be longer than needed, see {@link #resize(int, int, int)}.
+     */
+    public float[] positions = new float[0];
+    /**
+     * The velocity of each particle ({@link #dimensions} components per particle) as IEEE 754 half floats,
+     * one after the other.
+     * Only written if {@link #withVelocities} is true.
+     * May be longer than needed, see {@link #resize(int, int, int)}.
+     */
+    public short[] velocities = new short[0];
+    /**
+     * Whether {@link #write(int, Particle)} copies the velocities.
+     * Set this before the state is filled, so that the velocities are only converted if they are used.
+     */
+    public boolean withVelocities = true;
+    /**
+     * Type of each particle, to be read as an unsigned value (<code>types[i] &amp; 0xffff</code>),
+     * so there may be up to 65536 types.
+     * May be longer than needed, see {@link #resize(int, int, int)}.
+     */
+    public short[] types = new short[0];
+    /**
+     * Number of particles in the arrays.
+     */
+    public int particleCount = 0;
+    /**
+     * 2 or 3, the number of position and velocity components per particle.
+     */
+    public int dimensions = 3;
+    /**
+     * Number of particles of each type.
+     */
+    public int[] typeCount = new int[0];
+    /**
+     * Two states with the same version hold the same particles at the same indices (possibly moved).
+     * The version changes e.g. when particles are added or removed, or when all positions are reset.
+     */
+    public long slotVersion = -1;
+
+    /**
+     * Makes the arrays long enough for the given number of particles and types.
+     * The particle arrays only grow (by at least half), so that a particle count that changes
+     * every step (e.g. while brushing) doesn't allocate new arrays every time.
+     * Only the first {@link #particleCount} entries are valid.
+     * Their contents are undefined afterwards.
+     *
+     * @param dimensions 2 or 3, see {@link #dimensions}
+     */
+    public void resize(int particleCount, int typeCount, int dimensions) {
+        this.particleCount = particleCount;
+        this.dimensions = dimensions;
+        if (types.length < particleCount) {
+            int capacity = Math.max(particleCount, types.length + types.length / 2);
+            // room for 3D, so that switching dimensions doesn't allocate
+            positions = new float[capacity * 3];
+            velocities = new short[capacity * 3];
+            types = new short[capacity];
+        }
+        if (this.typeCount.length != typeCount) {
+            this.typeCount = new int[typeCount];
+        }
+    }
+
+    /**
+     * Copies position, velocity (if {@link #withVelocities}) and type of the particle to index <code>i</code>.
+     * Doesn't change {@link #typeCount}.
+     */
+    public void write(int i, Particle p) {
+        if (dimensions == 2) {
+            final int i2 = 2 * i;
+            positions[i2] = (float) p.position.x;
+            positions[i2 + 1] = (float) p.position.y;
+            if (withVelocities) {
+                velocities[i2] = toHalfFloat((float) p.velocity.x);
+                velocities[i2 + 1] = toHalfFloat((float) p.velocity.y);
+            }
+        } else {
+            final int i3 = 3 * i;
+            positions[i3] = (float) p.position.x;
+            positions[i3 + 1] = (float) p.position.y;
+            positions[i3 + 2] = (float) p.position.z;
+            if (withVelocities) {
+                velocities[i3] = toHalfFloat((float) p.velocity.x);
+                velocities[i3 + 1] = toHalfFloat((float) p.velocity.y);
+                velocities[i3 + 2] = toHalfFloat((float) p.velocity.z);
+            }
+        }
+
+        types[i] = (short) p.type;
+    }
+
+    /**
+     * Converts to IEEE 754 half precision, rounding to nearest.
+     * Values that are too large become infinity.
+     */
+    public static short toHalfFloat(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        final int mantissa = bits & 0x7fffff;
+        if (exponent >= 31) {
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0) {
+            // subnormal, or too small
+            if (exponent < -10) return (short) sign;
+            int shift = 14 - exponent;
+            int m = mantissa | 0x800000;
+            return (short) (sign | (m + (1 << (shift - 1))) >> shift);
+        }
+        // a carry of the rounding correctly increases the exponent
+        return (short) (sign | ((exponent << 10) + ((mantissa + 0x1000) >> 13)));
+    }
+}
@@ -0,0 +1,25 @@
+package com.particle_life;
+
+/**
+ * Receives copies of the particles from {@link Physics#update()}.
+ * <p>
+ * If possible, the particles are copied in the same pass that updates their positions,
+ * so the copy costs hardly more than the step itself.
+ *
+ * @see Physics#stateSink
+ */
+public interface ParticleStateSink {
+
+    /**
+     * Called on the physics thread at the start of each step.
+     *
+     * @return where the particles should be copied to after this step, or null if no copy is needed
+     */
+    ParticleState beginStep();
+
+    /**
+     * Called at the end of a step in which {@link #beginStep()} returned <code>state</code>,
+     * after <code>state</code> was filled (including {@link ParticleState#typeCount}).
+     */
+    void endStep(ParticleState state);
+}
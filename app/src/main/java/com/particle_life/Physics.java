@@ -2,9 +2,13 @@ package com.particle_life;
 
 import org.joml.Vector3d;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Physics {
 
@@ -12,7 +16,25 @@ public class Physics {
 
     public PhysicsSettings settings = new PhysicsSettings();
 
+    /**
+     * The particles are the first {@link #getParticleCount()} entries.
+     * The rest of the array is spare capacity for {@link #addParticle(Particle)}, and its contents are undefined.
+     * Particles that were removed with {@link #removeParticle(Particle)} stay in the array
+     * until the start of the next {@link #update()}.
+     * <p>
+     * To replace all particles, use {@link #setParticles(Particle[])}.
+     */
     public Particle[] particles;
+    private int particleCount = 0;
+    /**
+     * Number of particles that are marked as removed, but are still in {@link #particles}.
+     */
+    private int removedCount = 0;
+    /**
+     * See {@link #getParticlesVersion()}.
+     */
+    private long particlesVersion = 0;
+    private long tiledParticlesVersion = -1;
 
     // buffers for sorting by containers
     private int[] containers;
@@ -22,9 +44,13 @@ public class Physics {
     // container layout:
     private int nx;
     private int ny;
+    private int nz;  // 1 in 2D
     private double containerSize = 0.065;// todo: implement makeContainerNeighborhood() to make this independent of rmax
 
-    private Accelerator accelerator;
+    /**
+     * Can be replaced at any time between two calls to {@link #update()}.
+     */
+    public Accelerator accelerator;
     public MatrixGenerator matrixGenerator;
     public PositionSetter positionSetter;
     /**
@@ -38,6 +64,133 @@ public class Physics {
     public int preferredNumberOfThreads = 12;
     private final LoadDistributor loadDistributor = new LoadDistributor();
 
+    /**
+     * If true, the velocities are computed by kernels that are generated at runtime
+     * for the current accelerator, matrix and rmax.
+     * These kernels read the neighbors from a {@link ContainerGrid} with a halo of ghost containers,
+     * so they don't need to wrap anything.
+     * A new kernel is swapped in at the start of the next step whenever one of these changes.
+     * <p>
+     * If false, or if generating a kernel fails, the generic implementation is used.
+     * Both produce the same results, up to rounding errors.
+     */
+    public boolean specializeKernels = true;
+    /**
+     * The last kernel from {@link KernelGenerator#get(KernelConstants)}, to skip the lookup in most steps.
+     */
+    private KernelConstants velocityKernelConstants = null;
+    private VelocityKernel velocityKernel = null;
+    private final VelocityKernel genericKernel = (particles, grid, matrix, frictionFactor, forceFactor, i) -> updateVelocity(i);
+    private final ContainerGrid containerGrid = new ContainerGrid();
+
+    /**
+     * If greater than 1, the world is split into this many horizontal tiles
+     * (at most one per row of containers), each of which is updated by one thread
+     * on its own copy of the data, see {@link TileDecomposition}.
+     * <p>
+     * Only used with {@link #specializeKernels}, without {@link #sleeping} and in 2D.
+     */
+    public int tileCount = 1;
+    private final TileDecomposition tileDecomposition = new TileDecomposition();
+
+    /**
+     * If true, particles that have been nearly at rest for {@link #sleepSteps} steps
+     * are no longer updated, until a particle in a neighboring container starts moving,
+     * they are touched via {@link #wake(Particle)} or {@link #disturb(Vector3d)},
+     * or the settings or the accelerator change.
+     * Sleeping particles still exert forces on the particles around them.
+     */
+    public boolean sleeping = false;
+    /**
+     * Maximum velocity of a particle that is considered at rest.
+     */
+    public double sleepVelocityThreshold = 2e-4;
+    /**
+     * Maximum acceleration of a particle that is considered at rest,
+     * i.e. the change of velocity per time caused by the forces, excluding friction.
+     */
+    public double sleepAccelerationThreshold = 1e-2;
+    public int sleepSteps = 60;
+    // whether a container contains a particle that moved in the last step
+    private boolean[] disturbedContainers = new boolean[0];
+    private final List<Vector3d> disturbances = new ArrayList<>();
+    private boolean wasSleeping = false;
+    private PhysicsSettings settingsBeforeSleeping = null;
+    private Accelerator acceleratorBeforeSleeping = null;
+    private int awakeCount = 0;
+
+    /**
+     * The position update stores each particle's new container in {@link Particle#container}
+     * and counts the particles per container, separately for each chunk of particles,
+     * so that the next {@link #makeContainers()} doesn't need to read the positions again.
+     * This is only valid for the array {@link #binnedParticles} and the container layout below,
+     * and as long as no particle is moved in between (see {@link #wake(Particle)}).
+     */
+    private Particle[] binnedParticles = null;
+    private double binnedContainerSize;
+    private int binnedContainerCount;
+    /**
+     * Number of histograms in {@link #containerHistograms} that were filled,
+     * or 0 if there were too many containers and only {@link Particle#container} was set.
+     */
+    private int binnedHistogramCount;
+    private int[][] containerHistograms = new int[0][];
+
+    /**
+     * If not null, it's asked at the start of each {@link #update()} whether it wants a copy of the particles.
+     */
+    public ParticleStateSink stateSink = null;
+    /**
+     * The state that the current step should fill, until it's filled.
+     */
+    private ParticleState stateToFill = null;
+    private int[][] chunkTypeCounts = new int[0][];
+    private static final AtomicLong slotVersions = new AtomicLong();
+    /**
+     * See {@link Particle#slot} and {@link ParticleState#slotVersion}.
+     */
+    private long slotVersion = nextSlotVersion();
+    private int[] slotMarks = new int[0];
+    private int slotMark = 0;
+    /**
+     * {@link #particlesVersion} and particle count when the slots were last checked,
+     * as they can only become invalid when particles are added, removed or replaced.
+     */
+    private long slottedParticlesVersion = -1;
+    private int slottedParticleCount = -1;
+
+    /**
+     * The kernel that does the steps, or null to choose one before each step:
+     * {@link #bruteForceKernel} if that is expected to be faster, otherwise {@link #optimizedKernel}.
+     */
+    public PhysicsKernel kernel = null;
+    /**
+     * Uses specialized velocity kernels, tiles and sleeping, depending on the settings above.
+     */
+    public final PhysicsKernel optimizedKernel = new OptimizedKernel();
+    public final ReferenceKernel referenceKernel = new ReferenceKernel();
+    public final BruteForceKernel bruteForceKernel = new BruteForceKernel();
+    private PhysicsKernel activeKernel = optimizedKernel;
+    /**
+     * Roughly how many pairs of particles can be checked in the time
+     * it takes to sort one particle or one container into the containers.
+     */
+    private static final double BINNING_COST = 8;
+    /**
+     * How much longer it takes {@link #bruteForceKernel} to check a pair than the containers,
+     * with and without {@link #specializeKernels} (measured with 100 to 3000 particles).
+     */
+    private static final double BRUTE_FORCE_PAIR_COST_SPECIALIZED = 4;
+    private static final double BRUTE_FORCE_PAIR_COST_GENERIC = 1.2;
+
+    /**
+     * If greater than 0, every this many steps, the step is repeated with the {@link #referenceKernel}
+     * on a copy of the particles, and the largest difference is stored (see {@link #getMaxDeviation()}).
+     */
+    public int crossValidationInterval = 0;
+    private int stepsSinceCrossValidation = 0;
+    private double maxDeviation = Double.NaN;
+
     /**
      * This is used to stop the updating mid-particle.
      */
@@ -84,20 +237,20 @@ public class Physics {
     private void calcNxNy() {
         nx = (int) Math.floor(1 / containerSize);
         ny = (int) Math.floor(1 / containerSize);
+        nz = settings.dimensions == 3 ? (int) Math.floor(1 / containerSize) : 1;
     }
 
     private void makeContainerNeighborhood() {
-        containerNeighborhood = new int[][] {
-                new int[] { -1, -1 },
-                new int[] { 0, -1 },
-                new int[] { 1, -1 },
-                new int[] { -1, 0 },
-                new int[] { 0, 0 },
-                new int[] { 1, 0 },
-                new int[] { -1, 1 },
-                new int[] { 0, 1 },
-                new int[] { 1, 1 }
-        };
+        int layerRadius = settings.dimensions == 3 ? 1 : 0;
+        List<int[]> neighborhood = new ArrayList<>();
+        for (int dz = -layerRadius; dz <= layerRadius; dz++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    neighborhood.add(new int[] { dx, dy, dz });
+                }
+            }
+        }
+        containerNeighborhood = neighborhood.toArray(new int[0][]);
 
         // todo:
         // top left corner
@@ -112,27 +265,540 @@ public class Physics {
      * in the particle array according to <code>this.settings</code>.
      */
     public void update() {
-        updateParticles();
+        PhysicsKernel kernel = this.kernel != null ? this.kernel : chooseKernel();
+        activeKernel = kernel;
+        if (kernel != optimizedKernel) {
+            wasSleeping = false;
+            binnedParticles = null;
+        }
+
+        boolean crossValidate = false;
+        if (crossValidationInterval > 0 && kernel != referenceKernel) {
+            stepsSinceCrossValidation++;
+            if (stepsSinceCrossValidation >= crossValidationInterval) {
+                stepsSinceCrossValidation = 0;
+                crossValidate = true;
+            }
+        }
+
+        // the optimized kernel drops removed particles while sorting them into containers,
+        // everything else needs them gone before
+        if (kernel != optimizedKernel || crossValidate) compact();
+        if (kernel != optimizedKernel) awakeCount = particleCount;
+
+        // the particles may be reordered, so remember which particle each copy belongs to
+        Particle[] originals = null;
+        Particle[] copies = null;
+        if (crossValidate) {
+            originals = Arrays.copyOf(particles, particleCount);
+            copies = new Particle[particleCount];
+            for (int i = 0; i < particleCount; i++) {
+                Particle copy = new Particle();
+                copy.position.set(particles[i].position);
+                copy.velocity.set(particles[i].velocity);
+                copy.type = particles[i].type;
+                copies[i] = copy;
+            }
+        }
+
+        ParticleState state = stateSink != null ? stateSink.beginStep() : null;
+        stateToFill = state;
+
+        updateThreadsShouldRun.set(true);
+        kernel.step(this);
+        updateThreadsShouldRun.set(false);
+
+        if (state != null) {
+            // not every kernel fills it while updating the positions
+            if (stateToFill != null) {
+                writeState(state);
+                stateToFill = null;
+            }
+            stateSink.endStep(state);
+        }
+
+        if (crossValidate) {
+            referenceKernel.step(copies, copies.length, settings, accelerator);
+            double max = 0;
+            Vector3d delta = new Vector3d();
+            for (int i = 0; i < originals.length; i++) {
+                delta.set(originals[i].position).sub(copies[i].position);
+                if (settings.wrap) Range.wrapConnection(delta);
+                max = Math.max(max, delta.length());
+            }
+            maxDeviation = max;
+        }
+    }
+
+    /**
+     * Estimates the work for both kernels in units of checked pairs.
+     */
+    private PhysicsKernel chooseKernel() {
+        if (sleeping || tileCount > 1) return optimizedKernel;
+
+        double n = particleCount;
+        double containersPerAxis = Math.floor(1 / settings.rmax);
+        double containers = Math.pow(containersPerAxis, settings.dimensions);
+        // always the full neighborhood, with ghost copies if there are fewer than 3 containers per axis
+        double neighborhood = Math.pow(3, settings.dimensions);
+        // with evenly spread particles
+        double optimizedWork = n * n * neighborhood / containers + BINNING_COST * (n + containers);
+        double bruteForceWork = n * n * (specializeKernels ? BRUTE_FORCE_PAIR_COST_SPECIALIZED : BRUTE_FORCE_PAIR_COST_GENERIC);
+        return bruteForceWork < optimizedWork ? bruteForceKernel : optimizedKernel;
+    }
+
+    /**
+     * @return the kernel that did the last step
+     */
+    public PhysicsKernel getActiveKernel() {
+        return activeKernel;
+    }
+
+    /**
+     * @return the largest distance between a particle's position after the last cross-validated step
+     * and its position after the same step with the {@link #referenceKernel},
+     * or NaN if no step was cross-validated yet
+     * @see #crossValidationInterval
+     */
+    public double getMaxDeviation() {
+        return maxDeviation;
+    }
+
+    private final class OptimizedKernel implements PhysicsKernel {
+        @Override
+        public void step(Physics physics) {
+            if (physics != Physics.this) {
+                throw new IllegalArgumentException("This kernel can only update the Physics it belongs to.");
+            }
+            updateParticles();
+        }
+
+        @Override
+        public String getName() {
+            return "optimized";
+        }
     }
 
     private void updateParticles() {
+        if (tileCount > 1 && specializeKernels && !sleeping && settings.dimensions == 2) {
+            updateTiles();
+        } else {
+            updateAllParticles();
+        }
+    }
 
-        updateThreadsShouldRun.set(true);
+    private void updateAllParticles() {
 
         makeContainers();
 
-        loadDistributor.distributeLoadEvenly(particles.length, preferredNumberOfThreads, i -> {
-            if (!updateThreadsShouldRun.get()) return false;
-            updateVelocity(i);
+        // read everything that may change between steps exactly once
+        final VelocityKernel kernel = getVelocityKernel();
+        if (kernel != genericKernel) {
+            if (settings.dimensions == 3) {
+                containerGrid.build3D(particles, containers, nx, ny, nz, settings.wrap);
+            } else {
+                containerGrid.build(particles, containers, nx, ny, settings.wrap);
+            }
+        }
+        final Particle[] particles = this.particles;
+        final int n = particleCount;
+        final double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);
+        final double forceFactor = settings.rmax * settings.force * settings.dt;
+        final Matrix matrix = settings.matrix;
+
+        if (sleeping) {
+            prepareSleeping();
+
+            final int sleepSteps = this.sleepSteps;
+            final double maxVelocitySquared = sleepVelocityThreshold * sleepVelocityThreshold;
+            final double maxDeltaV = sleepAccelerationThreshold * settings.dt;
+            final double maxDeltaVSquared = maxDeltaV * maxDeltaV;
+
+            loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, i -> {
+                if (!updateThreadsShouldRun.get()) return false;
+                Particle p = particles[i];
+                if (p.quietSteps >= sleepSteps) {
+                    if (!isNeighborhoodDisturbed(p.position)) return true;  // keep sleeping
+                    p.quietSteps = 1;  // awake, but doesn't wake up its neighbors yet
+                }
+
+                double vx = p.velocity.x * frictionFactor;
+                double vy = p.velocity.y * frictionFactor;
+                double vz = p.velocity.z * frictionFactor;
+                kernel.updateVelocity(particles, containerGrid, matrix, frictionFactor, forceFactor, i);
+                double dvx = p.velocity.x - vx;
+                double dvy = p.velocity.y - vy;
+                double dvz = p.velocity.z - vz;
+
+                boolean quiet = p.velocity.lengthSquared() <= maxVelocitySquared
+                        && dvx * dvx + dvy * dvy + dvz * dvz <= maxDeltaVSquared;
+                p.quietSteps = quiet ? Math.min(p.quietSteps + 1, sleepSteps) : 0;
+                return true;
+            });
+            updatePositionsAndBin(true);
+        } else {
+            wasSleeping = false;
+            awakeCount = n;
+
+            loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, i -> {
+                if (!updateThreadsShouldRun.get()) return false;
+                kernel.updateVelocity(particles, containerGrid, matrix, frictionFactor, forceFactor, i);
+                return true;
+            });
+            updatePositionsAndBin(false);
+        }
+    }
+
+    /**
+     * Moves the particles and finds their new containers in the same pass,
+     * so each position is only read once.
+     * Also fills {@link #stateToFill} if it is set.
+     *
+     * @param skipSleeping whether sleeping particles should stay where they are
+     */
+    private void updatePositionsAndBin(boolean skipSleeping) {
+        final Particle[] particles = this.particles;
+        final int n = particleCount;
+        final int chunkCount = Math.max(1, Math.min(preferredNumberOfThreads, n));
+        final int containerCount = containers.length;
+        // summing up the histograms must not take longer than counting the particles again
+        final boolean withHistograms = (long) chunkCount * containerCount <= n;
+        if (withHistograms) {
+            if (containerHistograms.length < chunkCount) {
+                containerHistograms = Arrays.copyOf(containerHistograms, chunkCount);
+            }
+            for (int t = 0; t < chunkCount; t++) {
+                if (containerHistograms[t] == null || containerHistograms[t].length != containerCount) {
+                    containerHistograms[t] = new int[containerCount];
+                }
+            }
+        }
+        final int[][] histograms = containerHistograms;
+        final int sleepSteps = this.sleepSteps;
+
+        final ParticleState state = stateToFill;
+        final int typeCount = settings.matrix.size();
+        if (state != null) {
+            ensureSlots();
+            state.resize(n, typeCount, settings.dimensions);
+            state.slotVersion = slotVersion;
+            ensureChunkTypeCounts(chunkCount, typeCount);
+        }
+        final int[][] chunkTypeCounts = this.chunkTypeCounts;
+
+        loadDistributor.distributeLoadEvenly(chunkCount, chunkCount, t -> {
+            int start = (int) ((long) t * n / chunkCount);
+            int stop = (int) ((long) (t + 1) * n / chunkCount);
+            int[] histogram = withHistograms ? histograms[t] : null;
+            if (histogram != null) Arrays.fill(histogram, 0);
+            int[] chunkTypeCount = state != null ? chunkTypeCounts[t] : null;
+            if (chunkTypeCount != null) Arrays.fill(chunkTypeCount, 0);
+            for (int i = start; i < stop; i++) {
+                if (!updateThreadsShouldRun.get()) return false;
+                Particle p = particles[i];
+                if (!skipSleeping || p.quietSteps < sleepSteps) {
+                    updatePosition(p);
+                }
+                int ci = getContainerIndex(p.position);
+                p.container = ci;
+                if (histogram != null) histogram[ci]++;
+                if (state != null) {
+                    state.write(p.slot, p);
+                    chunkTypeCount[p.type]++;
+                }
+            }
+            return true;
+        });
+
+        if (state != null && updateThreadsShouldRun.get()) {
+            sumTypeCounts(chunkCount, state.typeCount);
+            stateToFill = null;
+        }
+
+        if (updateThreadsShouldRun.get()) {
+            binnedParticles = particles;
+            binnedContainerSize = containerSize;
+            binnedContainerCount = containerCount;
+            binnedHistogramCount = withHistograms ? chunkCount : 0;
+        } else {
+            binnedParticles = null;
+        }
+    }
+
+    private void updateTiles() {
+        // ensure that nx and ny are still OK
+        containerSize = settings.rmax;
+        calcNxNy();
+
+        final VelocityKernel kernel = getVelocityKernel();
+        if (kernel == genericKernel) {
+            // tiles need a specialized kernel
+            updateAllParticles();
+            return;
+        }
+
+        compact();
+        wasSleeping = false;
+        awakeCount = particleCount;
+        binnedParticles = null;
+
+        final TileDecomposition tiles = tileDecomposition;
+        final boolean wrap = settings.wrap;
+        final double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);
+        final double forceFactor = settings.rmax * settings.force * settings.dt;
+        final Matrix matrix = settings.matrix;
+
+        if (particlesVersion != tiledParticlesVersion) {
+            // the tiles don't know about added or removed particles yet
+            tiles.setGathered(null);
+            tiledParticlesVersion = particlesVersion;
+        }
+        final int n = tiles.layout(particles, particleCount, tileCount, nx, ny, containerSize);
+
+        // each phase must be finished for all tiles before the next one starts
+        loadDistributor.distributeLoadEvenly(n, n, t -> {
+            tiles.collectLeaving(t);
             return true;
         });
-        loadDistributor.distributeLoadEvenly(particles.length, preferredNumberOfThreads, i -> {
-            if (!updateThreadsShouldRun.get()) return false;
-            updatePosition(i);
+        loadDistributor.distributeLoadEvenly(n, n, t -> {
+            tiles.receiveAndSort(t);
+            return true;
+        });
+        loadDistributor.distributeLoadEvenly(n, n, t -> {
+            tiles.buildGrid(t, wrap);
             return true;
         });
 
-        updateThreadsShouldRun.set(false);
+        int count = tiles.computeOffsets();
+        final Particle[] target = particlesBuffer != null && particlesBuffer.length >= count
+                ? particlesBuffer : new Particle[Math.max(count, particles.length)];
+        loadDistributor.distributeLoadEvenly(n, n, t -> {
+            Particle[] tileParticles = tiles.getParticles(t);
+            ContainerGrid grid = tiles.getGrid(t);
+            int tileParticleCount = tiles.getParticleCount(t);
+            // the neighbors are read from the grid, which is a copy,
+            // so each particle can be moved right after its velocity was updated
+            for (int i = 0; i < tileParticleCount; i++) {
+                if (!updateThreadsShouldRun.get()) break;
+                kernel.updateVelocity(tileParticles, grid, matrix, frictionFactor, forceFactor, i);
+                updatePosition(tileParticles[i]);
+            }
+            tiles.gather(t, target);
+            return true;
+        });
+
+        particlesBuffer = particles;
+        particles = target;
+        particleCount = count;
+        tiles.setGathered(target);
+    }
+
+    /**
+     * Copies the particles into the given state, in a separate pass.
+     * This is also used for kernels that don't fill {@link #stateToFill} themselves.
+     * Must not be called while {@link #update()} is running.
+     */
+    public void writeState(ParticleState state) {
+        compact();
+        ensureSlots();
+        final Particle[] particles = this.particles;
+        final int n = particleCount;
+        final int chunkCount = Math.max(1, Math.min(preferredNumberOfThreads, n));
+        final int typeCount = settings.matrix.size();
+        state.resize(n, typeCount, settings.dimensions);
+        state.slotVersion = slotVersion;
+        ensureChunkTypeCounts(chunkCount, typeCount);
+        final int[][] chunkTypeCounts = this.chunkTypeCounts;
+
+        loadDistributor.distributeLoadEvenly(chunkCount, chunkCount, t -> {
+            int start = (int) ((long) t * n / chunkCount);
+            int stop = (int) ((long) (t + 1) * n / chunkCount);
+            int[] chunkTypeCount = chunkTypeCounts[t];
+            Arrays.fill(chunkTypeCount, 0);
+            for (int i = start; i < stop; i++) {
+                Particle p = particles[i];
+                state.write(p.slot, p);
+                chunkTypeCount[p.type]++;
+            }
+            return true;
+        });
+        sumTypeCounts(chunkCount, state.typeCount);
+    }
+
+    /**
+     * Checks that the slots of the particles are still 0 to n-1, each used once.
+     * If not (e.g. because particles were added or removed), the slots are assigned anew
+     * in the current order of the particles.
+     * Only looks at the particles if they were added, removed or replaced since the last check.
+     */
+    private void ensureSlots() {
+        final Particle[] particles = this.particles;
+        final int n = particleCount;
+        if (particlesVersion == slottedParticlesVersion && n == slottedParticleCount) return;
+        slottedParticlesVersion = particlesVersion;
+        slottedParticleCount = n;
+        if (slotMarks.length < n) {
+            slotMarks = new int[Math.max(n, slotMarks.length + slotMarks.length / 2)];
+            slotMark = 0;
+        }
+        if (++slotMark == 0) {
+            // wrapped around, old marks could be mistaken for new ones
+            Arrays.fill(slotMarks, 0);
+            slotMark = 1;
+        }
+        boolean valid = true;
+        for (int i = 0; i < n; i++) {
+            int slot = particles[i].slot;
+            if (slot < 0 || slot >= n || slotMarks[slot] == slotMark) {
+                valid = false;
+                break;
+            }
+            slotMarks[slot] = slotMark;
+        }
+        if (!valid) {
+            for (int i = 0; i < n; i++) {
+                particles[i].slot = i;
+            }
+            slotVersion = nextSlotVersion();
+        }
+    }
+
+    /**
+     * Unique across all instances, so that states of different physics are never mistaken for each other.
+     */
+    private static long nextSlotVersion() {
+        return slotVersions.incrementAndGet();
+    }
+
+    private void ensureChunkTypeCounts(int chunkCount, int typeCount) {
+        if (chunkTypeCounts.length < chunkCount) {
+            chunkTypeCounts = Arrays.copyOf(chunkTypeCounts, chunkCount);
+        }
+        for (int t = 0; t < chunkCount; t++) {
+            if (chunkTypeCounts[t] == null || chunkTypeCounts[t].length != typeCount) {
+                chunkTypeCounts[t] = new int[typeCount];
+            }
+        }
+    }
+
+    private void sumTypeCounts(int chunkCount, int[] typeCount) {
+        Arrays.fill(typeCount, 0);
+        for (int t = 0; t < chunkCount; t++) {
+            int[] chunkTypeCount = chunkTypeCounts[t];
+            for (int type = 0; type < typeCount.length; type++) {
+                typeCount[type] += chunkTypeCount[type];
+            }
+        }
+    }
+
+    private VelocityKernel getVelocityKernel() {
+        if (!specializeKernels) return genericKernel;
+
+        KernelConstants constants = KernelConstants.of(settings, nx, ny, nz, accelerator);
+        if (!constants.equals(velocityKernelConstants)) {
+            try {
+                velocityKernel = KernelGenerator.get(constants);
+            } catch (ReflectiveOperationException | IOException e) {
+                e.printStackTrace();
+                System.err.println("Could not generate velocity kernel, using generic implementation instead.");
+                specializeKernels = false;
+                return genericKernel;
+            }
+            velocityKernelConstants = constants;
+        }
+        return velocityKernel;
+    }
+
+    /**
+     * Wakes up all particles if sleeping was just turned on or if anything changed
+     * that could set sleeping particles in motion, and finds the containers with moving particles.
+     * Must be called after {@link #makeContainers()}.
+     */
+    private void prepareSleeping() {
+        // dt is ignored, as it may change in every step
+        if (settingsBeforeSleeping != null) settingsBeforeSleeping.dt = settings.dt;
+        if (!wasSleeping || accelerator != acceleratorBeforeSleeping || !settings.equals(settingsBeforeSleeping)) {
+            wakeAll();
+            settingsBeforeSleeping = settings.deepCopy();
+            acceleratorBeforeSleeping = accelerator;
+        }
+        wasSleeping = true;
+
+        if (disturbedContainers.length != containers.length) {
+            disturbedContainers = new boolean[containers.length];
+        }
+        awakeCount = 0;
+        for (int ci = 0; ci < containers.length; ci++) {
+            int start = ci == 0 ? 0 : containers[ci - 1];
+            int stop = containers[ci];
+            boolean disturbed = false;
+            for (int j = start; j < stop; j++) {
+                int quietSteps = particles[j].quietSteps;
+                if (quietSteps == 0) disturbed = true;
+                if (quietSteps < sleepSteps) awakeCount++;
+            }
+            disturbedContainers[ci] = disturbed;
+        }
+        for (Vector3d position : disturbances) {
+            Vector3d p = new Vector3d(position);
+            ensurePosition(p);
+            disturbedContainers[getContainerIndex(p)] = true;
+        }
+        disturbances.clear();
+    }
+
+    private boolean isNeighborhoodDisturbed(Vector3d position) {
+        int ci0 = getContainerIndex(position);
+        int cx0 = ci0 % nx;
+        int cy0 = ci0 / nx % ny;
+        int cz0 = ci0 / (nx * ny);
+        for (int[] containerNeighbor : containerNeighborhood) {
+            int ci = getNeighborContainerIndex(cx0, cy0, cz0, containerNeighbor);
+            if (ci != -1 && disturbedContainers[ci]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes the particle move again if it was sleeping.
+     * Its neighbors will wake up as well in the next step.
+     * Call this after changing a particle's position, velocity or type yourself.
+     *
+     * @see #sleeping
+     */
+    public void wake(Particle p) {
+        p.quietSteps = 0;
+        binnedParticles = null;
+    }
+
+    /**
+     * Wakes up all particles.
+     *
+     * @see #sleeping
+     */
+    public void wakeAll() {
+        for (int i = 0; i < particleCount; i++) {
+            particles[i].quietSteps = 0;
+        }
+        binnedParticles = null;
+    }
+
+    /**
+     * Wakes up the particles around the given position in the next step,
+     * e.g. after a particle at that position was removed.
+     *
+     * @see #sleeping
+     */
+    public void disturb(Vector3d position) {
+        disturbances.add(new Vector3d(position));
+    }
+
+    /**
+     * @return how many particles were awake at the start of the last {@link #update()}
+     * (all of them if {@link #sleeping} is off)
+     */
+    public int getAwakeCount() {
+        return awakeCount;
     }
 
     /**
@@ -140,6 +806,7 @@ public class Physics {
      */
     public void kill() {
         loadDistributor.kill();
+        bruteForceKernel.kill();
     }
 
     /**
@@ -147,7 +814,11 @@ public class Physics {
      * If the particle count changed, new particles will be created using the active position setter.
      */
     public void setPositions() {
-        Arrays.stream(particles).forEach(this::setPosition);
+        compact();
+        for (int i = 0; i < particleCount; i++) {
+            setPosition(particles[i]);
+        }
+        slotVersion = nextSlotVersion();  // the particles jumped
     }
 
     public void generateMatrix() {
@@ -158,17 +829,14 @@ public class Physics {
     }
 
     /**
-     * Set the size of the particle array.<br>
+     * Sets the number of particles.<br>
      * <br>
-     * If the particle array is null, a new array will be created.
-     * If n is greater than the current particle array size, new particles will be
-     * created.
-     * If n is smaller than the current particle array size, random particles will
-     * be removed.
-     * In that case, the order of the particles in the array will be random
-     * afterwards.<br>
-     * New particles will be created using the active position setter.
-     * 
+     * If n is greater than the current particle count, new particles will be
+     * created using the active position setter and added to the end.
+     * If n is smaller than the current particle count, random particles will
+     * be removed.<br>
+     * Either way, this takes time proportional to the change, not to the particle count.
+     *
      * @param n The new number of particles. Must be 0 or greater.
      */
     public void setParticleCount(int n) {
@@ -177,31 +845,131 @@ public class Physics {
             for (int i = 0; i < n; i++) {
                 particles[i] = generateParticle();
             }
-        } else if (n != particles.length) {
-            // strategy: if the array size changed, try to keep most of the particles
+            particleCount = n;
+            particlesVersion++;
+            return;
+        }
+        compact();
+        if (n < particleCount) {
+            // move random particles to the end and cut them off
+            // (removing the last ones would remove whole containers, which would be visible)
+            for (int i = particleCount - 1; i >= n; i--) {
+                int j = (int) (Math.random() * (i + 1));
+                Particle h = particles[i];
+                particles[i] = particles[j];
+                particles[j] = h;
+            }
+            Arrays.fill(particles, n, particleCount, null);
+            particleCount = n;
+            particlesVersion++;
+            binnedParticles = null;
+        } else {
+            ensureCapacity(n);
+            while (particleCount < n) {
+                addParticle(generateParticle());
+            }
+        }
+    }
+
+    /**
+     * @return the number of particles, including the ones that are marked as removed
+     * but are still in {@link #particles}
+     */
+    public int getParticleCount() {
+        return particleCount;
+    }
 
-            Particle[] newParticles = new Particle[n];
+    /**
+     * @return a new array with exactly the particles, without removed ones
+     */
+    public Particle[] getParticles() {
+        compact();
+        return Arrays.copyOf(particles, particleCount);
+    }
 
-            if (n < particles.length) { // array becomes shorter
-                // randomly shuffle particles first
-                // (otherwise, the container layout becomes visible)
-                shuffleParticles();
+    /**
+     * Replaces all particles. The array is used as it is, so all of its entries must be particles.
+     */
+    public void setParticles(Particle[] particles) {
+        this.particles = particles;
+        particleCount = particles.length;
+        removedCount = 0;
+        for (Particle p : particles) {
+            p.removed = false;
+        }
+        particlesVersion++;
+        binnedParticles = null;
+    }
 
-                // copy previous array as far as possible
-                for (int i = 0; i < n; i++) {
-                    newParticles[i] = particles[i];
-                }
-            } else { // array becomes longer
-                // copy old array and add particles to the end
-                for (int i = 0; i < particles.length; i++) {
-                    newParticles[i] = particles[i];
-                }
-                for (int i = particles.length; i < n; i++) {
-                    newParticles[i] = generateParticle();
-                }
-            }
-            particles = newParticles;
+    /**
+     * Adds the particle to the end of {@link #particles}.
+     * The array grows by half when it is full, so adding takes constant time on average.
+     * The particle's position should already be set, it's wrapped or clamped here.
+     */
+    public void addParticle(Particle p) {
+        ensureCapacity(particleCount + 1);
+        ensurePosition(p.position);
+        p.removed = false;
+        p.quietSteps = 0;
+        if (binnedParticles == particles) {
+            // keep the containers that the last position update found valid
+            p.container = getContainerIndex(p.position);
+            if (binnedHistogramCount > 0) containerHistograms[0][p.container]++;
         }
+        particles[particleCount++] = p;
+        particlesVersion++;
+    }
+
+    /**
+     * Marks the particle as removed, in constant time.
+     * It's dropped from {@link #particles} at the start of the next {@link #update()},
+     * while the particles are sorted into containers anyway.
+     * Until then, it's still in the array.
+     *
+     * @param p must be one of the particles
+     * @return false if the particle was already removed
+     */
+    public boolean removeParticle(Particle p) {
+        if (p.removed) return false;
+        p.removed = true;
+        removedCount++;
+        if (binnedParticles == particles && binnedHistogramCount > 0) {
+            // the histograms are only ever summed up, so it doesn't matter which one is corrected
+            containerHistograms[0][p.container]--;
+        }
+        particlesVersion++;
+        return true;
+    }
+
+    /**
+     * @return a number that changes whenever particles are added or removed, or all of them are replaced,
+     * e.g. to tell whether a copy of the particles is still complete
+     */
+    public long getParticlesVersion() {
+        return particlesVersion;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= particles.length) return;
+        Particle[] grown = Arrays.copyOf(particles, Math.max(capacity, particles.length + particles.length / 2));
+        if (binnedParticles == particles) binnedParticles = grown;
+        particles = grown;
+    }
+
+    /**
+     * Drops the particles that are marked as removed from {@link #particles}, keeping the order of the others.
+     */
+    protected final void compact() {
+        if (removedCount == 0) return;
+        int kept = 0;
+        for (int i = 0; i < particleCount; i++) {
+            Particle p = particles[i];
+            if (!p.removed) particles[kept++] = p;
+        }
+        Arrays.fill(particles, kept, particleCount, null);
+        particleCount = kept;
+        removedCount = 0;
+        binnedParticles = null;
     }
 
     /**
@@ -228,9 +996,13 @@ public class Physics {
 
         // copy as much as possible from previous matrix
         int commonSize = Math.min(prevSize, newSize);
-        for (int i = 0; i < commonSize; i++) {
-            for (int j = 0; j < commonSize; j++) {
-                settings.matrix.set(i, j, prevMatrix.get(i, j));
+        if (settings.matrix instanceof SparseMatrix sparseMatrix) {
+            sparseMatrix.copyBlock(prevMatrix, commonSize);
+        } else {
+            for (int i = 0; i < commonSize; i++) {
+                for (int j = 0; j < commonSize; j++) {
+                    settings.matrix.set(i, j, prevMatrix.get(i, j));
+                }
             }
         }
 
@@ -246,7 +1018,8 @@ public class Physics {
      * are assigned a new type using the current {@link #typeSetter type setter}.
      */
     public void ensureTypes() {
-        for (Particle p : particles) {
+        for (int i = 0; i < particleCount; i++) {
+            Particle p = particles[i];
             if (p.type >= settings.matrix.size()) {
                 setType(p);
             }
@@ -258,8 +1031,9 @@ public class Physics {
      * (i.e. if particles are treated differently depending on their position in the
      * array).
      */
-    private void shuffleParticles() {
-        Collections.shuffle(Arrays.asList(particles));
+    protected final void shuffleParticles() {
+        compact();
+        Collections.shuffle(Arrays.asList(particles).subList(0, particleCount));
     }
 
     /**
@@ -278,11 +1052,15 @@ public class Physics {
     }
 
     protected final void setPosition(Particle p) {
+        // position setters that only set x and y spread the particles over the whole depth in 3D
+        p.position.set(0.5, 0.5, Math.random());
         positionSetter.set(p.position, p.type, settings.matrix.size());
         ensurePosition(p.position);
         p.velocity.x = 0;
         p.velocity.y = 0;
         p.velocity.z = 0;
+        p.quietSteps = 0;
+        binnedParticles = null;
     }
 
     private void makeContainers() {
@@ -294,20 +1072,48 @@ public class Physics {
         //     makeContainerNeighborhood();
         // }
 
+        if (containerNeighborhood.length != (settings.dimensions == 3 ? 27 : 9)) {
+            makeContainerNeighborhood();
+        }
+
         // init arrays
-        if (containers == null || containers.length != nx * ny) {
-            containers = new int[nx * ny];
+        if (containers == null || containers.length != nx * ny * nz) {
+            containers = new int[nx * ny * nz];
         }
         Arrays.fill(containers, 0);
-        if (particlesBuffer == null || particlesBuffer.length != particles.length) {
+        if (particlesBuffer == null || particlesBuffer.length < particleCount) {
             particlesBuffer = new Particle[particles.length];
         }
+        final Particle[] particles = this.particles;
+        final int n = particleCount;
 
         // calculate container capacity
-        for (Particle p : particles) {
-            int ci = getContainerIndex(p.position);
-            containers[ci]++;
+        if (binnedParticles == particles && binnedContainerSize == containerSize
+                && binnedContainerCount == containers.length) {
+            // the last position update already found the containers
+            if (binnedHistogramCount > 0) {
+                for (int t = 0; t < binnedHistogramCount; t++) {
+                    int[] histogram = containerHistograms[t];
+                    for (int ci = 0; ci < containers.length; ci++) {
+                        containers[ci] += histogram[ci];
+                    }
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    Particle p = particles[i];
+                    if (!p.removed) containers[p.container]++;
+                }
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                Particle p = particles[i];
+                if (p.removed) continue;
+                int ci = getContainerIndex(p.position);
+                p.container = ci;
+                containers[ci]++;
+            }
         }
+        binnedParticles = null;  // used up
 
         // capacity -> index
         int offset = 0;
@@ -317,18 +1123,21 @@ public class Physics {
             offset += cap;
         }
 
-        // fill particles into containers
-        for (Particle p : particles) {
-            int ci = getContainerIndex(p.position);
+        // fill particles into containers, leaving out removed particles
+        for (int j = 0; j < n; j++) {
+            Particle p = particles[j];
+            if (p.removed) continue;
+            int ci = p.container;
             int i = containers[ci];
             particlesBuffer[i] = p;
             containers[ci]++; // for next access
         }
 
         // swap buffers
-        Particle[] h = particles;
-        particles = particlesBuffer;
-        particlesBuffer = h;
+        this.particles = particlesBuffer;
+        particlesBuffer = particles;
+        particleCount = offset;
+        removedCount = 0;
     }
 
     /**
@@ -340,6 +1149,7 @@ public class Physics {
     private int getContainerIndex(Vector3d position) {
         int cx = (int) (position.x / containerSize);
         int cy = (int) (position.y / containerSize);
+        int cz = (int) (position.z / containerSize);
 
         // for solid borders
         if (cx == nx) {
@@ -348,8 +1158,31 @@ public class Physics {
         if (cy == ny) {
             cy = ny - 1;
         }
+        if (cz >= nz) {
+            cz = nz - 1;
+        }
+
+        return cx + cy * nx + cz * nx * ny;
+    }
 
-        return cx + cy * nx;
+    /**
+     * @return the index of the container at the given offset from container (cx0, cy0, cz0),
+     * or -1 if there is no such container (because the world doesn't wrap around)
+     */
+    private int getNeighborContainerIndex(int cx0, int cy0, int cz0, int[] containerNeighbor) {
+        int cx = cx0 + containerNeighbor[0];
+        int cy = cy0 + containerNeighbor[1];
+        int cz = cz0 + containerNeighbor[2];
+        if (settings.wrap) {
+            cx = wrapContainerX(cx);
+            cy = wrapContainerY(cy);
+            cz = wrapContainerZ(cz);
+        } else {
+            if (cx < 0 || cx >= nx || cy < 0 || cy >= ny || cz < 0 || cz >= nz) {
+                return -1;
+            }
+        }
+        return cx + cy * nx + cz * nx * ny;
     }
 
     private int wrapContainerX(int cx) {
@@ -372,8 +1205,19 @@ public class Physics {
         }
     }
 
+    private int wrapContainerZ(int cz) {
+        if (cz < 0) {
+            return cz + nz;
+        } else if (cz >= nz) {
+            return cz - nz;
+        } else {
+            return cz;
+        }
+    }
+
     protected final void setType(Particle p) {
         p.type = typeSetter.getType(new Vector3d(p.position), new Vector3d(p.velocity), p.type, settings.matrix.size());
+        p.quietSteps = 0;
     }
 
     private void updateVelocity(int i) {
@@ -385,19 +1229,11 @@ public class Physics {
 
         int cx0 = (int) Math.floor(p.position.x / containerSize);
         int cy0 = (int) Math.floor(p.position.y / containerSize);
+        int cz0 = Math.min((int) Math.floor(p.position.z / containerSize), nz - 1);
 
         for (int[] containerNeighbor : containerNeighborhood) {
-            int cx = cx0 + containerNeighbor[0];
-            int cy = cy0 + containerNeighbor[1];
-            if (settings.wrap) {
-                cx = wrapContainerX(cx);
-                cy = wrapContainerY(cy);
-            } else {
-                if (cx < 0 || cx >= nx || cy < 0 || cy >= ny) {
-                    continue;
-                }
-            }
-            int ci = cx + cy * nx;
+            int ci = getNeighborContainerIndex(cx0, cy0, cz0, containerNeighbor);
+            if (ci == -1) continue;
 
             int start = ci == 0 ? 0 : containers[ci - 1];
             int stop = containers[ci];
@@ -422,9 +1258,7 @@ public class Physics {
         }
     }
 
-    private void updatePosition(int i) {
-        Particle p = particles[i];
-
+    private void updatePosition(Particle p) {
         // pos += vel * dt;
         p.velocity.mulAdd(settings.dt, p.position, p.position);
 
@@ -463,6 +1297,7 @@ public class Physics {
      * multiples of 1.
      * </li>
      * </ul>
+     * In 2D, the z-coordinate is set to 0.
      * This method is called by {@link #update()} after changing the particles'
      * positions.
      * It is just exposed for convenience.
@@ -473,14 +1308,23 @@ public class Physics {
      * @param position
      */
     public void ensurePosition(Vector3d position) {
+        ensurePosition(position, settings);
+    }
+
+    static void ensurePosition(Vector3d position, PhysicsSettings settings) {
         if (settings.wrap) {
             Range.wrap(position);
         } else {
             Range.clamp(position);
         }
+        if (settings.dimensions == 2) {
+            position.z = 0;
+        }
     }
 
     public void setTypes() {
-        Arrays.stream(particles).forEach(p -> setType(p));
+        for (int i = 0; i < particleCount; i++) {
+            setType(particles[i]);
+        }
     }
 }
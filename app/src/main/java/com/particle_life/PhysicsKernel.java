@@ -0,0 +1,26 @@
+package com.particle_life;
+
+/**
+ * Engine that advances the particles of a {@link Physics} by one step.
+ * <p>
+ * Kernels may trade accuracy for speed, so {@link Physics} can repeat a step with its
+ * {@link Physics#referenceKernel} from time to time and report the difference
+ * (see {@link Physics#crossValidationInterval}).
+ */
+public interface PhysicsKernel {
+
+    /**
+     * Updates the velocities and positions of <code>physics.particles</code> for one time step
+     * of <code>physics.settings.dt</code>, using <code>physics.accelerator</code>.
+     * Afterwards, all positions must be in the range given by the settings (see {@link Physics#ensurePosition}).
+     * <p>
+     * The particles may be reordered,
+     * or <code>physics.particles</code> may be replaced by another array with the same particle objects.
+     */
+    void step(Physics physics);
+
+    /**
+     * @return a short name to show to the user
+     */
+    String getName();
+}
@@ -35,6 +35,14 @@ public class PhysicsSettings {
      * Time that is assumed to have passed between each simulation step, in seconds.
      */
     public double dt = 0.02f;
+
+    /**
+     * 2 or 3.
+     * In 2D, the z-coordinates of all positions are kept at 0.
+     * In 3D, the world is the unit cube and particles interact within a sphere of radius rmax.
+     */
+    public int dimensions = 2;
+
     public Matrix matrix = new DefaultMatrix(6);
 
     public PhysicsSettings() {
@@ -48,6 +56,7 @@ public class PhysicsSettings {
         p.friction = friction;
         p.force = force;
         p.dt = dt;
+        p.dimensions = dimensions;
         p.matrix = matrix.deepCopy();
 
         return p;
@@ -62,6 +71,7 @@ public class PhysicsSettings {
             if (s.friction != friction) return false;
             if (s.force != force) return false;
             if (s.dt != dt) return false;
+            if (s.dimensions != dimensions) return false;
             if (!s.matrix.equals(matrix)) return false;
 
             return true;
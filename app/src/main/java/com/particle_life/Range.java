@@ -4,6 +4,7 @@ import org.joml.Vector3d;
 
 /**
  * Provides functions for assuring that the coordinates of particles are in [0, 1].
+ * <p>All three coordinates are treated the same way, so 2D positions (with z = 0) stay 2D.
  * <p>Two approaches are possible:
  * <ol>
  *     <li>{@link #clamp(Vector3d) Range.clamp(x)}<p>
@@ -40,7 +41,7 @@ public class Range {
     public static void wrap(Vector3d x) {
         x.x = wrap(x.x);
         x.y = wrap(x.y);
-        x.z = 0;  //todo 3D
+        x.z = wrap(x.z);
     }
 
     private static double wrap(double value) {
@@ -68,7 +69,7 @@ public class Range {
     public static void wrapConnection(Vector3d x) {
         x.x = wrapConnection(x.x);
         x.y = wrapConnection(x.y);
-        x.z = 0;  //todo 3D
+        x.z = wrapConnection(x.z);
     }
 
     private static double wrapConnection(double value) {
@@ -83,7 +84,7 @@ public class Range {
     public static void clamp(Vector3d x) {
         x.x = clamp(x.x);
         x.y = clamp(x.y);
-        x.z = 0;  // todo 3D
+        x.z = clamp(x.z);
     }
 
     private static double clamp(double val) {
@@ -0,0 +1,144 @@
+package com.particle_life;
+
+import org.joml.Vector3d;
+
+import java.util.Arrays;
+
+/**
+ * The straightforward implementation of a step:
+ * particles are binned into containers of size rmax, and each particle looks at the particles
+ * in its own and the neighboring containers, wrapping the connection for every pair if necessary.
+ * <p>
+ * This is single-threaded and not optimized at all, so that it's easy to see that it's correct.
+ * Use it to check other kernels against.
+ * Unlike the other kernels, it doesn't visit a container twice if there are fewer than 3 containers per axis.
+ */
+public class ReferenceKernel implements PhysicsKernel {
+
+    /**
+     * Indices of the particles, sorted by containers.
+     */
+    private int[] sorted = new int[0];
+    /**
+     * For each container, the index in {@link #sorted} after its last particle.
+     */
+    private int[] containers = new int[0];
+
+    @Override
+    public void step(Physics physics) {
+        step(physics.particles, physics.getParticleCount(), physics.settings, physics.accelerator);
+    }
+
+    @Override
+    public String getName() {
+        return "reference";
+    }
+
+    /**
+     * Same as {@link #step(Physics)}, but doesn't reorder the particles.
+     *
+     * @param particleCount number of particles at the start of <code>particles</code>
+     */
+    public void step(Particle[] particles, int particleCount, PhysicsSettings settings, Accelerator accelerator) {
+        final double rmax = settings.rmax;
+        final int n = (int) Math.floor(1 / rmax);
+        final int nz = settings.dimensions == 3 ? n : 1;
+
+        // bin
+        if (containers.length != n * n * nz) containers = new int[n * n * nz];
+        if (sorted.length != particleCount) sorted = new int[particleCount];
+        Arrays.fill(containers, 0);
+        for (int i = 0; i < particleCount; i++) {
+            containers[getContainerIndex(particles[i].position, rmax, n, nz)]++;
+        }
+        int offset = 0;
+        for (int ci = 0; ci < containers.length; ci++) {
+            int count = containers[ci];
+            containers[ci] = offset;
+            offset += count;
+        }
+        for (int i = 0; i < particleCount; i++) {
+            sorted[containers[getContainerIndex(particles[i].position, rmax, n, nz)]++] = i;
+        }
+
+        // velocities
+        final double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);
+        final double forceFactor = rmax * settings.force * settings.dt;
+        int[] neighborsX = new int[3];
+        int[] neighborsY = new int[3];
+        int[] neighborsZ = new int[3];
+        for (int i = 0; i < particleCount; i++) {
+            Particle p = particles[i];
+            p.velocity.mul(frictionFactor);
+
+            int ci0 = getContainerIndex(p.position, rmax, n, nz);
+            int countX = getNeighbors(ci0 % n, n, settings.wrap, neighborsX);
+            int countY = getNeighbors(ci0 / n % n, n, settings.wrap, neighborsY);
+            int countZ = getNeighbors(ci0 / (n * n), nz, settings.wrap, neighborsZ);
+
+            for (int z = 0; z < countZ; z++) {
+                for (int y = 0; y < countY; y++) {
+                    for (int x = 0; x < countX; x++) {
+                        int ci = neighborsX[x] + neighborsY[y] * n + neighborsZ[z] * n * n;
+                        int start = ci == 0 ? 0 : containers[ci - 1];
+                        int stop = containers[ci];
+                        for (int k = start; k < stop; k++) {
+                            int j = sorted[k];
+                            if (i == j) continue;
+                            Particle q = particles[j];
+
+                            Vector3d relativePosition = new Vector3d(q.position).sub(p.position);
+                            if (settings.wrap) {
+                                Range.wrapConnection(relativePosition);
+                            }
+
+                            double distanceSquared = relativePosition.lengthSquared();
+                            if (distanceSquared != 0 && distanceSquared <= rmax * rmax) {
+                                relativePosition.div(rmax);
+                                Vector3d deltaV = accelerator.accelerate(settings.matrix.get(p.type, q.type), relativePosition);
+                                p.velocity.add(deltaV.mul(forceFactor));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // positions
+        for (int i = 0; i < particleCount; i++) {
+            Particle p = particles[i];
+            p.velocity.mulAdd(settings.dt, p.position, p.position);
+            Physics.ensurePosition(p.position, settings);
+        }
+    }
+
+    private static int getContainerIndex(Vector3d position, double containerSize, int n, int nz) {
+        int cx = Math.min((int) (position.x / containerSize), n - 1);
+        int cy = Math.min((int) (position.y / containerSize), n - 1);
+        int cz = Math.min((int) (position.z / containerSize), nz - 1);
+        return cx + cy * n + cz * n * n;
+    }
+
+    /**
+     * Writes the distinct containers next to (and including) container <code>c</code> on one axis to <code>out</code>.
+     *
+     * @return how many containers were written
+     */
+    private static int getNeighbors(int c, int n, boolean wrap, int[] out) {
+        int count = 0;
+        for (int d = -1; d <= 1; d++) {
+            int neighbor = c + d;
+            if (wrap) {
+                neighbor = Math.floorMod(neighbor, n);
+            } else if (neighbor < 0 || neighbor >= n) {
+                continue;
+            }
+            boolean seen = false;
+            for (int k = 0; k < count; k++) {
+                if (out[k] == neighbor) seen = true;
+            }
+            if (!seen) out[count++] = neighbor;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,148 @@
+package com.particle_life;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Updates only the particles inside a horizontal strip of container rows,
+ * given copies of the particles in the rows directly above and below the strip (the halo).
+ * <p>
+ * This does for one strip what {@link Physics} does with several tiles (see {@link Physics#tileCount}),
+ * but the halo is passed in explicitly, so the strips can live in different processes.
+ * Moving particles between strips is left to the caller.
+ * <p>
+ * The rows are laid out like in {@link Physics}: there are {@link #getRowCount(double)} rows,
+ * each <code>rmax</code> high, and the last row also holds everything below it.
+ * Only 2D is supported.
+ */
+public class RegionStepper {
+
+    public int preferredNumberOfThreads = 12;
+    private final LoadDistributor loadDistributor = new LoadDistributor();
+
+    private Particle[] sortBuffer = new Particle[0];
+    private int[] containers = new int[0];
+    private Particle[] haloAbove = new Particle[0];
+    private int[] haloAboveContainers = new int[0];
+    private Particle[] haloBelow = new Particle[0];
+    private int[] haloBelowContainers = new int[0];
+    private final ContainerGrid grid = new ContainerGrid();
+
+    private KernelConstants kernelConstants = null;
+    private VelocityKernel kernel = null;
+
+    /**
+     * @return the number of container rows (and columns) for the given <code>rmax</code>
+     */
+    public static int getRowCount(double rmax) {
+        return (int) Math.floor(1 / rmax);
+    }
+
+    /**
+     * @return the container row that a particle at height <code>y</code> belongs to
+     */
+    public static int getRow(double y, double rmax) {
+        return ContainerGrid.getRow(y, getRowCount(rmax), rmax);
+    }
+
+    /**
+     * Updates velocities and positions of the first <code>count</code> particles, which must all be
+     * inside the rows <code>firstRow</code> to <code>firstRow + rows - 1</code>.
+     * Afterwards, their positions are wrapped or clamped, so some of them may have left the strip.
+     * <p>
+     * The particles are reordered in place (sorted by containers).
+     * The halo particles are only read; they must be the particles in the row above <code>firstRow</code>
+     * and in the row after the last row of the strip, with unshifted positions.
+     * For the first and last row of the world, the halo is the opposite border row if <code>settings.wrap</code>
+     * is true, and is ignored otherwise.
+     *
+     * @throws IllegalArgumentException if <code>settings.dimensions</code> is not 2
+     * @throws IllegalStateException    if no velocity kernel could be generated
+     */
+    public void update(PhysicsSettings settings, Accelerator accelerator,
+                       Particle[] particles, int count, int firstRow, int rows,
+                       Particle[] haloAbove, int haloAboveCount,
+                       Particle[] haloBelow, int haloBelowCount) {
+
+        if (settings.dimensions != 2) {
+            throw new IllegalArgumentException("RegionStepper only supports 2D, got " + settings.dimensions + " dimensions");
+        }
+
+        final double containerSize = settings.rmax;
+        final int nx = getRowCount(settings.rmax);
+        final int ny = nx;
+        final int lastRow = firstRow + rows - 1;
+
+        // own particles
+        if (containers.length != nx * rows) containers = new int[nx * rows];
+        if (sortBuffer.length < count) sortBuffer = new Particle[count];
+        ContainerGrid.sortIntoContainers(particles, count, sortBuffer, containers, nx, ny, firstRow, containerSize);
+        System.arraycopy(sortBuffer, 0, particles, 0, count);
+        Arrays.fill(sortBuffer, 0, count, null);
+
+        // halo
+        final int rowAbove = (firstRow + ny - 1) % ny;
+        final int rowBelow = (lastRow + 1) % ny;
+        if (haloAboveContainers.length != nx) haloAboveContainers = new int[nx];
+        if (haloBelowContainers.length != nx) haloBelowContainers = new int[nx];
+        if (this.haloAbove.length < haloAboveCount) this.haloAbove = new Particle[haloAboveCount];
+        if (this.haloBelow.length < haloBelowCount) this.haloBelow = new Particle[haloBelowCount];
+        ContainerGrid.sortIntoContainers(haloAbove, haloAboveCount, this.haloAbove, haloAboveContainers,
+                nx, ny, rowAbove, containerSize);
+        ContainerGrid.sortIntoContainers(haloBelow, haloBelowCount, this.haloBelow, haloBelowContainers,
+                nx, ny, rowBelow, containerSize);
+
+        grid.begin(nx, rows, firstRow);
+        if (firstRow > 0) {
+            grid.addRow(this.haloAbove, haloAboveContainers, 0, 0, settings.wrap);
+        } else if (settings.wrap) {
+            grid.addRow(this.haloAbove, haloAboveContainers, 0, -1, true);
+        } else {
+            grid.addEmptyRow();
+        }
+        for (int cy = 0; cy < rows; cy++) {
+            grid.addRow(particles, containers, cy, 0, settings.wrap);
+        }
+        if (lastRow < ny - 1) {
+            grid.addRow(this.haloBelow, haloBelowContainers, 0, 0, settings.wrap);
+        } else if (settings.wrap) {
+            grid.addRow(this.haloBelow, haloBelowContainers, 0, 1, true);
+        } else {
+            grid.addEmptyRow();
+        }
+        grid.end();
+        Arrays.fill(this.haloAbove, 0, haloAboveCount, null);
+        Arrays.fill(this.haloBelow, 0, haloBelowCount, null);
+
+        final VelocityKernel kernel = getVelocityKernel(settings, nx, ny, accelerator);
+        final double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);
+        final double forceFactor = settings.rmax * settings.force * settings.dt;
+        final Matrix matrix = settings.matrix;
+
+        // the grid holds copies of the positions, so positions can be updated right away
+        loadDistributor.distributeLoadEvenly(count, preferredNumberOfThreads, i -> {
+            kernel.updateVelocity(particles, grid, matrix, frictionFactor, forceFactor, i);
+            Particle p = particles[i];
+            p.velocity.mulAdd(settings.dt, p.position, p.position);
+            if (settings.wrap) {
+                Range.wrap(p.position);
+            } else {
+                Range.clamp(p.position);
+            }
+            return true;
+        });
+    }
+
+    private VelocityKernel getVelocityKernel(PhysicsSettings settings, int nx, int ny, Accelerator accelerator) {
+        KernelConstants constants = KernelConstants.of(settings, nx, ny, 1, accelerator);
+        if (!constants.equals(kernelConstants)) {
+            try {
+                kernel = KernelGenerator.get(constants);
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new IllegalStateException("Could not generate velocity kernel", e);
+            }
+            kernelConstants = constants;
+        }
+        return kernel;
+    }
+}
@@ -0,0 +1,276 @@
+package com.particle_life;
+
+import java.util.Arrays;
+
+/**
+ * Matrix in which most entries have the same default value.
+ * Only the other entries are stored, row by row (compressed sparse rows),
+ * so the memory needed grows with the number of stored entries instead of <code>size * size</code>.
+ * <p>
+ * {@link #get(int, int)} takes logarithmic time in the number of entries in the row.
+ * {@link #set(int, int, double)} may have to move all entries after the given one,
+ * so filling a large matrix entry by entry is slow.
+ */
+public class SparseMatrix implements Matrix {
+
+    public interface EntryConsumer {
+        void accept(int i, int j, double value);
+    }
+
+    private final int size;
+    private final double defaultValue;
+
+    /**
+     * The entries of row <code>i</code> are stored at the indices
+     * <code>rowStart[i]</code> (inclusive) to <code>rowStart[i + 1]</code> (exclusive),
+     * sorted by column.
+     */
+    private final int[] rowStart;
+    private int[] columns;
+    private double[] values;
+
+    public SparseMatrix(int size, double defaultValue) {
+        this.size = size;
+        this.defaultValue = defaultValue;
+        rowStart = new int[size + 1];
+        columns = new int[16];
+        values = new double[16];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public double getDefaultValue() {
+        return defaultValue;
+    }
+
+    /**
+     * @return the number of entries that are stored explicitly
+     */
+    public int getEntryCount() {
+        return rowStart[size];
+    }
+
+    @Override
+    public double get(int i, int j) {
+        int k = Arrays.binarySearch(columns, rowStart[i], rowStart[i + 1], j);
+        return k >= 0 ? values[k] : defaultValue;
+    }
+
+    @Override
+    public void set(int i, int j, double value) {
+        if (j < 0 || j >= size) throw new IndexOutOfBoundsException(j);
+
+        int start = rowStart[i];
+        int stop = rowStart[i + 1];
+        int k = Arrays.binarySearch(columns, start, stop, j);
+
+        if (k >= 0) {
+            if (value != defaultValue) {
+                values[k] = value;
+            } else {
+                // remove entry
+                int count = rowStart[size];
+                System.arraycopy(columns, k + 1, columns, k, count - k - 1);
+                System.arraycopy(values, k + 1, values, k, count - k - 1);
+                for (int r = i + 1; r <= size; r++) rowStart[r]--;
+            }
+        } else if (value != defaultValue) {
+            // insert entry
+            k = -(k + 1);
+            int count = rowStart[size];
+            ensureCapacity(count + 1);
+            System.arraycopy(columns, k, columns, k + 1, count - k);
+            System.arraycopy(values, k, values, k + 1, count - k);
+            columns[k] = j;
+            values[k] = value;
+            for (int r = i + 1; r <= size; r++) rowStart[r]++;
+        }
+    }
+
+    /**
+     * Sets many entries at once, which is much faster than calling {@link #set(int, int, double)} for each of them.
+     * If an entry is given more than once, the last value is used.
+     *
+     * @param count how many entries of the arrays should be used
+     */
+    public void setAll(int[] rows, int[] columns, double[] values, int count) {
+        int oldCount = getEntryCount();
+        int total = oldCount + count;
+
+        // bucket old and new entries by row, keeping their order (counting sort)
+        int[] bucketStart = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            bucketStart[i + 1] = rowStart[i + 1] - rowStart[i];
+        }
+        for (int n = 0; n < count; n++) {
+            if (rows[n] < 0 || rows[n] >= size) throw new IndexOutOfBoundsException(rows[n]);
+            if (columns[n] < 0 || columns[n] >= size) throw new IndexOutOfBoundsException(columns[n]);
+            bucketStart[rows[n] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            bucketStart[i + 1] += bucketStart[i];
+        }
+
+        // within a row, sort by column, keeping the order otherwise
+        // key: column << 32 | order
+        // (the row isn't part of the key, so that it doesn't overflow for large sizes)
+        long[] keys = new long[total];
+        int[] next = Arrays.copyOf(bucketStart, size);
+        for (int i = 0; i < size; i++) {
+            for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+                keys[next[i]++] = (long) this.columns[k] << 32 | k;
+            }
+        }
+        for (int n = 0; n < count; n++) {
+            keys[next[rows[n]]++] = (long) columns[n] << 32 | (oldCount + n);
+        }
+
+        int[] newColumns = new int[Math.max(16, total)];
+        double[] newValues = new double[newColumns.length];
+        int newCount = 0;
+        for (int i = 0; i < size; i++) {
+            int stop = bucketStart[i + 1];
+            Arrays.sort(keys, bucketStart[i], stop);
+            rowStart[i] = newCount;
+            for (int n = bucketStart[i]; n < stop; n++) {
+                int column = (int) (keys[n] >>> 32);
+                if (n + 1 < stop && (int) (keys[n + 1] >>> 32) == column) continue;  // overwritten by a later value
+
+                int order = (int) keys[n];
+                double value = order < oldCount ? this.values[order] : values[order - oldCount];
+                if (value == defaultValue) continue;
+
+                newColumns[newCount] = column;
+                newValues[newCount] = value;
+                newCount++;
+            }
+        }
+        rowStart[size] = newCount;
+
+        this.columns = newColumns;
+        this.values = newValues;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (columns.length < capacity) {
+            int newCapacity = Math.max(capacity, 2 * columns.length);
+            columns = Arrays.copyOf(columns, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+    }
+
+    /**
+     * Calls <code>consumer</code> for each entry that is stored explicitly, row by row.
+     */
+    public void forEachEntry(EntryConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+                consumer.accept(i, columns[k], values[k]);
+            }
+        }
+    }
+
+    /**
+     * Sets the top left <code>n * n</code> block of this matrix to the values of <code>source</code>.
+     * If <code>source</code> is a sparse matrix with the same default value,
+     * this only takes time proportional to the number of stored entries.
+     */
+    public void copyBlock(Matrix source, int n) {
+        if (!(source instanceof SparseMatrix s) || s.defaultValue != defaultValue) {
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    set(i, j, source.get(i, j));
+                }
+            }
+            return;
+        }
+
+        // rebuild all rows: inside the block, take the entries of the source, outside keep the own ones
+        int[] newRowStart = new int[size + 1];
+        int[] newColumns = new int[Math.max(16, getEntryCount() + s.getEntryCount())];
+        double[] newValues = new double[newColumns.length];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            newRowStart[i] = count;
+            if (i < n) {
+                for (int k = s.rowStart[i]; k < s.rowStart[i + 1] && s.columns[k] < n; k++) {
+                    newColumns[count] = s.columns[k];
+                    newValues[count] = s.values[k];
+                    count++;
+                }
+            }
+            for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+                if (i < n && columns[k] < n) continue;
+                newColumns[count] = columns[k];
+                newValues[count] = values[k];
+                count++;
+            }
+        }
+        newRowStart[size] = count;
+
+        System.arraycopy(newRowStart, 0, rowStart, 0, size + 1);
+        columns = newColumns;
+        values = newValues;
+    }
+
+    @Override
+    public SparseMatrix deepCopy() {
+        SparseMatrix copy = new SparseMatrix(size, defaultValue);
+        System.arraycopy(rowStart, 0, copy.rowStart, 0, size + 1);
+        copy.columns = Arrays.copyOf(columns, Math.max(16, getEntryCount()));
+        copy.values = Arrays.copyOf(values, copy.columns.length);
+        return copy;
+    }
+
+    /**
+     * Equal to {@link Matrix#hashCode(Matrix)}, but only visits the stored entries:
+     * the share of all entries with the default value is summed up in closed form.
+     */
+    @Override
+    public int hashCode() {
+        // sum of Matrix.entryWeight(i, j) over all entries, with the same wrap-around as int arithmetic
+        long n = size;
+        long indexSum = n * (n - 1) / 2;  // sum of i (or j) over 0 to n - 1
+        int weightSum = (int) (Matrix.ROW_WEIGHT * indexSum * n + indexSum * n + n * n);
+
+        int defaultHash = Matrix.valueHash(defaultValue);
+        int hash = 31 * size + weightSum * defaultHash;
+        for (int i = 0; i < size; i++) {
+            for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+                hash += Matrix.entryWeight(i, columns[k]) * (Matrix.valueHash(values[k]) - defaultHash);
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof SparseMatrix m && m.defaultValue == defaultValue) {
+            int count = getEntryCount();
+            return m.size == size
+                    && Arrays.equals(m.rowStart, rowStart)
+                    && Arrays.equals(m.columns, 0, count, columns, 0, count)
+                    && Arrays.equals(m.values, 0, count, values, 0, count);
+        } else if (o instanceof Matrix m) {
+
+            if (m.size() != size) {
+                return false;
+            }
+
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    if (m.get(i, j) != get(i, j)) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
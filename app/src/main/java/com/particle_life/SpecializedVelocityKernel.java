@@ -0,0 +1,104 @@
+package com.particle_life;
+
+import org.joml.Vector3d;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Template for the kernels generated by {@link KernelGenerator}.
+ * <p>
+ * This class is never loaded directly.
+ * Instead, its bytecode is defined as a new hidden class for each set of {@link KernelConstants},
+ * which are passed as class data and stored in static final fields.
+ * The JIT treats these fields as constants, so it sees exactly one accelerator and one matrix implementation.
+ * The matrix itself is passed to each call, so that the values can be changed (or the matrix copied)
+ * without generating a new kernel.
+ * <p>
+ * Neighbors are read from a {@link ContainerGrid}, whose ghost containers take care of the wrapping,
+ * so there are no branches on the wrap mode at all.
+ * In 3D, the 3x3 neighborhood becomes 3x3x3 containers, i.e. 9 contiguous ranges instead of 3.
+ */
+final class SpecializedVelocityKernel implements VelocityKernel {
+
+    private static final KernelConstants CONSTANTS = KernelGenerator.classData(MethodHandles.lookup());
+
+    private static final double RMAX = CONSTANTS.rmax();
+    private static final double RMAX_SQUARED = RMAX * RMAX;
+    private static final double CONTAINER_SIZE = CONSTANTS.rmax();
+    private static final int NX = CONSTANTS.nx();
+    private static final int NY = CONSTANTS.ny();
+    private static final int NZ = CONSTANTS.nz();
+    private static final boolean THREE_D = CONSTANTS.dimensions() == 3;
+    // in 2D, there is only one layer of containers
+    private static final int LAYER_RADIUS = THREE_D ? 1 : 0;
+    private static final Accelerator ACCELERATOR = CONSTANTS.accelerator();
+    private static final Class<? extends Matrix> MATRIX_CLASS = CONSTANTS.matrixClass();
+
+    @Override
+    public void updateVelocity(Particle[] particles, ContainerGrid grid, Matrix matrix,
+                               double frictionFactor, double forceFactor, int i) {
+        Particle p = particles[i];
+        // the cast with a constant class tells the JIT the exact implementation
+        final Matrix m = MATRIX_CLASS.cast(matrix);
+
+        // apply friction before adding new velocity
+        p.velocity.mul(frictionFactor);
+
+        final double px = p.position.x;
+        final double py = p.position.y;
+        final double pz = p.position.z;
+        final int pType = p.type;
+
+        final int[] containerStart = grid.containerStart;
+        final double[] x = grid.x;
+        final double[] y = grid.y;
+        final double[] z = grid.z;
+        final int[] type = grid.type;
+        final int paddedWidth = grid.paddedWidth;
+        final int paddedHeight = grid.paddedHeight;
+
+        // neighbors of the same type often come in runs, so the last matrix entry is reused
+        // (which matters for sparse matrices, where each lookup is a binary search)
+        int lastType = -1;
+        double lastMatrixValue = 0;
+
+        // same container as in the binning, shifted by the ghost halo
+        int cx = Math.min((int) (px / CONTAINER_SIZE), NX - 1) + 1;
+        int cy = Math.min((int) (py / CONTAINER_SIZE), NY - 1) - grid.firstRow + 1;
+        int cz = THREE_D ? Math.min((int) (pz / CONTAINER_SIZE), NZ - 1) + 1 : 0;
+
+        for (int dz = -LAYER_RADIUS; dz <= LAYER_RADIUS; dz++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                // the three containers of this row are stored next to each other
+                int row = ((cz + dz) * paddedHeight + cy + dy) * paddedWidth + cx;
+                int start = containerStart[row - 1];
+                int stop = containerStart[row + 2];
+
+                for (int j = start; j < stop; j++) {
+                    // the particle itself is skipped because of its distance of 0
+                    double rx = x[j] - px;
+                    double ry = y[j] - py;
+                    double rz = THREE_D ? z[j] - pz : 0;
+
+                    Vector3d relativePosition = new Vector3d(rx, ry, rz);
+
+                    double distanceSquared = relativePosition.lengthSquared();
+                    // only check particles that are closer than or at rmax
+                    if (distanceSquared != 0 && distanceSquared <= RMAX_SQUARED) {
+
+                        int qType = type[j];
+                        if (qType != lastType) {
+                            lastType = qType;
+                            lastMatrixValue = m.get(pType, qType);
+                        }
+
+                        relativePosition.div(RMAX);
+                        Vector3d deltaV = ACCELERATOR.accelerate(lastMatrixValue, relativePosition);
+                        // apply force as acceleration
+                        p.velocity.add(deltaV.mul(forceFactor));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.particle_life;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Splits the world into horizontal strips of container rows ("tiles").
+ * <p>
+ * Each tile keeps its own particles in its own arrays, sorts them into its own containers
+ * and builds its own {@link ContainerGrid}, with the border rows of the adjacent tiles as halo.
+ * That way, each tile can be updated by one thread that only writes to memory of its own tile.
+ * <p>
+ * Particles that left their tile are handed over to their new tile at the start of the next step.
+ * <p>
+ * The methods taking a tile index may run in parallel for different tiles,
+ * but each method must have finished for all tiles before the next one is called.
+ */
+final class TileDecomposition {
+
+    private static final class Tile {
+        int firstRow;
+        int rows;
+
+        Particle[] particles = new Particle[0];
+        int count = 0;
+        Particle[] sortBuffer = new Particle[0];
+        /**
+         * For each container in the rows of this tile, the index after its last particle.
+         */
+        int[] containers = new int[0];
+        final ContainerGrid grid = new ContainerGrid();
+        final ArrayList<Particle> leaving = new ArrayList<>();
+
+        /**
+         * Index of the first particle of this tile in the array returned by {@link #gather}.
+         */
+        int offset;
+
+        void add(Particle p) {
+            if (count == particles.length) {
+                particles = Arrays.copyOf(particles, Math.max(16, 2 * count));
+            }
+            particles[count++] = p;
+        }
+    }
+
+    private Tile[] tiles = new Tile[0];
+    private int nx;
+    private int ny;
+    private double containerSize;
+    /**
+     * The array last returned by {@link #gather}.
+     * If the particles array is replaced by something else, the particles must be distributed anew.
+     */
+    private Particle[] gathered = null;
+
+    /**
+     * Ensures that the tiles match the given layout and contain the first <code>count</code> of the given particles.
+     * If anything changed, all particles are distributed anew.
+     * If the same array now holds other particles, call {@link #setGathered} with null first.
+     *
+     * @return the number of tiles, which may be less than requested if there are not enough container rows
+     */
+    int layout(Particle[] particles, int count, int tileCount, int nx, int ny, double containerSize) {
+        tileCount = Math.max(1, Math.min(tileCount, ny));
+
+        if (tileCount != tiles.length || nx != this.nx || ny != this.ny || containerSize != this.containerSize) {
+            this.nx = nx;
+            this.ny = ny;
+            this.containerSize = containerSize;
+            tiles = new Tile[tileCount];
+            for (int t = 0; t < tileCount; t++) {
+                Tile tile = new Tile();
+                tile.firstRow = t * ny / tileCount;
+                tile.rows = (t + 1) * ny / tileCount - tile.firstRow;
+                tiles[t] = tile;
+            }
+            gathered = null;
+        }
+
+        if (particles != gathered) {
+            for (Tile tile : tiles) {
+                Arrays.fill(tile.particles, 0, tile.count, null);
+                tile.count = 0;
+                tile.leaving.clear();
+            }
+            for (int i = 0; i < count; i++) {
+                Particle p = particles[i];
+                tiles[getTile(p)].add(p);
+            }
+        }
+
+        return tileCount;
+    }
+
+    private int getRow(Particle p) {
+        return ContainerGrid.getRow(p.position.y, ny, containerSize);
+    }
+
+    private int getTile(Particle p) {
+        int row = getRow(p);
+        // rows are split evenly, so the tile can be guessed and corrected
+        int t = row * tiles.length / ny;
+        while (row < tiles[t].firstRow) t--;
+        while (row >= tiles[t].firstRow + tiles[t].rows) t++;
+        return t;
+    }
+
+    /**
+     * Removes the particles that are no longer inside tile <code>t</code>.
+     */
+    void collectLeaving(int t) {
+        Tile tile = tiles[t];
+        tile.leaving.clear();
+        int kept = 0;
+        for (int i = 0; i < tile.count; i++) {
+            Particle p = tile.particles[i];
+            if (getTile(p) == t) {
+                tile.particles[kept++] = p;
+            } else {
+                tile.leaving.add(p);
+            }
+        }
+        Arrays.fill(tile.particles, kept, tile.count, null);
+        tile.count = kept;
+    }
+
+    /**
+     * Takes over the particles that left other tiles for tile <code>t</code>,
+     * then sorts the particles of this tile into its containers.
+     */
+    void receiveAndSort(int t) {
+        Tile tile = tiles[t];
+        for (Tile other : tiles) {
+            if (other == tile) continue;
+            for (Particle p : other.leaving) {
+                if (getTile(p) == t) tile.add(p);
+            }
+        }
+
+        int numContainers = nx * tile.rows;
+        if (tile.containers.length != numContainers) {
+            tile.containers = new int[numContainers];
+        }
+        if (tile.sortBuffer.length < tile.particles.length) {
+            tile.sortBuffer = new Particle[tile.particles.length];
+        }
+
+        ContainerGrid.sortIntoContainers(tile.particles, tile.count, tile.sortBuffer, tile.containers,
+                nx, ny, tile.firstRow, containerSize);
+
+        Particle[] h = tile.particles;
+        tile.particles = tile.sortBuffer;
+        tile.sortBuffer = h;
+    }
+
+    /**
+     * Copies the particles of tile <code>t</code> and the adjacent rows of its neighbors into its grid.
+     */
+    void buildGrid(int t, boolean wrap) {
+        Tile tile = tiles[t];
+        ContainerGrid grid = tile.grid;
+        grid.begin(nx, tile.rows, tile.firstRow);
+
+        // halo above
+        Tile above = tiles[(t + tiles.length - 1) % tiles.length];
+        if (t > 0) {
+            grid.addRow(above.particles, above.containers, above.rows - 1, 0, wrap);
+        } else if (wrap) {
+            grid.addRow(above.particles, above.containers, above.rows - 1, -1, true);
+        } else {
+            grid.addEmptyRow();
+        }
+
+        for (int cy = 0; cy < tile.rows; cy++) {
+            grid.addRow(tile.particles, tile.containers, cy, 0, wrap);
+        }
+
+        // halo below
+        Tile below = tiles[(t + 1) % tiles.length];
+        if (t < tiles.length - 1) {
+            grid.addRow(below.particles, below.containers, 0, 0, wrap);
+        } else if (wrap) {
+            grid.addRow(below.particles, below.containers, 0, 1, true);
+        } else {
+            grid.addEmptyRow();
+        }
+
+        grid.end();
+    }
+
+    /**
+     * Determines where the particles of each tile will be in the array returned by {@link #gather}.
+     *
+     * @return the total number of particles
+     */
+    int computeOffsets() {
+        int offset = 0;
+        for (Tile tile : tiles) {
+            tile.offset = offset;
+            offset += tile.count;
+        }
+        return offset;
+    }
+
+    Particle[] getParticles(int t) {
+        return tiles[t].particles;
+    }
+
+    int getParticleCount(int t) {
+        return tiles[t].count;
+    }
+
+    ContainerGrid getGrid(int t) {
+        return tiles[t].grid;
+    }
+
+    /**
+     * Copies the particles of tile <code>t</code> into <code>target</code>,
+     * which then contains all particles sorted by containers.
+     * {@link #setGathered} must be called with the array afterwards.
+     */
+    void gather(int t, Particle[] target) {
+        Tile tile = tiles[t];
+        System.arraycopy(tile.particles, 0, target, tile.offset, tile.count);
+    }
+
+    void setGathered(Particle[] gathered) {
+        this.gathered = gathered;
+    }
+}
@@ -0,0 +1,90 @@
+package com.particle_life;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hands objects from one writer thread to one reader thread without locks.<br>
+ * Example:
+ * <pre>
+ * TripleBuffer&lt;Snapshot&gt; buffer = new TripleBuffer&lt;&gt;(Snapshot::new);
+ *
+ * // writer thread
+ * buffer.getWriteBuffer().take(...);
+ * buffer.publish();
+ *
+ * // reader thread
+ * Snapshot snapshot = buffer.getReadBuffer();  // the latest published object
+ * </pre>
+ * <p>
+ * There are three objects: one that the writer fills, one that the reader uses,
+ * and one in between that holds the latest published object.
+ * Publishing and fetching just swap an index with the one in between,
+ * so neither thread ever waits for the other, and neither ever sees an object
+ * while the other thread is using it.
+ * If the writer publishes faster than the reader fetches, older objects are simply overwritten.
+ * <p>
+ * Only one thread may write and only one thread may read.
+ * An object must not be used by the writer after {@link #publish()}
+ * or by the reader after the next call of {@link #getReadBuffer()} that returned a different object.
+ */
+public class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 0b11;
+    /**
+     * Set in {@link #middle} if the object there wasn't read yet.
+     */
+    private static final int NEW = 0b100;
+
+    private final Object[] buffers = new Object[3];
+    // only accessed by the writer
+    private int back = 0;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    // only accessed by the reader
+    private int front = 2;
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = factory.get();
+        }
+    }
+
+    /**
+     * Must only be called from the writer thread.
+     *
+     * @return the object that the writer may fill until the next {@link #publish()}
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[back];
+    }
+
+    /**
+     * Makes the write buffer the latest object and gives the writer another object to fill.
+     * Must only be called from the writer thread.
+     */
+    public void publish() {
+        back = middle.getAndSet(back | NEW) & INDEX_MASK;
+    }
+
+    /**
+     * @return whether something was published since the last {@link #getReadBuffer()}
+     */
+    public boolean hasNew() {
+        return (middle.get() & NEW) != 0;
+    }
+
+    /**
+     * Must only be called from the reader thread.
+     *
+     * @return the latest published object, or the same object as in the last call if nothing new was published
+     * (which is an unfilled object if nothing was published at all)
+     */
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        if (hasNew()) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return (T) buffers[front];
+    }
+}
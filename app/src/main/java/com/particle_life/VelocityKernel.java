@@ -0,0 +1,20 @@
+package com.particle_life;
+
+/**
+ * Computes the new velocity of a single particle.
+ * <p>
+ * Implementations are created by {@link KernelGenerator} for a fixed set of {@link KernelConstants}.
+ * Everything that may change from one step to the next is passed as an argument.
+ */
+interface VelocityKernel {
+
+    /**
+     * @param particles      particles, sorted by containers
+     * @param grid           positions and types of the particles, including ghosts
+     * @param matrix         the matrix of the settings, of the class given in the {@link KernelConstants}
+     * @param frictionFactor factor the velocity is multiplied with before the forces are applied
+     * @param forceFactor    factor the output of the accelerator is multiplied with
+     * @param i              index of the particle whose velocity should be updated
+     */
+    void updateVelocity(Particle[] particles, ContainerGrid grid, Matrix matrix, double frictionFactor, double forceFactor, int i);
+}
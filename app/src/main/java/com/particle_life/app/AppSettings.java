@@ -32,6 +32,30 @@ public class AppSettings extends TomlFile {
     public double zoomSmoothness = 0.3;
     @TomlKey("cam_movement_speed")
     public double camMovementSpeed = 1.0;
+    @TomlKey("interpolate_snapshots")
+    public boolean interpolateSnapshots = true;
+    @TomlKey("quantize_positions")
+    public boolean quantizePositions = false;
+    @TomlKey("instanced_rendering")
+    public boolean instancedRendering = false;
+    @TomlKey("cull_particles")
+    public boolean cullParticles = true;
+    @TomlKey("auto_density_map")
+    public boolean autoDensityMap = true;
+    @TomlKey("density_map_threshold")
+    public double densityMapThreshold = 2.0;  // particles per pixel
+    @TomlKey("recording_format")
+    public String recordingFormat = "png";  // "png" or "y4m"
+    @TomlKey("recording_backpressure")
+    public String recordingBackpressure = "drop";  // "drop" or "throttle"
+    @TomlKey("recording_queue_capacity")
+    public int recordingQueueCapacity = 16;  // frames
+    @TomlKey("recording_framerate")
+    public int recordingFramerate = 60;  // only for the y4m header
+    @TomlKey("recording_rasterize")
+    public boolean recordingRasterize = false;  // whole world on the CPU instead of the view from the graphics card
+    @TomlKey("recording_rasterize_size")
+    public int recordingRasterizeSize = 512;
     @TomlKey("show_cursor")
     public boolean showCursor = true;
     @TomlKey("cursor_size")
@@ -52,6 +76,26 @@ public class AppSettings extends TomlFile {
     public double dt = 0.02;
     @TomlKey("auto_time_step")
     public boolean autoDt = false;
+    @TomlKey("physics_step_rate")
+    public int physicsStepRate = 0;  // 0 = as fast as possible
     @TomlKey("position_setter")
     public String positionSetter = "centered";
+    @TomlKey("sleeping")
+    public boolean sleeping = false;
+    @TomlKey("warm_up")
+    public boolean warmUp = true;
+    @TomlKey("warm_up_all_kernels")
+    public boolean warmUpAllKernels = false;
+    @TomlKey("governor")
+    public boolean governor = false;
+    @TomlKey("governor_step_rate")
+    public int governorStepRate = 30;  // only used if physics_step_rate is 0
+    @TomlKey("governor_framerate")
+    public int governorFramerate = 60;
+    @TomlKey("governor_levers")
+    public String governorLevers = "sleeping, snapshots, decimation";  // add "particles" to allow removing particles
+    @TomlKey("snapshot_from_position_pass")
+    public boolean snapshotFromPositionPass = true;
+    @TomlKey("force_function")
+    public String forceFunction = "d < b ? d / b - 1 : a * (1 - abs(1 + b - 2 * d) / (1 - b))";
 }
@@ -0,0 +1,282 @@
+package com.particle_life.app;
+
+import com.particle_life.LoadDistributor;
+import com.particle_life.app.color.Color;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11C.*;
+import static org.lwjgl.opengl.GL30C.*;
+
+/**
+ * Draws the particles as a density map instead of one quad per particle, for when there are
+ * so many particles per pixel that the quads would only overdraw each other.
+ * <p>
+ * The particles are counted per pixel on multiple threads, together with the sum of the palette colors of their types.
+ * So each pixel gets the average color of its particles (the color of each type weighted by its count),
+ * and is brighter the more particles it has, on a logarithmic scale.
+ * The result is uploaded as one texture, so the cost depends on the number of particles and pixels,
+ * but not on how much the particles overlap.
+ * <p>
+ * The texture covers a part of the world like the texture that the particles are usually drawn into,
+ * so it can be shown in the same way.
+ */
+class DensityMapRenderer {
+
+    /**
+     * The pixels are counted in bands of rows with about this many pixels,
+     * so that the counts of a band stay in the cache while its particles are counted.
+     */
+    private static final int PIXELS_PER_BAND = 1 << 14;
+    /**
+     * Pixels with this many times the average number of particles per pixel get the full brightness.
+     */
+    private static final double SATURATION = 4;
+    private static final int MAX_BRIGHTNESS_LEVELS = 1 << 16;
+    /**
+     * The saturated count is rounded to this many steps per doubling (about 2% apart),
+     * so that the brightness table isn't recomputed in every frame while zooming or brushing.
+     */
+    private static final int SATURATION_STEPS_PER_DOUBLING = 32;
+
+    private final int threadCount = Runtime.getRuntime().availableProcessors();
+    private final LoadDistributor loadDistributor = new LoadDistributor();
+
+    private int texture = 0;
+    private int textureWidth = 0;
+    private int textureHeight = 0;
+
+    /**
+     * Index of the pixel of each particle, or -1 if it is outside the texture.
+     */
+    private int[] pixelOf = new int[0];
+    private int[] bandOf = new int[0];
+    private int[] bandOfRow = new int[0];
+    /**
+     * Pixel and type of each particle, sorted by band of pixel rows,
+     * so that each band can be counted by one thread, reading them one after the other.
+     */
+    private int[] sortedPixels = new int[0];
+    private int[] sortedTypes = new int[0];
+    private int[][] chunkOffsets = new int[0][];
+    private int[] bandStart = new int[0];
+
+    private int[] counts = new int[0];
+    /**
+     * Sum of the colors of the particles in each pixel, 3 per pixel.
+     */
+    private float[] colorSums = new float[0];
+    private int[] pixels = new int[0];
+    private double[] brightnessPerParticle = new double[0];
+    /**
+     * Number of valid entries in {@link #brightnessPerParticle}.
+     */
+    private int brightnessLevels = 0;
+    private double saturatedCount = 0;
+
+    void init() {
+        texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * @return the texture that the last {@link #render} wrote to
+     */
+    int getTexture() {
+        return texture;
+    }
+
+    /**
+     * Counts the particles in the part of the world that starts at <code>left</code>, <code>top</code>
+     * and is <code>regionWidth</code> by <code>regionHeight</code> large,
+     * and writes the density map of it into the texture.
+     *
+     * @param x                 positions, <code>dimensions</code> per particle (may be longer than needed)
+     * @param dimensions        2 or 3
+     * @param types             type of each particle, unsigned (may be longer than needed)
+     * @param particleCount     number of particles in the arrays
+     * @param colors            color of each type
+     * @param width             width of the texture in pixels
+     * @param height            height of the texture in pixels
+     * @param wrap              whether the world repeats, so that particles left of the region appear on its right side etc.
+     *                          (the region must not be larger than the world then)
+     * @param particlesPerPixel average number of particles per pixel, to scale the brightness
+     */
+    void render(float[] x, int dimensions, short[] types, int particleCount, Color[] colors,
+                int width, int height, double left, double top, double regionWidth, double regionHeight,
+                boolean wrap, double particlesPerPixel) {
+        final int pixelCount = width * height;
+        if (counts.length < pixelCount) {
+            counts = new int[pixelCount];
+            colorSums = new float[3 * pixelCount];
+            pixels = new int[pixelCount];
+        }
+        if (pixelOf.length < particleCount) {
+            int capacity = Math.max(particleCount, pixelOf.length + pixelOf.length / 2);
+            pixelOf = new int[capacity];
+            bandOf = new int[capacity];
+            sortedPixels = new int[capacity];
+            sortedTypes = new int[capacity];
+        }
+
+        final int rowsPerBand = Math.max(1, PIXELS_PER_BAND / width);
+        final int bands = (height + rowsPerBand - 1) / rowsPerBand;
+        if (bandStart.length < bands + 1) bandStart = new int[bands + 1];
+        if (bandOfRow.length < height) bandOfRow = new int[height];
+        for (int row = 0; row < height; row++) {
+            bandOfRow[row] = row / rowsPerBand;
+        }
+        final int chunks = Math.max(1, Math.min(threadCount, particleCount / 4096));
+        final int chunkLength = (particleCount + chunks - 1) / chunks;
+        if (chunkOffsets.length != chunks || chunkOffsets[0].length < bands) {
+            chunkOffsets = new int[chunks][bands];
+        }
+
+        // find the pixel of each particle and count the particles of each chunk per band
+        final int[] pixelOf = this.pixelOf;
+        final int[] bandOf = this.bandOf;
+        final int[] bandOfRow = this.bandOfRow;
+        final double scaleX = width / regionWidth;
+        final double scaleY = height / regionHeight;
+        loadDistributor.distributeLoadEvenly(chunks, chunks, chunk -> {
+            int[] histogram = chunkOffsets[chunk];
+            Arrays.fill(histogram, 0);
+            int stop = Math.min(particleCount, (chunk + 1) * chunkLength);
+            for (int i = chunk * chunkLength; i < stop; i++) {
+                double dx = x[dimensions * i] - left;
+                double dy = x[dimensions * i + 1] - top;
+                if (wrap) {
+                    dx -= Math.floor(dx);
+                    dy -= Math.floor(dy);
+                }
+                int px = (int) Math.floor(dx * scaleX);
+                int py = (int) Math.floor(dy * scaleY);
+                if (px < 0 || px >= width || py < 0 || py >= height) {
+                    pixelOf[i] = -1;
+                    continue;
+                }
+                pixelOf[i] = py * width + px;
+                int band = bandOfRow[py];
+                bandOf[i] = band;
+                histogram[band]++;
+            }
+            return true;
+        });
+
+        // turn the counts into offsets, band by band and within a band chunk by chunk
+        int offset = 0;
+        for (int band = 0; band < bands; band++) {
+            bandStart[band] = offset;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int n = chunkOffsets[chunk][band];
+                chunkOffsets[chunk][band] = offset;
+                offset += n;
+            }
+        }
+        bandStart[bands] = offset;
+
+        final int[] sortedPixels = this.sortedPixels;
+        final int[] sortedTypes = this.sortedTypes;
+        final int rowLength = width * rowsPerBand;
+        loadDistributor.distributeLoadEvenly(chunks, chunks, chunk -> {
+            int[] offsets = chunkOffsets[chunk];
+            int stop = Math.min(particleCount, (chunk + 1) * chunkLength);
+            for (int i = chunk * chunkLength; i < stop; i++) {
+                if (pixelOf[i] == -1) continue;
+                int k = offsets[bandOf[i]]++;
+                sortedPixels[k] = pixelOf[i];
+                sortedTypes[k] = types[i] & 0xffff;
+            }
+            return true;
+        });
+
+        // each band of rows is counted and colored by one thread
+        final int[] counts = this.counts;
+        final float[] colorSums = this.colorSums;
+        final int[] pixels = this.pixels;
+        final float[] typeColors = new float[3 * colors.length];
+        for (int type = 0; type < colors.length; type++) {
+            typeColors[3 * type] = colors[type].r;
+            typeColors[3 * type + 1] = colors[type].g;
+            typeColors[3 * type + 2] = colors[type].b;
+        }
+        final double[] brightness = getBrightnessPerParticle(particlesPerPixel);
+        final int levels = brightnessLevels;
+        loadDistributor.distributeLoadEvenly(bands, threadCount, band -> {
+            int firstPixel = band * rowLength;
+            int stopPixel = Math.min(pixelCount, firstPixel + rowLength);
+            Arrays.fill(counts, firstPixel, stopPixel, 0);
+            Arrays.fill(colorSums, 3 * firstPixel, 3 * stopPixel, 0);
+
+            for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+                int p = sortedPixels[k];
+                int t3 = 3 * sortedTypes[k];
+                counts[p]++;
+                colorSums[3 * p] += typeColors[t3];
+                colorSums[3 * p + 1] += typeColors[t3 + 1];
+                colorSums[3 * p + 2] += typeColors[t3 + 2];
+            }
+
+            for (int p = firstPixel; p < stopPixel; p++) {
+                int count = counts[p];
+                if (count == 0) {
+                    pixels[p] = 0;
+                    continue;
+                }
+                double b = count < levels ? brightness[count] : 255.0 / count;
+                pixels[p] = 0xff000000
+                        | toByte(colorSums[3 * p] * b) << 16
+                        | toByte(colorSums[3 * p + 1] * b) << 8
+                        | toByte(colorSums[3 * p + 2] * b);
+            }
+            return true;
+        });
+
+        // the pixels are ARGB like in Main.renderParticlesToImage(), i.e. BGRA bytes
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, width);
+        if (width != textureWidth || height != textureHeight) {
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_BGRA, GL_UNSIGNED_BYTE, pixels);
+            textureWidth = width;
+            textureHeight = height;
+        } else {
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, pixels);
+        }
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * The table is only recomputed if the rounded saturated count changes.
+     *
+     * @return for each number of particles in a pixel, the factor for the sum of their colors (0 to 1 each)
+     * that results in the pixel color (0 to 255 each).
+     * From {@link #brightnessLevels} particles on, the pixels are fully saturated.
+     */
+    private double[] getBrightnessPerParticle(double particlesPerPixel) {
+        double exactCount = SATURATION * Math.max(particlesPerPixel, 1);
+        double saturatedCount = Math.pow(2,
+                Math.rint(Math.log(exactCount) / Math.log(2) * SATURATION_STEPS_PER_DOUBLING) / SATURATION_STEPS_PER_DOUBLING);
+        if (saturatedCount == this.saturatedCount) return brightnessPerParticle;
+
+        int length = (int) Math.min(Math.ceil(saturatedCount) + 1, MAX_BRIGHTNESS_LEVELS);
+        if (brightnessPerParticle.length < length) {
+            brightnessPerParticle = new double[Math.min(MAX_BRIGHTNESS_LEVELS,
+                    Math.max(length, brightnessPerParticle.length + brightnessPerParticle.length / 2))];
+        }
+        double scale = 255 / Math.log(1 + saturatedCount);
+        for (int count = 1; count < length; count++) {
+            brightnessPerParticle[count] = Math.min(255, Math.log(1 + count) * scale) / count;
+        }
+        brightnessLevels = length;
+        this.saturatedCount = saturatedCount;
+        return brightnessPerParticle;
+    }
+
+    private static int toByte(double value) {
+        return Math.min(255, (int) (value + 0.5));
+    }
+}
@@ -4,7 +4,6 @@ import com.particle_life.*;
 import com.particle_life.app.utils.ArrayUtils;
 
 import java.util.Arrays;
-import java.util.Collections;
 
 public class ExtendedPhysics extends Physics {
 
@@ -15,8 +14,9 @@ public class ExtendedPhysics extends Physics {
     public int[] getTypeCount() {
         int[] typeCount = new int[settings.matrix.size()];
         Arrays.fill(typeCount, 0);
-        for (Particle p : particles) {
-            typeCount[p.type]++;
+        compact();
+        for (int i = 0; i < getParticleCount(); i++) {
+            typeCount[particles[i].type]++;
         }
         return typeCount;
     }
@@ -26,10 +26,12 @@ public class ExtendedPhysics extends Physics {
         int nTypes = settings.matrix.size();
         if (nTypes < 2) return;
 
+        compact();
+        int particleCount = getParticleCount();
         int[] idealTypeCount = new int[nTypes];
-        int count = (int) Math.ceil(particles.length / (double) nTypes);
+        int count = (int) Math.ceil(particleCount / (double) nTypes);
         Arrays.fill(idealTypeCount, 0, nTypes - 1, count);
-        idealTypeCount[nTypes - 1] = particles.length - (nTypes - 1) * (count);
+        idealTypeCount[nTypes - 1] = particleCount - (nTypes - 1) * (count);
 
         setTypeCount(idealTypeCount);
     }
@@ -49,16 +51,15 @@ public class ExtendedPhysics extends Physics {
         shuffleParticles();
 
         int newCount = Arrays.stream(typeCount).sum();
-        if (newCount != particles.length) {
-
-            Particle[] newParticles = new Particle[newCount];
+        int oldCount = getParticleCount();
+        if (newCount != oldCount) {
 
             int[] actualTypeCount = new int[nTypes];
             Arrays.fill(actualTypeCount, 0);
 
             // sort all unusable particles to the end
             int i = 0;
-            int j = particles.length - 1;
+            int j = oldCount - 1;
             while (i < j) {
 
                 int type = particles[i].type;
@@ -74,27 +75,25 @@ public class ExtendedPhysics extends Physics {
             }
             // now i points at the end (exclusive) of the reusable particles
 
-            // copy as much as possible
-            int copyLength = Math.min(newCount, particles.length);
-            int k = 0;
-            while (k < copyLength) {
-                newParticles[k] = particles[k];
-                k++;
+            // keep as much as possible and remove the rest from the end,
+            // or if necessary, fill up with new particles
+            for (int k = newCount; k < oldCount; k++) {
+                removeParticle(particles[k]);
             }
-
-            // if necessary, fill up rest with new particles
-            while (k < newCount) {
-                newParticles[k] = new Particle();
-                k++;
+            for (int k = oldCount; k < newCount; k++) {
+                addParticle(new Particle());
             }
 
             // change types of all particles that couldn't be reused
+            // (types that have enough particles never need more again,
+            // so the search for the next type can continue where it stopped, even for many types)
+            int type = 0;
             while (i < newCount) {
 
                 // find type that has too few particles
-                int type = ArrayUtils.findFirstIndexWithLess(actualTypeCount, typeCount);  // need more of this type
+                type = ArrayUtils.findFirstIndexWithLess(actualTypeCount, typeCount, type);  // need more of this type
 
-                Particle p = newParticles[i];
+                Particle p = particles[i];
                 p.type = type;
                 setPosition(p);  // possible that position setter is based on type
 
@@ -103,18 +102,18 @@ public class ExtendedPhysics extends Physics {
                 i++;
             }
 
-            particles = newParticles;
-
         } else {
 
             int[] actualTypeCount = getTypeCount();
 
-            for (Particle p : particles) {
+            int type = 0;
+            for (int k = 0; k < oldCount; k++) {
+                Particle p = particles[k];
                 if (actualTypeCount[p.type] > typeCount[p.type]) {
                     // need fewer of this type
 
                     // find type that has too few particles
-                    int type = ArrayUtils.findFirstIndexWithLess(actualTypeCount, typeCount);  // need more of this type
+                    type = ArrayUtils.findFirstIndexWithLess(actualTypeCount, typeCount, type);  // need more of this type
 
                     // change type
                     actualTypeCount[p.type]--;
@@ -124,12 +123,4 @@ public class ExtendedPhysics extends Physics {
             }
         }
     }
-
-    /**
-     * Use this to avoid the container pattern showing
-     * (i.e. if particles are treated differently depending on their position in the array).
-     */
-    private void shuffleParticles() {
-        Collections.shuffle(Arrays.asList(particles));
-    }
 }
@@ -18,6 +18,12 @@ class ImGuiBarGraph {
         void set(int type, int newCount);
     }
 
+    /**
+     * If the bars would be thinner than this (in pixels),
+     * several types are combined into one bar.
+     */
+    private static final float MIN_BAR_HEIGHT = 2;
+
     /**
      * @return type that is hovered by mouse or -1
      */
@@ -35,24 +41,35 @@ class ImGuiBarGraph {
         ImGui.getCursorPos(cursorRelative);
 
         int nTypes = typeCount.length;
-        float barHeight = h / nTypes;
+        int maxBars = Math.max(1, (int) (h / MIN_BAR_HEIGHT));
+        int typesPerBar = (nTypes + maxBars - 1) / maxBars;
+        int nBars = typesPerBar == 0 ? 0 : (nTypes + typesPerBar - 1) / typesPerBar;
+        float barHeight = h / nBars;
+
+        // counts per bar
+        int[] barCount = typesPerBar == 1 ? typeCount : new int[nBars];
+        if (typesPerBar > 1) {
+            for (int type = 0; type < nTypes; type++) {
+                barCount[type / typesPerBar] += typeCount[type];
+            }
+        }
 
-        int total = Arrays.stream(typeCount).sum();
-        int maxCount = Arrays.stream(typeCount).max().orElse(0);
+        int total = Arrays.stream(barCount).sum();
+        int maxCount = Arrays.stream(barCount).max().orElse(0);
         ImVec2 maxCountTextSize = new ImVec2();
         ImGui.calcTextSize(maxCountTextSize, formatText(maxCount, total, percentage));
         float spaceBeforeText = 2;
         float spaceAfterText = 2;
         boolean renderText = maxCountTextSize.y < barHeight;
 
-        for (int type = 0; type < nTypes; type++) {
+        for (int bar = 0; bar < nBars; bar++) {
             float absX = cursorAbsolute.x;
-            float absY = cursorAbsolute.y + type * barHeight;
+            float absY = cursorAbsolute.y + bar * barHeight;
 
-            int count = typeCount[type];
+            int count = barCount[bar];
             float fractionOfMax = maxCount != 0 ? count / (float) maxCount : 0;
 
-            Color color = palette.getColor(type, nTypes);
+            Color color = palette.getColor(bar * typesPerBar, nTypes);
             float barWidth;
             if (renderText) {
                 float textSpace = maxCountTextSize.x + spaceBeforeText + spaceAfterText;
@@ -65,7 +82,7 @@ class ImGuiBarGraph {
 
             if (renderText) {
                 float relX = cursorRelative.x;
-                float relY = cursorRelative.y + type * barHeight;
+                float relY = cursorRelative.y + bar * barHeight;
                 ImGui.setCursorPos(relX + barWidth + spaceBeforeText, relY + (barHeight - maxCountTextSize.y) / 2);
                 ImGui.text(formatText(count, total, percentage));
                 ImGui.setCursorPos(cursorRelative.x, cursorRelative.y);
@@ -74,14 +91,19 @@ class ImGuiBarGraph {
             if (ImGui.isMouseHoveringRect(absX, absY, absX + w, absY + barHeight)) {
                 drawList.addRect(absX, absY, absX + w, absY + barHeight,
                         ImGui.colorConvertFloat4ToU32(1, 1, 1, 1), barHeight / 2);
-                ImGui.setTooltip("" + count);
+                if (typesPerBar == 1) {
+                    ImGui.setTooltip("" + count);
+                } else {
+                    ImGui.setTooltip("%d-%d: %d".formatted(bar * typesPerBar, Math.min(nTypes, (bar + 1) * typesPerBar) - 1, count));
+                }
 
                 hovering = true;
-                typeHovering = type;
+                typeHovering = bar * typesPerBar;
             }
         }
 
-        if (hovering) {
+        // user interaction (only if each bar is a single type)
+        if (hovering && typesPerBar == 1) {
             int previousValue = typeCount[typeHovering];
             int val = previousValue;
             if (ImGui.isMouseClicked(0, true)) {
@@ -101,9 +123,15 @@ class ImGuiBarGraph {
 
         ImGui.dummy(w, h);
 
-        ImGuiUtils.helpMarker(String.format(
-                "Click with different mouse buttons to change values:\nLeft +%d.\nRight -%d.\nMiddle 0.", stepSize, stepSize
-        ));
+        if (typesPerBar == 1) {
+            ImGuiUtils.helpMarker(String.format(
+                    "Click with different mouse buttons to change values:\nLeft +%d.\nRight -%d.\nMiddle 0.", stepSize, stepSize
+            ));
+        } else {
+            ImGuiUtils.helpMarker(String.format(
+                    "Too many types to show each of them, so each bar shows the total of %d types.", typesPerBar
+            ));
+        }
 
         return hovering ? typeHovering : -1;
     }
@@ -1,6 +1,7 @@
 package com.particle_life.app;
 
 import com.particle_life.Matrix;
+import com.particle_life.SparseMatrix;
 import com.particle_life.app.color.Color;
 import com.particle_life.app.color.Palette;
 import com.particle_life.app.utils.ImGuiUtils;
@@ -20,6 +21,12 @@ class ImGuiMatrix {
         void set(int i, int j, double newValue);
     }
 
+    /**
+     * If the cells would be smaller than this (in pixels),
+     * several types are combined into one cell.
+     */
+    private static final float MIN_RECT_SIZE = 3;
+
     /**
      * @param w
      * @param h
@@ -35,14 +42,19 @@ class ImGuiMatrix {
         ImGui.getCursorScreenPos(cursor);
 
         int matrixSize = matrix.size();
-        float rectSize = (Math.min(w, h)) / (matrixSize + 1);
+        int maxCells = Math.max(1, (int) (Math.min(w, h) / MIN_RECT_SIZE) - 1);
+        int typesPerCell = ceilDiv(matrixSize, maxCells);
+        int cells = ceilDiv(matrixSize, typesPerCell);
+        float rectSize = (Math.min(w, h)) / (cells + 1);
+
+        double[][] cellValues = getCellValues(matrix, cells, typesPerCell);
 
         // draw matrix values
-        for (int i = 0; i < matrixSize; i++) {
-            for (int j = 0; j < matrixSize; j++) {
+        for (int i = 0; i < cells; i++) {
+            for (int j = 0; j < cells; j++) {
                 float x = cursor.x + rectSize + j * rectSize;
                 float y = cursor.y + rectSize + i * rectSize;
-                float value = (float) matrix.get(i, j);
+                float value = (float) cellValues[i][j];
 
                 int color = value >= 0 ? ImGui.colorConvertFloat4ToU32(0, value, 0, 1) : ImGui.colorConvertFloat4ToU32(-value, 0, 0, 1);
                 drawList.addRectFilled(x, y, x + rectSize, y + rectSize, color);
@@ -53,24 +65,24 @@ class ImGuiMatrix {
         // to give the matrix rounded corners
         float cornerRadius = 8;
         drawList.addRect(cursor.x + rectSize - cornerRadius, cursor.y + rectSize - cornerRadius,
-                cursor.x + rectSize * (1 + matrixSize) + cornerRadius, cursor.y + rectSize * (1 + matrixSize) + cornerRadius,
+                cursor.x + rectSize * (1 + cells) + cornerRadius, cursor.y + rectSize * (1 + cells) + cornerRadius,
                 ImGui.getColorU32(ImGuiCol.WindowBg), 2 * cornerRadius, 0, 2 * cornerRadius);
 
         float circleRadius = rectSize / 2.0f * 0.8f;
 
         // draw colored circles (rows)
-        for (int i = 0; i < matrixSize; i++) {
+        for (int i = 0; i < cells; i++) {
             float x = cursor.x;
             float y = cursor.y + rectSize + i * rectSize;
-            Color color = palette.getColor(i, matrixSize);
+            Color color = palette.getColor(i * typesPerCell, matrixSize);
             drawList.addCircleFilled(x + rectSize / 2.0f, y + rectSize / 2.0f, circleRadius, ImGui.colorConvertFloat4ToU32(color.r, color.g, color.b, color.a), 32);
         }
 
         // draw colored circles (columns)
-        for (int j = 0; j < matrixSize; j++) {
+        for (int j = 0; j < cells; j++) {
             float x = cursor.x + rectSize + rectSize * j;
             float y = cursor.y;
-            Color color = palette.getColor(j, matrixSize);
+            Color color = palette.getColor(j * typesPerCell, matrixSize);
             drawList.addCircleFilled(x + rectSize / 2.0f, y + rectSize / 2.0f, circleRadius,
                     ImGui.colorConvertFloat4ToU32(color.r, color.g, color.b, color.a), 32);
         }
@@ -79,26 +91,33 @@ class ImGuiMatrix {
         boolean hovering = false;
         int iHovering = 0;
         int jHovering = 0;
-        for (int i = 0; i < matrixSize; i++) {
-            for (int j = 0; j < matrixSize; j++) {
+        for (int i = 0; i < cells; i++) {
+            for (int j = 0; j < cells; j++) {
                 float x = cursor.x + rectSize + j * rectSize;
                 float y = cursor.y + rectSize + i * rectSize;
-                float value = (float) matrix.get(i, j);
+                float value = (float) cellValues[i][j];
 
                 if (ImGui.isMouseHoveringRect(x, y, x + rectSize, y + rectSize)) {
                     drawList.addRect(x, y, x + rectSize, y + rectSize,
                             ImGui.colorConvertFloat4ToU32(1, 1, 1, 1), 4);
-                    ImGui.setTooltip(String.format("%5.2f", value));
+                    if (typesPerCell == 1) {
+                        ImGui.setTooltip(String.format("%5.2f", value));
+                    } else {
+                        ImGui.setTooltip(String.format("%d-%d / %d-%d: %5.2f",
+                                i * typesPerCell, Math.min(matrixSize, (i + 1) * typesPerCell) - 1,
+                                j * typesPerCell, Math.min(matrixSize, (j + 1) * typesPerCell) - 1,
+                                value));
+                    }
 
                     hovering = true;
-                    iHovering = i;
-                    jHovering = j;
+                    iHovering = i * typesPerCell;
+                    jHovering = j * typesPerCell;
                 }
             }
         }
 
-        // user interaction
-        if (hovering) {
+        // user interaction (only if each cell is a single entry)
+        if (hovering && typesPerCell == 1) {
             double previousValue = matrix.get(iHovering, jHovering);
             double val = previousValue;
             if (ImGui.isMouseClicked(0, true)) {
@@ -118,10 +137,57 @@ class ImGuiMatrix {
 
         ImGui.dummy(w, h);
 
-        ImGuiUtils.helpMarker(String.format(
-                "Click with different mouse buttons to change values:\nLeft +%.2f.\nRight -%.2f.\nMiddle 0.", stepSize, stepSize
-        ));
+        if (typesPerCell == 1) {
+            ImGuiUtils.helpMarker(String.format(
+                    "Click with different mouse buttons to change values:\nLeft +%.2f.\nRight -%.2f.\nMiddle 0.", stepSize, stepSize
+            ));
+        } else {
+            ImGuiUtils.helpMarker(String.format(
+                    "Too many types to show each entry, so each cell shows %d x %d entries.\n" +
+                            "For sparse matrices, this is their mean, otherwise the value of the first entry.", typesPerCell, typesPerCell
+            ));
+        }
 
         return hovering ? new Vector2i(iHovering, jHovering) : null;
     }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * Summarizes blocks of <code>typesPerCell * typesPerCell</code> entries without looking at every entry.
+     */
+    private static double[][] getCellValues(Matrix matrix, int cells, int typesPerCell) {
+        int matrixSize = matrix.size();
+        double[][] cellValues = new double[cells][cells];
+
+        if (typesPerCell == 1) {
+            for (int i = 0; i < cells; i++) {
+                for (int j = 0; j < cells; j++) {
+                    cellValues[i][j] = matrix.get(i, j);
+                }
+            }
+        } else if (matrix instanceof SparseMatrix sparseMatrix) {
+            // mean: start with the default value everywhere and add the deviations of the stored entries
+            double defaultValue = sparseMatrix.getDefaultValue();
+            double[][] sums = new double[cells][cells];
+            sparseMatrix.forEachEntry((i, j, value) -> sums[i / typesPerCell][j / typesPerCell] += value - defaultValue);
+            for (int ci = 0; ci < cells; ci++) {
+                int rows = Math.min(matrixSize, (ci + 1) * typesPerCell) - ci * typesPerCell;
+                for (int cj = 0; cj < cells; cj++) {
+                    int columns = Math.min(matrixSize, (cj + 1) * typesPerCell) - cj * typesPerCell;
+                    cellValues[ci][cj] = defaultValue + sums[ci][cj] / (rows * columns);
+                }
+            }
+        } else {
+            for (int ci = 0; ci < cells; ci++) {
+                for (int cj = 0; cj < cells; cj++) {
+                    cellValues[ci][cj] = matrix.get(ci * typesPerCell, cj * typesPerCell);
+                }
+            }
+        }
+
+        return cellValues;
+    }
 }
@@ -3,6 +3,10 @@ package com.particle_life.app;
 import com.particle_life.*;
 import com.particle_life.app.color.*;
 import com.particle_life.app.cursors.*;
+import com.particle_life.app.distributed.DistributedRunner;
+import com.particle_life.app.forces.ForceCompiler;
+import com.particle_life.app.forces.ForceExpressionException;
+import com.particle_life.app.io.FrameRecorder;
 import com.particle_life.app.io.MatrixIO;
 import com.particle_life.app.io.ParticlesIO;
 import com.particle_life.app.io.ResourceAccess;
@@ -23,18 +27,26 @@ import org.joml.Vector2d;
 import org.joml.Vector3d;
 import org.lwjgl.Version;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -75,6 +87,16 @@ public class Main extends App {
     private final AppSettings appSettings = new AppSettings();
     private static final String SETTINGS_FILE_NAME = "settings.toml";
 
+    /**
+     * Used if the force function from the settings can't be parsed.
+     */
+    private static final Accelerator DEFAULT_ACCELERATOR = (a, pos) -> {
+        double beta = 0.3;
+        double dist = pos.length();
+        double force = dist < beta ? (dist / beta - 1) : a * (1 - Math.abs(1 + beta - 2 * dist) / (1 - beta));
+        return pos.mul(force / dist);
+    };
+
     /* If this value is set, an error popup is displayed,
      * waiting for the user to close the app. */
     private Exception error = null;
@@ -86,6 +108,7 @@ public class Main extends App {
     private SelectionManager<MatrixGenerator> matrixGenerators;
     private SelectionManager<PositionSetter> positionSetters;
     private SelectionManager<TypeSetter> typeSetters;
+    private SelectionManager<Function<Physics, PhysicsKernel>> physicsKernels;
     private Cursor cursor;
     private CursorShader cursorShader;
     private SelectionManager<CursorShape> cursorShapes;
@@ -95,10 +118,105 @@ public class Main extends App {
     // helper classes
     private final Matrix4d transform = new Matrix4d();
     private final ParticleRenderer particleRenderer = new ParticleRenderer();
+    private final DensityMapRenderer densityMapRenderer = new DensityMapRenderer();
+    private final ParticleRasterizer particleRasterizer = new ParticleRasterizer();
+    private FrameRecorder frameRecorder = null;
+    private String recordingError = null;
+    private boolean showingDensityMap = false;
+    private float[] densityMapPositions = null;  // positions that the density map is made of (may be longer than needed)
+    private ParticleShader bufferedShader = null;
+    private final SnapshotInterpolator snapshotInterpolator = new SnapshotInterpolator();
+    private double bufferedInterpolationProgress = 1;
+    private boolean particleDataOutdated = false;
+    // when zoomed in, only particles in this part of the world are buffered (null if all are)
+    private CamOperations.BoundingBox bufferedCullingBox = null;
+    private boolean bufferedCullingWrap = false;
+    // comparison of the geometry shader and instanced quads, see startDrawPathComparison()
+    private static final int DRAW_PATH_COMPARISON_BLOCK_FRAMES = 30;
+    private static final int DRAW_PATH_COMPARISON_BLOCKS = 4;
+    private int drawPathComparisonFrame = -1;  // frames drawn since the comparison started, or -1 if none is running
+    private String drawPathComparisonResult = null;
+    private volatile boolean snapshotCellsRequested = false;  // whether the physics thread should sort the snapshots into cells
+    private volatile boolean snapshotVelocitiesRequested = false;  // whether the snapshots need velocities for the shader
+    private static final double CULLING_SLACK = 0.25;  // relative to the cam size, so that panning a bit needs no new data
+
+    // quality governor and the settings it controls
+    private QualityGovernor governor;
+    private boolean governorSleeping = false;
+    private int snapshotInterval = 1;  // request a snapshot every this many frames
+    private int framesSinceSnapshotRequest = 0;
+    private int governorBaseParticleCount = -1;  // particle count before the governor reduced it
+
+    // kernel warm-up (see KernelWarmUp)
+    private static final long WARM_UP_MILLIS = 3000;  // per kernel
+    private static final long WARM_UP_DELAY_MILLIS = 300;  // wait until e.g. a slider was released
+    // only used by the physics thread:
+    private KernelWarmUp kernelWarmUp = null;
+    private Object warmedUpKey = null;
+    private Object changedKey = null;
+    private long keyChangedTime = 0;
+    // written by the warm-up:
+    private volatile boolean warmingUpBeforeFirstStep = false;
+    private volatile List<KernelWarmUp.Result> warmUpResults = List.of();
     private final ImGuiImplGl3 imGuiGl3 = new ImGuiImplGl3();
 
     private ExtendedPhysics physics;
     private Loop loop;
+    /**
+     * If not null, the physics is updated by worker processes.
+     * Only used by the physics thread.
+     */
+    private DistributedRunner distributedRunner = null;
+    /**
+     * Worker processes that are still being started, see {@link #setWorkerProcessCount(int)}.
+     */
+    private volatile WorkerConnection pendingWorkerConnection = null;
+
+    /**
+     * Key for commands that set one entry of the matrix, see {@link Loop#enqueue(Object, Runnable)}.
+     */
+    private record MatrixEntryKey(int i, int j) {
+    }
+
+    /**
+     * Hands a {@link DistributedRunner} that was started in the background over to the physics thread.
+     * If it is cancelled before the physics thread took it, the runner is closed.
+     */
+    private static final class WorkerConnection {
+        private DistributedRunner runner = null;
+        private boolean cancelled = false;
+
+        /**
+         * @param runner the started runner, or null if starting failed
+         * @return whether the physics thread should take the result, i.e. the connection wasn't cancelled
+         */
+        synchronized boolean connected(DistributedRunner runner) {
+            if (cancelled) {
+                if (runner != null) runner.close();
+                return false;
+            }
+            this.runner = runner;
+            return true;
+        }
+
+        /**
+         * @return the runner, or null if starting failed or the connection was cancelled
+         */
+        synchronized DistributedRunner take() {
+            DistributedRunner taken = runner;
+            runner = null;
+            cancelled = true;
+            return taken;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (runner != null) {
+                runner.close();
+                runner = null;
+            }
+        }
+    }
     /**
      * The snapshot is used to store a deep copy of the physics state
      * (particles, physics settings, ...) just for this thread,
@@ -107,14 +225,29 @@ public class Main extends App {
      * Otherwise, the renderer could get in trouble if it tries to
      * access the data while it is being modified by the physics simulation.
      */
+    private TripleBuffer<PhysicsSnapshot> physicsSnapshots;
+    /**
+     * The latest snapshot that this thread fetched from {@link #physicsSnapshots}.
+     * The physics thread never writes to it while it is used here,
+     * so everything on this thread (rendering, cursor, GUI) can read it safely.
+     */
     private PhysicsSnapshot physicsSnapshot;
-    private LoadDistributor physicsSnapshotLoadDistributor;  // speed up taking snapshots with parallelization
-    public AtomicBoolean newSnapshotAvailable = new AtomicBoolean(false);
+    /**
+     * Whether the render thread asked for a new snapshot that the next step should write.
+     * Only used by the physics thread.
+     */
+    private boolean snapshotRequested = false;
 
     // local copy of snapshot:
     private PhysicsSettings settings;
     private int particleCount;
+    private int awakeCount;
     private int preferredNumberOfThreads;
+    private int tileCount;
+    private int workerProcessCount;
+    private int crossValidationInterval;
+    private String kernelName;
+    private double maxDeviation;
     private int cursorParticleCount = 0;
 
     // particle rendering: controls
@@ -127,6 +260,13 @@ public class Main extends App {
     boolean draggingShift = false;
     boolean leftDraggingParticles = false;  // dragging with left mouse button
     boolean rightDraggingParticles = false;  // dragging with right mouse button
+    /**
+     * A move of the dragged particles that the loop didn't accept yet (see {@link #sendPendingMove}),
+     * or null. The particles are still where it starts, so it covers the whole distance since then.
+     */
+    private Vector3d pendingMoveStart = null;
+    private Vector3d pendingMoveStop = null;
+    private Cursor pendingMoveCursor = null;
     boolean leftPressed = false;
     boolean rightPressed = false;
     boolean upPressed = false;
@@ -156,12 +296,21 @@ public class Main extends App {
 
     // GUI: widget state variables
     private final ImString saveName = new ImString();
+    private ImString forceFunctionInput;
+    private String forceFunctionError = null;
     private ImGuiCardView.Card[] saveCards = new ImGuiCardView.Card[0];
     private final AtomicBoolean requestedSaveCardsLoading = new AtomicBoolean(true);
-    private int[] saveImage = null;
     private static final int SAVE_IMAGE_SIZE = 256;
     private boolean requestedSaveImage = false;
     private File selectedSaveFile = null;
+    /**
+     * Writes the save files, so that neither the physics nor the graphics wait for the PNG encoder.
+     */
+    private final ExecutorService saveWriter = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Save-Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // offscreen rendering buffers
     private MultisampledFramebuffer worldTexture;  // particles
@@ -189,6 +338,7 @@ public class Main extends App {
         imGuiGl3.init("#version 410 core");
 
         particleRenderer.init();
+        densityMapRenderer.init();
 
         try {
             cursorShader = new CursorShader();
@@ -200,12 +350,15 @@ public class Main extends App {
         cursor = new Cursor();
         cursor.size = appSettings.cursorSize;
 
+        forceFunctionInput = new ImString(appSettings.forceFunction, 1024);
+
         try {
             shaders = new SelectionManager<>(new ShaderProvider());
             palettes = new SelectionManager<>(new PalettesProvider());
             matrixGenerators = new SelectionManager<>(new MatrixGeneratorProvider());
             positionSetters = new SelectionManager<>(new PositionSetterProvider());
             typeSetters = new SelectionManager<>(new TypeSetterProvider());
+            physicsKernels = new SelectionManager<>(new PhysicsKernelProvider());
             cursorShapes = new SelectionManager<>(new CursorProvider());
             cursorActions1 = new SelectionManager<>(new CursorActionProvider());
             cursorActions2 = new SelectionManager<>(new CursorActionProvider());
@@ -229,7 +382,14 @@ public class Main extends App {
 
         createPhysics();
         loop = new Loop();
+        loop.targetStepRate = appSettings.physicsStepRate;
+        if (appSettings.warmUp) {
+            // the loop isn't running yet, so this thread may read the physics
+            warmedUpKey = KernelWarmUp.getKey(physics);
+            loop.enqueue(() -> warmUpKernels(true));
+        }
         loop.start(this::updatePhysics);
+        governor = createGovernor();
 
         // set default selection for palette
         if (palettes.hasName(appSettings.palette)) {
@@ -256,28 +416,218 @@ public class Main extends App {
     }
 
     private void createPhysics() {
-        Accelerator accelerator = (a, pos) -> {
-            double beta = 0.3;
-            double dist = pos.length();
-            double force = dist < beta ? (dist / beta - 1) : a * (1 - Math.abs(1 + beta - 2 * dist) / (1 - beta));
-            return pos.mul(force / dist);
-        };
+        Accelerator accelerator;
+        try {
+            accelerator = ForceCompiler.createAccelerator(appSettings.forceFunction);
+        } catch (ForceExpressionException e) {
+            forceFunctionError = e.getMessage();
+            accelerator = DEFAULT_ACCELERATOR;
+        }
         physics = new ExtendedPhysics(
                 accelerator,
                 positionSetters.getActive(),
                 matrixGenerators.getActive(),
                 typeSetters.getActive());
-        physicsSnapshot = new PhysicsSnapshot();
-        physicsSnapshotLoadDistributor = new LoadDistributor();
-        physicsSnapshot.take(physics, physicsSnapshotLoadDistributor);
-        newSnapshotAvailable.set(true);
+        physics.sleeping = appSettings.sleeping;
+        physics.kernel = physicsKernels.getActive().apply(physics);
+        physics.stateSink = new ParticleStateSink() {
+            @Override
+            public ParticleState beginStep() {
+                if (!snapshotRequested) return null;
+                snapshotRequested = false;
+                PhysicsSnapshot snapshot = physicsSnapshots.getWriteBuffer();
+                snapshot.withVelocities = snapshotVelocitiesRequested;
+                return snapshot;
+            }
+
+            @Override
+            public void endStep(ParticleState state) {
+                ((PhysicsSnapshot) state).takeMetadata(physics, getWorkerProcessCount());
+                if (snapshotCellsRequested) ((PhysicsSnapshot) state).sortIntoCells();
+                physicsSnapshots.publish();
+            }
+        };
+        physicsSnapshots = new TripleBuffer<>(PhysicsSnapshot::new);
+        // the loop isn't running yet, so this thread may write
+        physicsSnapshots.getWriteBuffer().take(physics, getWorkerProcessCount());
+        physicsSnapshots.publish();
+        physicsSnapshot = physicsSnapshots.getReadBuffer();
+    }
+
+    /**
+     * Creates the governor with the levers named in {@link AppSettings#governorLevers}, in that order.
+     */
+    private QualityGovernor createGovernor() {
+        Map<String, QualityGovernor.Lever> available = new LinkedHashMap<>();
+        available.put("sleeping", new QualityGovernor.Lever("Sleeping", true, false, level -> {
+            governorSleeping = level > 0;
+            final boolean newSleeping = appSettings.sleeping || governorSleeping;
+            loop.enqueue("sleeping", () -> physics.sleeping = newSleeping);
+        }, "exact", "approximate (sleeping)"));
+        available.put("snapshots", new QualityGovernor.Lever("Snapshots", true, true, level -> {
+            snapshotInterval = 1 << level;
+        }, "every frame", "every 2nd frame", "every 4th frame"));
+        available.put("decimation", new QualityGovernor.Lever("Drawn particles", false, true, level -> {
+            particleRenderer.decimation = 1 << level;
+            particleDataOutdated = true;
+        }, "all", "every 2nd", "every 4th"));
+        available.put("particles", new QualityGovernor.Lever("Particle count", true, true, level -> {
+            if (governorBaseParticleCount < 0) {
+                if (level == 0) return;  // the user has set a new count in the meantime
+                governorBaseParticleCount = particleCount;
+            }
+            final int newCount = governorBaseParticleCount * (4 - level) / 4;
+            if (level == 0) governorBaseParticleCount = -1;
+            loop.enqueue("particle count", () -> physics.setParticleCount(newCount));
+        }, "100%", "75%", "50%", "25%"));
+
+        List<QualityGovernor.Lever> levers = new ArrayList<>();
+        for (String name : appSettings.governorLevers.split(",")) {
+            QualityGovernor.Lever lever = available.get(name.trim());
+            if (lever == null) {
+                System.err.println("Unknown quality governor lever: " + name.trim());
+            } else {
+                levers.add(lever);
+            }
+        }
+        return new QualityGovernor(levers);
     }
 
     private void updatePhysics(double realDt) {
         physics.settings.dt = appSettings.autoDt ? realDt : appSettings.dt;
+        if (appSettings.warmUp && distributedRunner == null) warmUpIfChanged();
+        if (distributedRunner != null) {
+            try {
+                distributedRunner.update(physics, appSettings.forceFunction);
+                if (snapshotRequested) publishSnapshot();
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Lost connection to worker processes, continuing in this process.");
+                closeDistributedRunner();
+            }
+        }
         physics.update();
     }
 
+    /**
+     * Starts a warm-up in the background if the compiled code that the physics needs
+     * has changed a while ago, e.g. because the accelerator or rmax changed.
+     * Must be called from the physics thread.
+     */
+    private void warmUpIfChanged() {
+        Object key = KernelWarmUp.getKey(physics);
+        if (key.equals(warmedUpKey)) return;
+        long now = System.currentTimeMillis();
+        if (!key.equals(changedKey)) {
+            changedKey = key;
+            keyChangedTime = now;
+            return;
+        }
+        if (now - keyChangedTime < WARM_UP_DELAY_MILLIS) return;
+        warmedUpKey = key;
+        warmUpKernels(false);
+    }
+
+    /**
+     * Runs the kernels on a small copy of the physics until they are compiled, see {@link KernelWarmUp}.
+     * Must be called from the physics thread.
+     *
+     * @param inThisThread whether to run it here, so that the next step waits for it,
+     *                     or in the background while the physics continues
+     */
+    private void warmUpKernels(boolean inThisThread) {
+        if (kernelWarmUp != null) kernelWarmUp.cancel();
+        final KernelWarmUp warmUp = new KernelWarmUp(physics, KernelWarmUp.DEFAULT_PARTICLE_COUNT,
+                appSettings.warmUpAllKernels);
+        kernelWarmUp = warmUp;
+        Runnable task = () -> {
+            List<KernelWarmUp.Result> results = warmUp.run(WARM_UP_MILLIS);
+            for (KernelWarmUp.Result result : results) {
+                System.out.printf("Warmed up '%s' engine in %.0f ms (%d steps, %.2f ms per step%s)%n",
+                        result.kernelName(), result.millis(), result.steps(), result.stepMillis(),
+                        result.converged() ? "" : ", not converged");
+            }
+            if (!results.isEmpty()) warmUpResults = results;
+        };
+        if (inThisThread) {
+            warmingUpBeforeFirstStep = true;
+            try {
+                task.run();
+            } finally {
+                warmingUpBeforeFirstStep = false;
+            }
+        } else {
+            Thread thread = new Thread(task, "Kernel-Warm-Up");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Copies the physics into the next snapshot in a separate pass.
+     * Must be called from the physics thread.
+     */
+    private void publishSnapshot() {
+        PhysicsSnapshot snapshot = physicsSnapshots.getWriteBuffer();
+        snapshot.withVelocities = snapshotVelocitiesRequested;
+        snapshot.take(physics, getWorkerProcessCount());
+        if (snapshotCellsRequested) snapshot.sortIntoCells();
+        physicsSnapshots.publish();
+        snapshotRequested = false;
+    }
+
+    /**
+     * Starts the worker processes in the background, as connecting them can take seconds.
+     * The physics continues in this process until they are connected.
+     * Must be called from the physics thread.
+     *
+     * @param count the number of worker processes, or 0 to update the physics in this process
+     */
+    private void setWorkerProcessCount(int count) {
+        closeDistributedRunner();
+        if (count > 0) {
+            final WorkerConnection connection = new WorkerConnection();
+            pendingWorkerConnection = connection;
+            final Loop loop = this.loop;
+            Thread thread = new Thread(() -> {
+                DistributedRunner runner = null;
+                try {
+                    runner = new DistributedRunner(count);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (connection.connected(runner)) loop.enqueue(() -> {
+                    // null if it was cancelled in the meantime, e.g. by a newer setWorkerProcessCount()
+                    DistributedRunner taken = connection.take();
+                    if (taken != null) distributedRunner = taken;
+                    if (pendingWorkerConnection == connection) pendingWorkerConnection = null;
+                });
+            }, "Worker-Connect");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Must be called from the physics thread.
+     */
+    private int getWorkerProcessCount() {
+        return distributedRunner == null ? 0 : distributedRunner.getWorkerCount();
+    }
+
+    private void closeDistributedRunner() {
+        WorkerConnection connection = pendingWorkerConnection;
+        if (connection != null) {
+            connection.cancel();
+            pendingWorkerConnection = null;
+        }
+        if (distributedRunner != null) {
+            distributedRunner.close();
+            distributedRunner = null;
+        }
+    }
+
     @Override
     protected void beforeClose() {
 
@@ -315,8 +665,20 @@ public class Main extends App {
         if (!loop.stop(1000)) {
             loop.kill();
             physics.kill();
-            physicsSnapshotLoadDistributor.kill();
         }
+        closeDistributedRunner();
+
+        // let the background threads finish writing their files
+        if (frameRecorder != null && !frameRecorder.finish(5000)) {
+            System.err.println("Recording was not written completely.");
+        }
+        saveWriter.shutdown();
+        try {
+            saveWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         imGuiGl3.shutdown();
     }
 
@@ -327,6 +689,7 @@ public class Main extends App {
             updateCanvas();
 
             int texWidth, texHeight;
+            Vector2d texCamSize = new Vector2d(1, 1);  // part of the world that the texture covers
 
             // todo: make this part look less like magic
             int desiredTexSize = (int) Math.round(Math.min(width, height) / camSize);
@@ -345,7 +708,7 @@ public class Main extends App {
                     texWidth = width;
                     texHeight = height;
                 }
-                Vector2d texCamSize = new Vector2d(camSize);
+                texCamSize.set(camSize, camSize);
                 if (width > height) texCamSize.x *= (double) texWidth / texHeight;
                 else if (height > width) texCamSize.y *= (double) texHeight / texWidth;
                 new NormalizedDeviceCoordinates(
@@ -354,45 +717,70 @@ public class Main extends App {
                 ).getMatrix(transform);
             }
 
-            worldTexture.ensureSize(texWidth, texHeight, 16);
+            CamOperations cam = new CamOperations(camPos, camSize, width, height);
+            CamOperations.BoundingBox camBox = cam.getBoundingBox();
 
-            ParticleShader particleShader = shaders.getActive();
+            int particleTexture;
+            if (showingDensityMap) {
+                densityMapRenderer.render(densityMapPositions,
+                        physicsSnapshot.dimensions,
+                        physicsSnapshot.types,
+                        physicsSnapshot.particleCount,
+                        getColorsFromPalette(physicsSnapshot.settings.matrix.size(), palettes.getActive()),
+                        texWidth, texHeight,
+                        camSize > 1 ? 0 : camBox.left, camSize > 1 ? 0 : camBox.top,
+                        texCamSize.x, texCamSize.y,
+                        settings.wrap,
+                        getParticlesPerPixel());
+                particleTexture = densityMapRenderer.getTexture();
+            } else {
+                worldTexture.ensureSize(texWidth, texHeight, 16);
 
-            // set shader variables
-            particleShader.use();
+                ParticleShader particleShader = getVariant(shaders.getActive());
 
-            particleShader.setTime(System.nanoTime() / 1000_000_000.0f);
-            particleShader.setPalette(getColorsFromPalette(settings.matrix.size(), palettes.getActive()));
-            particleShader.setTransform(transform);
+                // set shader variables
+                particleShader.use();
 
-            CamOperations cam = new CamOperations(camPos, camSize, width, height);
-            CamOperations.BoundingBox camBox = cam.getBoundingBox();
-            if (camSize > 1) {
-                particleShader.setCamTopLeft(0, 0);
-            } else {
-                particleShader.setCamTopLeft((float) camBox.left, (float) camBox.top);
-            }
-            particleShader.setWrap(settings.wrap);
-            particleShader.setSize(appSettings.particleSize * 2 * (float) settings.rmax
-                    * (appSettings.keepParticleSizeIndependentOfZoom ? (float) camSize : 1));
+                particleShader.setTime(System.nanoTime() / 1000_000_000.0f);
+                particleShader.setPalette(getColorsFromPalette(settings.matrix.size(), palettes.getActive()));
+                particleShader.setTransform(transform);
+
+                if (camSize > 1) {
+                    particleShader.setCamTopLeft(0, 0);
+                } else {
+                    particleShader.setCamTopLeft((float) camBox.left, (float) camBox.top);
+                }
+                particleShader.setWrap(settings.wrap);
+                particleShader.setSize(appSettings.particleSize * 2 * (float) settings.rmax
+                        * (appSettings.keepParticleSizeIndependentOfZoom ? (float) camSize : 1));
 
-            if (!traces) worldTexture.clear(0, 0, 0, 0);
+                if (!traces) worldTexture.clear(0, 0, 0, 0);
 
-            glEnable(GL_BLEND);
-            particleShader.blendMode.glBlendFunc();
+                glEnable(GL_BLEND);
+                particleShader.blendMode.glBlendFunc();
 
-            glDisable(GL_SCISSOR_TEST);
-            glViewport(0, 0, texWidth, texHeight);
+                glDisable(GL_SCISSOR_TEST);
+                glViewport(0, 0, texWidth, texHeight);
 
-            glBindFramebuffer(GL_FRAMEBUFFER, worldTexture.framebufferMulti);
-            particleRenderer.drawParticles();
-            worldTexture.toSingleSampled();
+                glBindFramebuffer(GL_FRAMEBUFFER, worldTexture.framebufferMulti);
+                particleRenderer.drawParticles(particleShader, settings.wrap);
+                if (drawPathComparisonFrame >= 0 && ++drawPathComparisonFrame
+                        == DRAW_PATH_COMPARISON_BLOCKS * DRAW_PATH_COMPARISON_BLOCK_FRAMES) {
+                    finishDrawPathComparison();
+                }
+                worldTexture.toSingleSampled();
+                particleTexture = worldTexture.textureSingle;
+            }
 
-            glBindTexture(GL_TEXTURE_2D, worldTexture.textureSingle);
+            glBindTexture(GL_TEXTURE_2D, particleTexture);
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, settings.wrap ? GL_REPEAT : GL_CLAMP_TO_BORDER);
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, settings.wrap ? GL_REPEAT : GL_CLAMP_TO_BORDER);
             glBindTexture(GL_TEXTURE_2D, 0);
 
+            if (frameRecorder != null && frameRecorder.wantsFrame()) {
+                captureFrame(particleTexture, texWidth, texHeight);
+            }
+
             // render cursor onto separate framebuffer
             cursorTexture.ensureSize(width, height, 16);
             cursorTexture.clear(0, 0, 0, 0);
@@ -420,11 +808,11 @@ public class Main extends App {
             imGuiGl3.newFrame();
             ImGui.newFrame();
             if (camSize > 1) {
-                ImGui.getBackgroundDrawList().addImage(worldTexture.textureSingle, 0, 0, width, height,
+                ImGui.getBackgroundDrawList().addImage(particleTexture, 0, 0, width, height,
                         (float) camBox.left, (float) camBox.top,
                         (float) camBox.right, (float) camBox.bottom);
             } else {
-                ImGui.getBackgroundDrawList().addImage(worldTexture.textureSingle, 0, 0, width, height,
+                ImGui.getBackgroundDrawList().addImage(particleTexture, 0, 0, width, height,
                         0, 0, (float) width / texWidth, (float) height / texHeight);
             }
             ImGui.getBackgroundDrawList().addImage(cursorTexture.textureSingle, 0, 0, width, height,
@@ -478,36 +866,18 @@ public class Main extends App {
         camSize = MathUtils.lerp(camSize, camSizeGoal, appSettings.zoomSmoothness);
 
         // count particles under cursor
-        {
-            try {
-                cursorParticleCount = cursor.countSelection(physics.particles, physics.settings.wrap);
-            } catch (NullPointerException e) {
-                e.printStackTrace();
-                /*
-                 The particle array might be null if the physics thread
-                 replaces the particle array while this executes
-                 (e.g. if the particle count is changed).
-                 I admit that this is not a clean solution, but anything else
-                 would have required too many changes to the code
-                 base, i.e. would have been overkill for this simple task.
-                 For example, the following would have been a clean solution:
-                     Do proper triple buffering of the particle array.
-                     In physics thread:
-                         1. copy Physics.particles -> physicsSnapshot1.particles
-                     In main thread (here):
-                         1. copy physicsSnapshot1.particles -> physicsSnapshot2.particles
-                         2. upload physicsSnapshot1(or 2).particles -> GPU
-                     Then, physicsSnapshot2.particles could be used here for counting the selection without risk.
-                 Another clean solution would maybe be to declare Physics.particles as volatile?
-                 Currently, another safe way would be to use the following:
-                     loop.enqueue(() -> cursorParticleCount = cursor.countSelection(physics));
-                 But this would make the particle count laggy if the physics simulation is slow,
-                 and I find it a better user experience to have the particle count ALWAYS update in real time.
-                */
-            }
-        }
+        // (in the snapshot, so that it matches what is displayed and updates in real time even if the physics is slow)
+        cursorParticleCount = cursor.countSelection(physicsSnapshot.positions, physicsSnapshot.dimensions,
+                physicsSnapshot.particleCount, physicsSnapshot.settings.wrap);
 
         // cursor actions
+        SelectionManager<CursorAction> draggingActions = leftDraggingParticles ? cursorActions1 : cursorActions2;
+        boolean moving = (leftDraggingParticles || rightDraggingParticles)
+                && draggingActions.getActive() == CursorAction.MOVE;
+        if (pendingMoveStart != null && !moving) {
+            // the dragging stopped before the last move was accepted, so it must not be dropped anymore
+            sendPendingMove(true);
+        }
         if (leftDraggingParticles || rightDraggingParticles) {
 
             // need to copy for async access in loop.enqueue()
@@ -519,25 +889,18 @@ public class Main extends App {
             }
 
             // execute cursor action
-            SelectionManager<CursorAction> cursorActions = leftDraggingParticles ? cursorActions1 : cursorActions2;
-            switch (cursorActions.getActive()) {
+            switch (draggingActions.getActive()) {
                 case MOVE -> {
-                    final Vector3d dragStartWorld = screen.screenToWorld(pmouseX, pmouseY);  // where the dragging started
-                    final Vector3d dragStopWorld = screen.screenToWorld(mouseX, mouseY);  // where the dragging ended
-                    final Vector3d delta = dragStopWorld.sub(dragStartWorld);  // dragged distance
-                    cursorCopy.position.set(dragStartWorld.x, dragStartWorld.y, 0.0);  // set cursor copy to start of dragging
-                    loop.enqueue(() -> {
-                        for (Particle p : cursorCopy.getSelection(physics.particles, physics.settings.wrap)) {
-                            p.position.add(delta.x, delta.y, 0);
-                            physics.ensurePosition(p.position);  // wrap or clamp
-                        }
-                    });
+                    if (pendingMoveStart == null) {
+                        pendingMoveStart = screen.screenToWorld(pmouseX, pmouseY);  // where the dragging started
+                    }
+                    pendingMoveStop = screen.screenToWorld(mouseX, mouseY);  // where the dragging ended
+                    pendingMoveCursor = cursorCopy;
+                    sendPendingMove(false);
                 }
                 case BRUSH -> {
                     final int addCount = appSettings.brushPower;
-                    loop.enqueue(() -> {
-                        int prevLength = physics.particles.length;
-                        physics.particles = Arrays.copyOf(physics.particles, prevLength + addCount);
+                    loop.tryEnqueue(() -> {
                         for (int i = 0; i < addCount; i++) {
                             Particle particle = new Particle();
                             particle.position.set(cursorCopy.sampleRandomPoint());
@@ -548,45 +911,102 @@ public class Main extends App {
                                     particle.type,
                                     physics.settings.matrix.size()
                             );
-                            physics.particles[prevLength + i] = particle;
+                            physics.addParticle(particle);
                         }
                     });
                 }
                 case DELETE -> {
-                    loop.enqueue(() -> {
-                        Particle[] newParticles = new Particle[physics.particles.length];
-                        int j = 0;
-                        for (Particle particle : physics.particles) {
-                            if (!cursorCopy.isInside(particle, physics.settings.wrap)) {
-                                newParticles[j] = particle;
-                                j++;
+                    loop.tryEnqueue(() -> {
+                        // the particles are only marked here and dropped during the next step
+                        for (Particle particle : cursorCopy.getSelection(physics.particles, physics.getParticleCount(), physics.settings.wrap)) {
+                            if (physics.removeParticle(particle)) {
+                                physics.disturb(particle.position);  // wake up the remaining neighbors
                             }
                         }
-                        physics.particles = Arrays.copyOf(newParticles, j);  // cut to correct length
                     });
                 }
             }
         }
 
-        if (newSnapshotAvailable.get()) {
+        boolean newSnapshot = physicsSnapshots.hasNew();
+        if (newSnapshot) {
 
             // get local copy of snapshot
 
-            particleRenderer.bufferParticleData(shaders.getActive(),
-                    physicsSnapshot.positions,
-                    physicsSnapshot.velocities,
-                    physicsSnapshot.types);
+            // the previous snapshot is handed back to the physics thread, so keep its positions
+            snapshotInterpolator.keep(physicsSnapshot);
+            physicsSnapshot = physicsSnapshots.getReadBuffer();
             settings = physicsSnapshot.settings.deepCopy();
             particleCount = physicsSnapshot.particleCount;
-            preferredNumberOfThreads = physics.preferredNumberOfThreads;
+            awakeCount = physicsSnapshot.awakeCount;
+            preferredNumberOfThreads = physicsSnapshot.preferredNumberOfThreads;
+            tileCount = physicsSnapshot.tileCount;
+            workerProcessCount = physicsSnapshot.workerProcessCount;
+            crossValidationInterval = physicsSnapshot.crossValidationInterval;
+            kernelName = physicsSnapshot.kernelName;
+            maxDeviation = physicsSnapshot.maxDeviation;
+        }
 
-            newSnapshotAvailable.set(false);
+        double interpolationProgress = appSettings.interpolateSnapshots
+                ? snapshotInterpolator.getProgress(physicsSnapshot, System.nanoTime()) : 1;
+        boolean densityMap = isDensityMapNeeded();
+        // nothing was buffered while the density map was shown
+        if (showingDensityMap && !densityMap) particleDataOutdated = true;
+        showingDensityMap = densityMap;
+        if (densityMap) {
+            densityMapPositions = snapshotInterpolator.interpolate(physicsSnapshot, interpolationProgress);
+        }
+        CamOperations.BoundingBox neededBox = densityMap ? null : getCullingBox(0);
+        snapshotCellsRequested = neededBox != null;
+        boolean velocitiesNeeded = !densityMap && getVariant(shaders.getActive()).vAttribLocation != -1;
+        snapshotVelocitiesRequested = velocitiesNeeded;
+        if (velocitiesNeeded && !physicsSnapshot.withVelocities && loop.isPaused()) {
+            // e.g. the shader was just switched, and the paused physics wouldn't send another snapshot
+            loop.enqueue("velocities", this::publishSnapshot);
+        }
+        // until the physics thread sorted a snapshot into cells, all particles are buffered
+        if (!physicsSnapshot.hasCells) neededBox = null;
+        // While interpolating, the positions change every frame.
+        // The paused physics doesn't send new snapshots, but a new shader needs the data as well.
+        // If the camera moved too far, other particles have to be buffered.
+        if (!densityMap && (newSnapshot || interpolationProgress < 1 || bufferedInterpolationProgress < 1
+                || getVariant(shaders.getActive()) != bufferedShader || particleDataOutdated
+                || isCullingOutdated(neededBox))) {
+            bufferedShader = getVariant(shaders.getActive());
+            bufferedInterpolationProgress = interpolationProgress;
+            particleDataOutdated = false;
+            bufferedCullingBox = neededBox != null ? getCullingBox(CULLING_SLACK) : null;
+            bufferedCullingWrap = physicsSnapshot.settings.wrap;
+            particleRenderer.quantizePositions = appSettings.quantizePositions;
+            particleRenderer.bufferParticleData(bufferedShader,
+                    snapshotInterpolator.interpolate(physicsSnapshot, interpolationProgress),
+                    physicsSnapshot.withVelocities ? physicsSnapshot.velocities : null,
+                    physicsSnapshot.types,
+                    physicsSnapshot.particleCount,
+                    physicsSnapshot.dimensions,
+                    physicsSnapshot.cells,
+                    bufferedCullingBox,
+                    bufferedCullingWrap);
         }
 
-        loop.doOnce(() -> {
-            physicsSnapshot.take(physics, physicsSnapshotLoadDistributor);
-            newSnapshotAvailable.set(true);
-        });
+        if (++framesSinceSnapshotRequest >= snapshotInterval) {
+            framesSinceSnapshotRequest = 0;
+            final boolean fromPositionPass = appSettings.snapshotFromPositionPass;
+            loop.doOnce(() -> {
+                if (fromPositionPass && !loop.isPaused()) {
+                    // the next step writes it while it updates the positions
+                    snapshotRequested = true;
+                } else {
+                    publishSnapshot();
+                }
+            });
+        }
+
+        if (appSettings.governor) {
+            governor.targetStepRate = appSettings.physicsStepRate > 0 ? appSettings.physicsStepRate : appSettings.governorStepRate;
+            governor.targetFramerate = appSettings.governorFramerate;
+            governor.update(System.currentTimeMillis(), loop.getStepCount(), loop.getWorkNanos(), !loop.isPaused());
+        }
 
         if (mouseX == 0 && mouseY == 0 && !showGui.get()) {
             showGui.set(true);
@@ -654,13 +1074,14 @@ public class Main extends App {
                 ImInt particleCountInput = new ImInt(particleCount);
                 if (ImGui.inputInt("Particle count", particleCountInput, 1000, 1000, ImGuiInputTextFlags.EnterReturnsTrue)) {
                     final int newCount = Math.max(0, particleCountInput.get());
-                    loop.enqueue(() -> physics.setParticleCount(newCount));
+                    governorBaseParticleCount = -1;
+                    loop.enqueue("particle count", () -> physics.setParticleCount(newCount));
                 }
 
                 // POSITION SETTERS
                 if (ImGuiUtils.renderCombo("##positions", positionSetters)) {
                     final PositionSetter nextPositionSetter = positionSetters.getActive();
-                    loop.enqueue(() -> physics.positionSetter = nextPositionSetter);
+                    loop.enqueue("position setter", () -> physics.positionSetter = nextPositionSetter);
                 }
                 ImGui.sameLine();
                 if (ImGui.button("Positions")) {
@@ -673,7 +1094,7 @@ public class Main extends App {
                 // MATRIX GENERATORS
                 if (ImGuiUtils.renderCombo("##matrix", matrixGenerators)) {
                     final MatrixGenerator nextMatrixGenerator = matrixGenerators.getActive();
-                    loop.enqueue(() -> physics.matrixGenerator = nextMatrixGenerator);
+                    loop.enqueue("matrix generator", () -> physics.matrixGenerator = nextMatrixGenerator);
                 }
                 ImGui.sameLine();
                 if (ImGui.button("Matrix")) {
@@ -686,7 +1107,7 @@ public class Main extends App {
                         palettes.getActive(),
                         appSettings.matrixGuiStepSize,
                         settings.matrix,
-                        (i, j, newValue) -> loop.enqueue(() -> physics.settings.matrix.set(i, j, newValue))
+                        (i, j, newValue) -> loop.enqueue(new MatrixEntryKey(i, j), () -> physics.settings.matrix.set(i, j, newValue))
                 );
                 if (ImGui.button("Copy")) {
                     ImGui.setClipboardText(MatrixParser.matrixToString(settings.matrix));
@@ -728,7 +1149,7 @@ public class Main extends App {
                 // NTYPES
                 ImInt matrixSizeInput = new ImInt(settings.matrix.size());
                 if (ImGui.inputInt("Colors##input", matrixSizeInput, 1, 1, ImGuiInputTextFlags.EnterReturnsTrue)) {
-                    final int newSize = Math.max(1, Math.min(matrixSizeInput.get(), 256));
+                    final int newSize = Math.max(1, Math.min(matrixSizeInput.get(), ParticleShader.MAX_PALETTE_SIZE));
                     loop.enqueue(() -> physics.setMatrixSize(newSize));
                 }
 
@@ -776,32 +1197,37 @@ public class Main extends App {
                     ImGuiWindowFlags.NoResize | ImGuiWindowFlags.NoNavFocus | ImGuiWindowFlags.NoMove)) {
                 ImGui.pushItemWidth(200);
 
-                if (ImGui.button(loop.pause ? "Play" : "Pause", 80, 0)) {
-                    loop.pause ^= true;
+                if (ImGui.button(loop.isPaused() ? "Play" : "Pause", 80, 0)) {
+                    loop.setPause(!loop.isPaused());
                 }
                 ImGuiUtils.helpMarker("[SPACE] " +
                         "The physics simulation runs independently from the graphics in the background.");
 
                 ImGui.sameLine();
                 if (loop.getAvgFramerate() < 100000) {
-                    ImGui.text(String.format("FPS: %5.0f", loop.getAvgFramerate()));
+                    ImGui.text(String.format("FPS: %5.0f (jitter %.1f ms)", loop.getAvgFramerate(), loop.getJitterMillis()));
                 } else {
                     ImGui.text("");
                 }
+                CommandBus commands = loop.getCommands();
+                ImGui.text(String.format("Command latency: %.1f ms (max. %.0f ms)",
+                        commands.getLastLatencyMillis(), commands.getMaxLatencyMillis()));
+                ImGuiUtils.helpMarker("How long the last changes took until the physics applied them." +
+                        "\nIf the same setting is changed several times in the meantime, only the last value is applied.");
 
                 // SliderFloat Block
                 ImGuiUtils.numberInput("rmax",
                         0.005f, 1f,
                         (float) settings.rmax,
                         "%.3f",
-                        value -> loop.enqueue(() -> physics.settings.rmax = value));
+                        value -> loop.enqueue("rmax", () -> physics.settings.rmax = value));
                 ImGuiUtils.helpMarker("The distance at which particles interact.");
 
                 ImGuiUtils.numberInput("Friction Coefficient",
                         0f, 1f,
                         (float) settings.friction,
                         "%.3f",
-                        value -> loop.enqueue(() -> physics.settings.friction = value),
+                        value -> loop.enqueue("friction", () -> physics.settings.friction = value),
                         false);
                 ImGuiUtils.helpMarker("The velocity of all particles is multiplied with this value" +
                         " in each update step to simulate friction (assuming 60 fps).");
@@ -810,17 +1236,62 @@ public class Main extends App {
                         0f, 100f,
                         (float) settings.force,
                         "%.1f",
-                        value -> loop.enqueue(() -> physics.settings.force = value));
+                        value -> loop.enqueue("force", () -> physics.settings.force = value));
                 ImGuiUtils.helpMarker("Scales the forces between all particles with a constant factor.");
 
+                if (ImGui.inputText("Force Function", forceFunctionInput, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    String source = forceFunctionInput.get();
+                    try {
+                        final Accelerator nextAccelerator = ForceCompiler.createAccelerator(source);
+                        loop.enqueue("accelerator", () -> physics.accelerator = nextAccelerator);
+                        appSettings.forceFunction = source;
+                        forceFunctionError = null;
+                    } catch (ForceExpressionException e) {
+                        forceFunctionError = e.getMessage();
+                    }
+                }
+                ImGuiUtils.helpMarker("Force between two particles, press Enter to apply." +
+                        "\na: matrix entry, d: distance relative to rmax, b: 0.3 (can be redefined)" +
+                        "\nOperators: + - * / ( ) and x < y ? u : v (also <=, >, >=)" +
+                        "\nFunctions: abs, sqrt, exp, min, max, pow" +
+                        "\nDefinitions: b = 0.2; s = 2 * d; ...");
+                if (forceFunctionError != null) {
+                    ImGui.textColored(255, 0, 0, 255, forceFunctionError);
+                }
+
                 ImGuiUtils.separator();
 
                 if (ImGui.checkbox("Periodic Boundaries", settings.wrap)) {
                     final boolean newWrap = !settings.wrap;
-                    loop.enqueue(() -> physics.settings.wrap = newWrap);
+                    loop.enqueue("wrap", () -> physics.settings.wrap = newWrap);
                 }
                 ImGuiUtils.helpMarker("[b] Determines if the space wraps around at the borders or not.");
 
+                if (ImGui.checkbox("3D", settings.dimensions == 3)) {
+                    final int newDimensions = settings.dimensions == 3 ? 2 : 3;
+                    loop.enqueue(() -> {
+                        physics.settings.dimensions = newDimensions;
+                        if (newDimensions == 3) {
+                            // spread the particles over the depth, otherwise they would stay in one plane
+                            for (int i = 0; i < physics.getParticleCount(); i++) physics.particles[i].position.z = Math.random();
+                        }
+                    });
+                }
+                ImGuiUtils.helpMarker("Simulates the particles in a cube instead of a square, seen from the front." +
+                        "\nParticles have many more neighbors in 3D, so you may want to use fewer particles or a smaller radius.");
+
+                if (ImGui.checkbox("Sleeping", appSettings.sleeping)) {
+                    appSettings.sleeping ^= true;
+                    final boolean newSleeping = appSettings.sleeping || governorSleeping;
+                    loop.enqueue("sleeping", () -> physics.sleeping = newSleeping);
+                }
+                if (appSettings.sleeping) {
+                    ImGui.sameLine();
+                    ImGui.text(String.format("Awake: %.0f%%", particleCount == 0 ? 100.0 : 100.0 * awakeCount / particleCount));
+                }
+                ImGuiUtils.helpMarker("Particles that have been at rest for a while are not updated anymore" +
+                        " until something moves around them. Speeds up settled simulations.");
+
                 if (appSettings.autoDt) ImGui.beginDisabled();
                 ImGuiUtils.numberInput(
                         "Time Step",
@@ -834,14 +1305,112 @@ public class Main extends App {
                 ImGuiUtils.helpMarker("[ctrl+shift+scroll] The time step of the physics computation." +
                         "\nIf 'Auto' is ticked, the time step will be chosen automatically based on the real passed time.");
 
+                ImInt stepRateInput = new ImInt(appSettings.physicsStepRate);
+                if (ImGui.inputInt("Steps/s", stepRateInput, 10, 60, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    appSettings.physicsStepRate = Math.max(0, stepRateInput.get());
+                    loop.targetStepRate = appSettings.physicsStepRate;
+                }
+                if (appSettings.physicsStepRate == 0) {
+                    ImGui.sameLine();
+                    ImGui.text("(max)");
+                }
+                ImGuiUtils.helpMarker("How many physics steps are computed per second." +
+                        "\n0 means as many as possible." +
+                        "\nWith a fixed rate, the physics thread sleeps between the steps.");
+
                 ImInt threadNumberInput = new ImInt(preferredNumberOfThreads);
                 if (ImGui.inputInt("Threads", threadNumberInput, 1, 1, ImGuiInputTextFlags.EnterReturnsTrue)) {
                     final int newThreadNumber = Math.max(1, threadNumberInput.get());
-                    loop.enqueue(() -> physics.preferredNumberOfThreads = newThreadNumber);
+                    loop.enqueue("threads", () -> physics.preferredNumberOfThreads = newThreadNumber);
                 }
                 ImGuiUtils.helpMarker("The number of threads used by your processor for the physics computation." +
                         "\n(If you don't know what this means, just ignore it.)");
 
+                ImInt tileCountInput = new ImInt(tileCount);
+                if (ImGui.inputInt("Tiles", tileCountInput, 1, 1, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    final int newTileCount = Math.max(1, tileCountInput.get());
+                    loop.enqueue("tiles", () -> physics.tileCount = newTileCount);
+                }
+                ImGuiUtils.helpMarker("If greater than 1, the world is split into horizontal strips," +
+                        " each updated by its own thread on its own copy of the data." +
+                        "\nHas no effect while 'Sleeping' is on.");
+
+                ImInt workerProcessCountInput = new ImInt(workerProcessCount);
+                if (ImGui.inputInt("Processes", workerProcessCountInput, 1, 1, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    final int newWorkerProcessCount = Math.max(0, workerProcessCountInput.get());
+                    loop.enqueue("processes", () -> setWorkerProcessCount(newWorkerProcessCount));
+                }
+                ImGuiUtils.helpMarker("If greater than 0, the physics runs in this many separate processes on this computer," +
+                        " each simulating a horizontal strip of the world." +
+                        "\n'Sleeping' and 'Tiles' have no effect then." +
+                        "\nIf the world is 3D or too small for two rows of containers per process, it runs in this process.");
+                if (pendingWorkerConnection != null) {
+                    ImGui.sameLine();
+                    ImGui.textDisabled("Connecting...");
+                }
+
+                if (ImGuiUtils.renderCombo("Engine", physicsKernels)) {
+                    final Function<Physics, PhysicsKernel> newKernel = physicsKernels.getActive();
+                    loop.enqueue("kernel", () -> physics.kernel = newKernel.apply(physics));
+                }
+                if (physicsKernels.getActiveIndex() == 0) {
+                    ImGui.sameLine();
+                    ImGui.text(kernelName);
+                }
+                ImGuiUtils.helpMarker("How the forces between the particles are computed." +
+                        "\nAll engines should give the same result, up to rounding." +
+                        "\nHas no effect while 'Processes' is greater than 0.");
+                if (warmingUpBeforeFirstStep) {
+                    ImGui.textDisabled("Warming up...");
+                } else {
+                    for (KernelWarmUp.Result result : warmUpResults) {
+                        ImGui.textDisabled(String.format("Warm-up of '%s': %.0f ms%s", result.kernelName(), result.millis(),
+                                result.converged() ? "" : " (not converged)"));
+                    }
+                }
+
+                ImInt crossValidationInput = new ImInt(crossValidationInterval);
+                if (ImGui.inputInt("Validate every", crossValidationInput, 1, 10, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    final int newCrossValidationInterval = Math.max(0, crossValidationInput.get());
+                    loop.enqueue("cross validation", () -> physics.crossValidationInterval = newCrossValidationInterval);
+                }
+                if (crossValidationInterval > 0) {
+                    ImGui.text(Double.isNaN(maxDeviation) ? "Max. deviation: -"
+                            : String.format("Max. deviation: %.2e", maxDeviation));
+                }
+                ImGuiUtils.helpMarker("If greater than 0, every this many steps, the step is repeated with the" +
+                        " 'reference' engine, and the largest difference of the particle positions is shown." +
+                        "\nSlows down these steps a lot.");
+
+                if (ImGui.checkbox("Hold Rates", appSettings.governor)) {
+                    appSettings.governor ^= true;
+                    if (!appSettings.governor) governor.reset();
+                }
+                ImGuiUtils.helpMarker("Lowers the quality step by step when the physics or the graphics" +
+                        " don't reach their target rate, and raises it again when there is room." +
+                        "\nThe target steps/s is the 'Steps/s' above if it is set." +
+                        "\nOrder of the levers: " + appSettings.governorLevers);
+                if (appSettings.governor) {
+                    if (appSettings.physicsStepRate == 0) {
+                        ImInt governorStepRateInput = new ImInt(appSettings.governorStepRate);
+                        if (ImGui.inputInt("Target Steps/s", governorStepRateInput, 5, 10, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                            appSettings.governorStepRate = Math.max(1, governorStepRateInput.get());
+                        }
+                    }
+                    ImInt governorFramerateInput = new ImInt(appSettings.governorFramerate);
+                    if (ImGui.inputInt("Target FPS", governorFramerateInput, 5, 10, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                        appSettings.governorFramerate = Math.max(1, governorFramerateInput.get());
+                    }
+                    ImGui.text(String.format("Measured: %.0f steps/s (load %.0f%%), %.0f FPS",
+                            governor.getStepRate(), 100 * governor.getPhysicsLoad(), governor.getFramerate()));
+                    for (QualityGovernor.Lever lever : governor.getLevers()) {
+                        ImGui.text(String.format("%s: %s", lever.name, lever.levels[lever.getLevel()]));
+                    }
+                    for (String line : governor.getLog()) {
+                        ImGui.textDisabled(line);
+                    }
+                }
+
                 ImGui.popItemWidth();
             }
             ImGui.end();
@@ -946,6 +1515,122 @@ public class Main extends App {
                     traces ^= true;
                 }
 
+                if (ImGui.checkbox("Interpolate", appSettings.interpolateSnapshots)) {
+                    appSettings.interpolateSnapshots ^= true;
+                }
+                ImGuiUtils.helpMarker("Moves the particles smoothly between two physics steps" +
+                        " if the physics is slower than the graphics." +
+                        "\nThe particles are shown one physics step late.");
+
+                if (ImGui.checkbox("Compact Positions", appSettings.quantizePositions)) {
+                    appSettings.quantizePositions ^= true;
+                    particleDataOutdated = true;
+                }
+                ImGuiUtils.helpMarker("Sends the positions to the graphics card with 16 instead of 32 bits." +
+                        "\nFaster with many particles, but they may jiggle when zoomed in a lot.");
+
+                if (ImGui.checkbox("Instanced Quads", appSettings.instancedRendering)) {
+                    appSettings.instancedRendering ^= true;
+                }
+                ImGuiUtils.helpMarker("Draws the particles as instances of quads instead of with a geometry shader." +
+                        "\nThis is faster on some graphics cards, compare the draw time below." +
+                        "\nOnly for shaders that support it (see 'instanced' in shaders.yaml).");
+                if (ImGui.checkbox("Density Map", appSettings.autoDensityMap)) {
+                    appSettings.autoDensityMap ^= true;
+                }
+                ImGuiUtils.helpMarker("Shows how many particles of which type are in each pixel instead of the particles" +
+                        " if there are more particles per pixel than set here." +
+                        "\nMuch faster with millions of particles.");
+                if (appSettings.autoDensityMap) {
+                    ImGui.sameLine();
+                    float[] densityMapThresholdSliderValue = new float[]{(float) appSettings.densityMapThreshold};
+                    if (ImGui.sliderFloat("Particles / Pixel", densityMapThresholdSliderValue, 0.1f, 10.0f, "%.1f")) {
+                        appSettings.densityMapThreshold = densityMapThresholdSliderValue[0];
+                    }
+                }
+                if (showingDensityMap) {
+                    ImGui.text(String.format("Density map (%.1f particles / pixel)", getParticlesPerPixel()));
+                }
+
+                if (ImGui.checkbox("Cull Off-Screen", appSettings.cullParticles)) {
+                    appSettings.cullParticles ^= true;
+                }
+                ImGuiUtils.helpMarker("When zoomed in, only the particles in and around the view are sent to the graphics card." +
+                        "\nTurn this off for shaders that move particles away from their position.");
+
+                if (!Double.isNaN(particleRenderer.getDrawMillis())) {
+                    ImGui.text(String.format("Draw: %.2f ms (%d particles)",
+                            particleRenderer.getDrawMillis(), particleRenderer.getBufferedCount()));
+                }
+                if (shaders.getActive().instancedVariant != null) {
+                    if (drawPathComparisonFrame >= 0) {
+                        ImGui.textDisabled("Comparing...");
+                    } else if (ImGui.button("Compare Draw Paths")) {
+                        startDrawPathComparison();
+                    }
+                    ImGuiUtils.helpMarker("Draws %d frames alternating between the geometry shader and instanced quads"
+                            .formatted(DRAW_PATH_COMPARISON_BLOCKS * DRAW_PATH_COMPARISON_BLOCK_FRAMES) +
+                            " and shows the average draw time of each." +
+                            "\nThe result is printed to the console as well.");
+                    if (drawPathComparisonResult != null) ImGui.textWrapped(drawPathComparisonResult);
+                }
+
+                if (ImGui.treeNode("Recording")) {
+                    boolean recording = frameRecorder != null && frameRecorder.isRecording();
+                    if (recording) ImGui.beginDisabled();
+                    {
+                        ImInt selected = new ImInt(appSettings.recordingFormat.equalsIgnoreCase("y4m") ? 1 : 0);
+                        ImGui.radioButton("PNG Files", selected, 0);
+                        ImGui.sameLine();
+                        ImGui.radioButton("Y4M Video", selected, 1);
+                        appSettings.recordingFormat = selected.get() == 1 ? "y4m" : "png";
+                    }
+                    {
+                        ImInt selected = new ImInt(appSettings.recordingBackpressure.equalsIgnoreCase("throttle") ? 1 : 0);
+                        ImGui.radioButton("Drop Frames", selected, 0);
+                        ImGui.sameLine();
+                        ImGui.radioButton("Throttle", selected, 1);
+                        appSettings.recordingBackpressure = selected.get() == 1 ? "throttle" : "drop";
+                    }
+                    ImGuiUtils.helpMarker("What happens if the frames can't be written as fast as they are drawn." +
+                            "\nDrop: frames that don't fit into the queue are left out." +
+                            "\nThrottle: fewer frames are captured while the queue is half full." +
+                            "\nThe simulation never waits for the recording.");
+                    if (ImGui.checkbox("Whole World (CPU)", appSettings.recordingRasterize)) {
+                        appSettings.recordingRasterize ^= true;
+                    }
+                    ImGuiUtils.helpMarker("Draws the whole world on the CPU in a fixed size," +
+                            " instead of recording the particles as they are shown.");
+                    if (recording) ImGui.endDisabled();
+
+                    if (ImGui.button(recording ? "Stop Recording" : "Start Recording")) {
+                        if (recording) {
+                            frameRecorder.stop();
+                        } else {
+                            startRecording();
+                        }
+                    }
+                    if (frameRecorder != null) {
+                        ImGui.text(String.format("%s: %d written, %d dropped (%.0f / s)",
+                                frameRecorder.getTarget().getPath(),
+                                frameRecorder.getWrittenFrames(),
+                                frameRecorder.getDroppedFrames(),
+                                frameRecorder.getWrittenFramerate()));
+                        ImGui.text(String.format("Queue: %d / %d, %.1f MB",
+                                frameRecorder.getQueueDepth(),
+                                frameRecorder.getQueueCapacity(),
+                                frameRecorder.getWrittenBytes() / 1e6));
+                        if (frameRecorder.getError() != null) {
+                            ImGui.textColored(255, 0, 0, 255, frameRecorder.getError().getMessage());
+                        }
+                    }
+                    if (recordingError != null) {
+                        ImGui.textColored(255, 0, 0, 255, recordingError);
+                    }
+
+                    ImGui.treePop();
+                }
+
                 if (ImGui.treeNode("Camera Settings")) {
                     {
                         float[] inputValue = new float[]{(float) appSettings.camMovementSpeed};
@@ -978,8 +1663,10 @@ public class Main extends App {
         }
 
         // PHYSICS NOT REACTING
-        long physicsNotReactingSince = System.currentTimeMillis() - physicsSnapshot.snapshotTime;
-        boolean physicsNotReacting = physicsNotReactingSince > physicsNotReactingThreshold;
+        boolean physicsIdle = loop.isIdle();  // paused and waiting for commands (read before the time)
+        long physicsNotReactingSince = System.currentTimeMillis() - loop.getLastIterationTime();
+        boolean physicsNotReacting = physicsNotReactingSince > physicsNotReactingThreshold
+                && !physicsIdle && !warmingUpBeforeFirstStep;
         if (physicsNotReacting) ImGui.openPopup("Not reacting");
         if (ImGui.beginPopupModal("Not reacting")) {
             if (!physicsNotReacting) {
@@ -993,11 +1680,14 @@ public class Main extends App {
                     // physics didn't finish in time
                     loop.kill();
                     physics.kill();
-                    physicsSnapshotLoadDistributor.kill();
                 }
+                closeDistributedRunner();
+                // the old loop won't run the governor's commands anymore, and the new physics starts at full quality
+                governor.reset();
                 // re-start loop and re-create physics with initial settings
                 createPhysics();
                 loop = new Loop();
+                loop.targetStepRate = appSettings.physicsStepRate;
                 loop.start(this::updatePhysics);
             }
 
@@ -1108,12 +1798,11 @@ public class Main extends App {
 
         if (requestedSaveImage) {
 
-            saveImage = renderParticlesToImage();
-
+            final int[] saveImage = renderParticlesToImage();
             final File selectedFile = selectedSaveFile;
             loop.enqueue(() -> {
                 selectedFile.getParentFile().mkdirs();
-                saveState(selectedFile);
+                saveState(selectedFile, saveImage);
             });
 
             requestedSaveImage = false;
@@ -1124,51 +1813,176 @@ public class Main extends App {
         }
     }
 
+    /**
+     * @return whether there are so many particles per pixel that a density map should be shown instead of the particles
+     */
+    private boolean isDensityMapNeeded() {
+        return appSettings.autoDensityMap && getParticlesPerPixel() >= appSettings.densityMapThreshold;
+    }
+
+    private double getParticlesPerPixel() {
+        // the world is this many pixels wide and high
+        double worldSize = Math.min(width, height) / camSize;
+        return physicsSnapshot.particleCount / (worldSize * worldSize);
+    }
+
+    /**
+     * @param slack how much more of the world to include, relative to the cam size
+     * @return the part of the world whose particles are needed to draw the current view,
+     * or null if all particles are needed
+     */
+    private CamOperations.BoundingBox getCullingBox(double slack) {
+        if (!appSettings.cullParticles || camSize >= 1) return null;
+        CamOperations.BoundingBox box = new CamOperations(camPos, camSize, width, height).getBoundingBox();
+        // particles are drawn around their position, so they are visible a bit outside the view
+        double margin = appSettings.particleSize * settings.rmax
+                * (appSettings.keepParticleSizeIndependentOfZoom ? camSize : 1)
+                + slack * camSize;
+        box.left -= margin;
+        box.top -= margin;
+        box.right += margin;
+        box.bottom += margin;
+        return box;
+    }
+
+    /**
+     * @param neededBox see {@link #getCullingBox(double)}
+     * @return whether the buffered particles don't cover the view anymore,
+     * or cover much more of the world than needed after zooming in
+     */
+    private boolean isCullingOutdated(CamOperations.BoundingBox neededBox) {
+        if (neededBox == null || bufferedCullingBox == null) return neededBox != bufferedCullingBox;
+        if (bufferedCullingWrap != physicsSnapshot.settings.wrap) return true;
+        CamOperations.BoundingBox b = bufferedCullingBox;
+        if (neededBox.left < b.left || neededBox.top < b.top
+                || neededBox.right > b.right || neededBox.bottom > b.bottom) return true;
+        double neededWidth = neededBox.right - neededBox.left + 2 * CULLING_SLACK * camSize;
+        return b.right - b.left > 2 * neededWidth;
+    }
+
+    /**
+     * @return the variant of the shader that draws instances of quads if that is enabled and supported,
+     * otherwise the shader itself
+     */
+    private ParticleShader getVariant(ParticleShader particleShader) {
+        boolean instanced = drawPathComparisonFrame >= 0
+                ? drawPathComparisonFrame / DRAW_PATH_COMPARISON_BLOCK_FRAMES % 2 == 1
+                : appSettings.instancedRendering;
+        if (instanced && particleShader.instancedVariant != null) {
+            return particleShader.instancedVariant;
+        }
+        return particleShader;
+    }
+
+    /**
+     * Draws the next frames in blocks with the geometry shader and with instanced quads in turns,
+     * so that {@link ParticleRenderer#getAverageDrawMillis(boolean)} can compare them on this graphics card.
+     */
+    private void startDrawPathComparison() {
+        particleRenderer.resetDrawTimeAverages();
+        drawPathComparisonFrame = 0;
+        drawPathComparisonResult = null;
+    }
+
+    private void finishDrawPathComparison() {
+        drawPathComparisonFrame = -1;
+        drawPathComparisonResult = String.format(
+                "%d particles: geometry shader %.2f ms (%d frames), instanced quads %.2f ms (%d frames)",
+                particleRenderer.getBufferedCount(),
+                particleRenderer.getAverageDrawMillis(false), particleRenderer.getDrawTimeCount(false),
+                particleRenderer.getAverageDrawMillis(true), particleRenderer.getDrawTimeCount(true));
+        System.out.println("Draw time with " + drawPathComparisonResult);
+    }
+
+    /**
+     * Draws the current snapshot on the CPU, so that this needs no framebuffer
+     * and the rows are in the same order as the world (first row at y = 0).
+     */
     private int[] renderParticlesToImage() {
+        return particleRasterizer.render(
+                physicsSnapshot.positions,
+                physicsSnapshot.dimensions,
+                physicsSnapshot.types,
+                physicsSnapshot.particleCount,
+                getColorsFromPalette(physicsSnapshot.settings.matrix.size(), new NaturalRainbowPalette()),
+                SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE,
+                0.015,
+                false
+        );
+    }
 
-        // get shader
-        ParticleShader particleShader;
-        String defaultShaderName = "default";
-        if (shaders.hasName(defaultShaderName)) {
-            particleShader = shaders.get(shaders.getIndexByName(defaultShaderName)).object;
+    /**
+     * Moves the particles at the start of the pending move by its distance.
+     *
+     * @param mustArrive whether to wait for room in the command queue instead of keeping the move
+     *                   for the next frame if the queue is full
+     */
+    private void sendPendingMove(boolean mustArrive) {
+        final Cursor cursorCopy = pendingMoveCursor;
+        final Vector3d delta = new Vector3d(pendingMoveStop).sub(pendingMoveStart);  // dragged distance
+        cursorCopy.position.set(pendingMoveStart.x, pendingMoveStart.y, 0.0);  // set cursor copy to start of dragging
+        Runnable move = () -> {
+            for (Particle p : cursorCopy.getSelection(physics.particles, physics.getParticleCount(), physics.settings.wrap)) {
+                p.position.add(delta.x, delta.y, 0);
+                physics.ensurePosition(p.position);  // wrap or clamp
+                physics.wake(p);
+            }
+        };
+        if (mustArrive) {
+            loop.enqueue(move);
+        } else if (!loop.tryEnqueue(move)) {
+            return;  // try again with the next frame's distance added
+        }
+        pendingMoveStart = null;
+        pendingMoveStop = null;
+        pendingMoveCursor = null;
+    }
+
+    /**
+     * Hands the current frame to the recorder, either the texture with the particles (without cursor and GUI),
+     * or the whole world drawn on the CPU.
+     */
+    private void captureFrame(int particleTexture, int texWidth, int texHeight) {
+        if (appSettings.recordingRasterize) {
+            int size = appSettings.recordingRasterizeSize;
+            int[] pixels = particleRasterizer.render(
+                    physicsSnapshot.positions,
+                    physicsSnapshot.dimensions,
+                    physicsSnapshot.types,
+                    physicsSnapshot.particleCount,
+                    getColorsFromPalette(physicsSnapshot.settings.matrix.size(), palettes.getActive()),
+                    size, size,
+                    appSettings.particleSize * 2 * physicsSnapshot.settings.rmax,
+                    physicsSnapshot.settings.wrap
+            );
+            frameRecorder.offer(pixels, size, size, false);
         } else {
-            particleShader = shaders.getActive();
+            // the first row of the texture is the top of the screen
+            int[] pixels = new int[texWidth * texHeight];
+            glBindTexture(GL_TEXTURE_2D, particleTexture);
+            glGetTexImage(GL_TEXTURE_2D, 0, GL_BGRA, GL_UNSIGNED_BYTE, pixels);
+            glBindTexture(GL_TEXTURE_2D, 0);
+            frameRecorder.offer(pixels, texWidth, texHeight, false);
         }
+    }
 
-        glEnable(GL_BLEND);
-        particleShader.blendMode.glBlendFunc();
-
-        // set shader variables
-        particleShader.use();
-        particleShader.setTime(0);
-        particleShader.setPalette(getColorsFromPalette(
-                settings.matrix.size(),
-                new NaturalRainbowPalette()));
-        particleShader.setTransform(new NormalizedDeviceCoordinates(
-                new Vector2d(0.5, 0.5),  // center camera
-                new Vector2d(1, 1)  // capture whole world
-        ).getMatrix());
-        particleShader.setSize(0.015f);
-        particleShader.setCamTopLeft(0, 0);
-        particleShader.setWrap(false);
-
-        int[] pixels = new int[SAVE_IMAGE_SIZE * SAVE_IMAGE_SIZE];
-        MultisampledFramebuffer tex = new MultisampledFramebuffer();
-        tex.init();
-        tex.ensureSize(SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE, 16);
-        tex.clear(0, 0, 0, 0);
-        glViewport(0, 0, SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE);
-        glBindFramebuffer(GL_FRAMEBUFFER, tex.framebufferMulti);
-        particleRenderer.drawParticles();
-        tex.toSingleSampled();
-        glBindFramebuffer(GL_FRAMEBUFFER, tex.framebufferSingle);
-        glReadPixels(0, 0, SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE, GL_BGRA, GL_UNSIGNED_BYTE, pixels);
-
-        // unbind, delete
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
-        tex.delete();
-
-        return pixels;
+    private void startRecording() {
+        FrameRecorder.Format format = appSettings.recordingFormat.equalsIgnoreCase("y4m")
+                ? FrameRecorder.Format.Y4M : FrameRecorder.Format.PNG;
+        FrameRecorder.Backpressure backpressure = appSettings.recordingBackpressure.equalsIgnoreCase("throttle")
+                ? FrameRecorder.Backpressure.THROTTLE : FrameRecorder.Backpressure.DROP;
+        String name = "recordings/" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+        File target = new File(format == FrameRecorder.Format.Y4M ? name + ".y4m" : name);
+
+        frameRecorder = new FrameRecorder(Math.max(1, appSettings.recordingQueueCapacity), backpressure);
+        try {
+            frameRecorder.start(target, format, appSettings.recordingFramerate);
+            recordingError = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            recordingError = e.getMessage();
+            frameRecorder = null;
+        }
     }
 
     private void buildMainMenu() {
@@ -1239,46 +2053,62 @@ public class Main extends App {
         saveCards = ImGuiCardView.loadCards(saves);
     }
 
-    private void saveState(File file) {
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            try (ZipOutputStream zip = new ZipOutputStream(fileOutputStream)) {
+    /**
+     * Must be called from the physics thread. Only the state is converted here,
+     * encoding the image and writing the file happens in the background.
+     *
+     * @param image thumbnail of {@link #SAVE_IMAGE_SIZE} pixels squared, or null
+     */
+    private void saveState(File file, int[] image) {
+        final byte[] particles, physicsSettings, matrix;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ParticlesIO.saveParticles(physics.getParticles(), out);
+            particles = out.toByteArray();
 
-                // PARTICLES
-                zip.putNextEntry(new ZipEntry("particles.tsv"));
-                ParticlesIO.saveParticles(physics.particles, zip);
-                zip.closeEntry();
+            out = new ByteArrayOutputStream();
+            PhysicsSettingsToml.fromPhysicsSettings(physics.settings).save(out);
+            physicsSettings = out.toByteArray();
 
-                // PHYSICS SETTINGS
-                zip.putNextEntry(new ZipEntry("physics.toml"));
-                PhysicsSettingsToml.fromPhysicsSettings(physics.settings).save(zip);
-                zip.closeEntry();
+            out = new ByteArrayOutputStream();
+            MatrixIO.saveMatrix(physics.settings.matrix, out);
+            matrix = out.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-                // MATRIX
-                zip.putNextEntry(new ZipEntry("matrix.tsv"));
-                MatrixIO.saveMatrix(physics.settings.matrix, zip);
-                zip.closeEntry();
+        saveWriter.execute(() -> {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
+                try (ZipOutputStream zip = new ZipOutputStream(fileOutputStream)) {
+
+                    // PARTICLES
+                    zip.putNextEntry(new ZipEntry("particles.tsv"));
+                    zip.write(particles);
+                    zip.closeEntry();
+
+                    // PHYSICS SETTINGS
+                    zip.putNextEntry(new ZipEntry("physics.toml"));
+                    zip.write(physicsSettings);
+                    zip.closeEntry();
 
-                // IMAGE
-                if (saveImage != null) {
-                    zip.putNextEntry(new ZipEntry("img.png"));
-                    // convert to png format
-                    BufferedImage bufferedImage = new BufferedImage(
-                            SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE,
-                            BufferedImage.TYPE_INT_ARGB
-                    );
-                    bufferedImage.setRGB(
-                            0, 0, SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE,
-                            saveImage, 0, SAVE_IMAGE_SIZE
-                    );
-                    ImageIO.write(bufferedImage, "png", zip);
+                    // MATRIX
+                    zip.putNextEntry(new ZipEntry("matrix.tsv"));
+                    zip.write(matrix);
                     zip.closeEntry();
-                    saveImage = null;
+
+                    // IMAGE
+                    if (image != null) {
+                        zip.putNextEntry(new ZipEntry("img.png"));
+                        FrameRecorder.encodePng(image, SAVE_IMAGE_SIZE, SAVE_IMAGE_SIZE, false, zip);
+                        zip.closeEntry();
+                    }
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        requestedSaveCardsLoading.set(true);
+            requestedSaveCardsLoading.set(true);
+        });
     }
 
     /**
@@ -1301,7 +2131,7 @@ public class Main extends App {
             while ((entry = zip.getNextEntry()) != null) {
                 switch (entry.getName()) {
                     case "particles.tsv": {
-                        physics.particles = ParticlesIO.loadParticles(zip);
+                        physics.setParticles(ParticlesIO.loadParticles(zip));
                         break;
                     }
                     case "physics.toml": {
@@ -1409,7 +2239,7 @@ public class Main extends App {
             case "g" -> showGraphicsWindow.set(!showGraphicsWindow.get());
             case "m" -> loop.enqueue(physics::generateMatrix);
             case "b" -> loop.enqueue(() -> physics.settings.wrap ^= true);
-            case " " -> loop.pause ^= true;
+            case " " -> loop.setPause(!loop.isPaused());
             case "q" -> close();
         }
     }
@@ -2,7 +2,9 @@ package com.particle_life.app;
 
 import com.particle_life.DefaultMatrix;
 import com.particle_life.DefaultMatrixGenerator;
+import com.particle_life.Matrix;
 import com.particle_life.MatrixGenerator;
+import com.particle_life.SparseMatrix;
 import com.particle_life.app.selection.InfoWrapper;
 import com.particle_life.app.selection.InfoWrapperProvider;
 
@@ -10,11 +12,66 @@ import java.util.List;
 
 public class MatrixGeneratorProvider implements InfoWrapperProvider<MatrixGenerator> {
 
+    /**
+     * Above this size, matrices are stored as {@link SparseMatrix},
+     * and generators that would fill every entry randomly
+     * only set a few random entries per row instead.
+     */
+    private static final int MAX_DENSE_SIZE = 256;
+    private static final int SPARSE_RANDOM_ENTRIES_PER_ROW = 16;
+
+    private static Matrix makeMatrix(int size, double defaultValue) {
+        if (size > MAX_DENSE_SIZE) {
+            return new SparseMatrix(size, defaultValue);
+        }
+        DefaultMatrix m = new DefaultMatrix(size);
+        if (defaultValue != 0) {
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    m.set(i, j, defaultValue);
+                }
+            }
+        }
+        return m;
+    }
+
+    private static Matrix makeSparseRandomMatrix(int size, boolean symmetric) {
+        int count = size * (1 + SPARSE_RANDOM_ENTRIES_PER_ROW) * (symmetric ? 2 : 1);
+        int[] rows = new int[count];
+        int[] columns = new int[count];
+        double[] values = new double[count];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k <= SPARSE_RANDOM_ENTRIES_PER_ROW; k++) {
+                int j = k == 0 ? i : (int) (Math.random() * size);
+                double value = 2 * Math.random() - 1;
+                rows[n] = i;
+                columns[n] = j;
+                values[n] = value;
+                n++;
+                if (symmetric) {
+                    rows[n] = j;
+                    columns[n] = i;
+                    values[n] = value;
+                    n++;
+                }
+            }
+        }
+        SparseMatrix m = new SparseMatrix(size, 0);
+        m.setAll(rows, columns, values, n);
+        return m;
+    }
+
     @Override
     public List<InfoWrapper<MatrixGenerator>> create() throws Exception {
+        DefaultMatrixGenerator randomGenerator = new DefaultMatrixGenerator();
         return List.of(
-                new InfoWrapper<>("random", new DefaultMatrixGenerator()),
+                new InfoWrapper<>("random", size -> size > MAX_DENSE_SIZE
+                        ? makeSparseRandomMatrix(size, false)
+                        : randomGenerator.makeMatrix(size)),
+                new InfoWrapper<>("sparse random", size -> makeSparseRandomMatrix(size, false)),
                 new InfoWrapper<>("symmetry", size -> {
+                    if (size > MAX_DENSE_SIZE) return makeSparseRandomMatrix(size, true);
                     DefaultMatrix m = new DefaultMatrix(size);
                     m.randomize();
                     for (int i = 0; i < m.size(); i++) {
@@ -25,57 +82,41 @@ public class MatrixGeneratorProvider implements InfoWrapperProvider<MatrixGenera
                     return m;
                 }),
                 new InfoWrapper<>("chains", size -> {
-                    DefaultMatrix m = new DefaultMatrix(size);
+                    Matrix m = makeMatrix(size, -1);
                     for (int i = 0; i < size; i++) {
-                        for (int j = 0; j < size; j++) {
-                            if (j == i || j == (i + 1) % size || j == (i + size - 1) % size) {
-                                m.set(i, j, 1);
-                            } else {
-                                m.set(i, j, -1);
-                            }
-                        }
+                        m.set(i, i, 1);
+                        m.set(i, (i + 1) % size, 1);
+                        m.set(i, (i + size - 1) % size, 1);
                     }
                     return m;
                 }),
                 new InfoWrapper<>("chains 2", size -> {
-                    DefaultMatrix m = new DefaultMatrix(size);
+                    Matrix m = makeMatrix(size, -1);
                     for (int i = 0; i < size; i++) {
-                        for (int j = 0; j < size; j++) {
-                            if (j == i) {
-                                m.set(i, j, 1);
-                            } else if (j == (i + 1) % size || j == (i + size - 1) % size) {
-                                m.set(i, j, 0.2);
-                            } else {
-                                m.set(i, j, -1);
-                            }
-                        }
+                        m.set(i, (i + 1) % size, 0.2);
+                        m.set(i, (i + size - 1) % size, 0.2);
+                        m.set(i, i, 1);
                     }
                     return m;
                 }),
                 new InfoWrapper<>("chains 3", size -> {
-                    DefaultMatrix m = new DefaultMatrix(size);
+                    Matrix m = makeMatrix(size, 0);
                     for (int i = 0; i < size; i++) {
-                        for (int j = 0; j < size; j++) {
-                            if (j == i) {
-                                m.set(i, j, 1);
-                            } else if (j == (i + 1) % size || j == (i + size - 1) % size) {
-                                m.set(i, j, 0.2);
-                            } else {
-                                m.set(i, j, 0);
-                            }
-                        }
+                        m.set(i, (i + 1) % size, 0.2);
+                        m.set(i, (i + size - 1) % size, 0.2);
+                        m.set(i, i, 1);
                     }
                     return m;
                 }),
                 new InfoWrapper<>("snakes", size -> {
-                    DefaultMatrix m = new DefaultMatrix(size);
+                    Matrix m = makeMatrix(size, 0);
                     for (int i = 0; i < size; i++) {
                         m.set(i, i, 1);
                         m.set(i, (i + 1) % m.size(), 0.2);
                     }
                     return m;
                 }),
-                new InfoWrapper<>("zero", DefaultMatrix::new)
+                new InfoWrapper<>("zero", size -> makeMatrix(size, 0))
         );
     }
 }
@@ -0,0 +1,186 @@
+package com.particle_life.app;
+
+import com.particle_life.LoadDistributor;
+import com.particle_life.app.utils.CamOperations;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the particles into a coarse grid of cells (by x and y only),
+ * so that the particles in a part of the world can be found without looking at every particle,
+ * e.g. to only upload the visible ones when zoomed in.<br>
+ * Example:
+ * <pre>
+ * // e.g. on the physics thread, once per snapshot
+ * culler.build(positions, dimensions, particleCount);
+ *
+ * // e.g. on the render thread, whenever the camera moved
+ * int count = culler.select(box, wrap, 1);
+ * int[] indices = culler.getIndices();  // the first count entries
+ * </pre>
+ * Building is linear in the number of particles (on multiple threads),
+ * selecting is linear in the number of selected particles.
+ */
+class ParticleCuller {
+
+    static final int CELLS_PER_AXIS = 64;
+    private static final int CELL_COUNT = CELLS_PER_AXIS * CELLS_PER_AXIS;
+
+    private static final LoadDistributor loadDistributor = new LoadDistributor();
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Particle indices, sorted by cell.
+     */
+    private int[] sorted = new int[0];
+    /**
+     * The particles of cell <code>c</code> are at <code>sorted[cellStart[c]]</code> to <code>sorted[cellStart[c + 1] - 1]</code>.
+     */
+    private final int[] cellStart = new int[CELL_COUNT + 1];
+    private int[] cellOf = new int[0];
+    /**
+     * One histogram per chunk of particles, so that the chunks can be sorted in parallel.
+     */
+    private int[][] chunkOffsets = new int[0][];
+    private int[] indices = new int[0];
+
+    /**
+     * Sorts the particles into the cells.
+     *
+     * @param x             positions, <code>dimensions</code> per particle, within [0, 1]
+     * @param dimensions    2 or 3
+     * @param particleCount number of particles in the array
+     */
+    void build(float[] x, int dimensions, int particleCount) {
+        final int count = particleCount;
+        if (sorted.length < count) {
+            int capacity = Math.max(count, sorted.length + sorted.length / 2);
+            sorted = new int[capacity];
+            cellOf = new int[capacity];
+        }
+        final int chunks = Math.max(1, Math.min(THREAD_COUNT, count / 4096));
+        final int chunkLength = (count + chunks - 1) / chunks;
+        if (chunkOffsets.length != chunks) {
+            chunkOffsets = new int[chunks][CELL_COUNT];
+        }
+
+        // count the particles of each chunk per cell
+        final int[] cellOf = this.cellOf;
+        loadDistributor.distributeLoadEvenly(chunks, chunks, chunk -> {
+            int[] histogram = chunkOffsets[chunk];
+            Arrays.fill(histogram, 0);
+            int stop = Math.min(count, (chunk + 1) * chunkLength);
+            for (int k = chunk * chunkLength; k < stop; k++) {
+                int offset = dimensions * k;
+                int c = getCell(x[offset + 1]) * CELLS_PER_AXIS + getCell(x[offset]);
+                cellOf[k] = c;
+                histogram[c]++;
+            }
+            return true;
+        });
+
+        // turn the counts into offsets, cell by cell and within a cell chunk by chunk
+        int offset = 0;
+        for (int c = 0; c < CELL_COUNT; c++) {
+            cellStart[c] = offset;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int n = chunkOffsets[chunk][c];
+                chunkOffsets[chunk][c] = offset;
+                offset += n;
+            }
+        }
+        cellStart[CELL_COUNT] = offset;
+
+        final int[] sorted = this.sorted;
+        loadDistributor.distributeLoadEvenly(chunks, chunks, chunk -> {
+            int[] offsets = chunkOffsets[chunk];
+            int stop = Math.min(count, (chunk + 1) * chunkLength);
+            for (int k = chunk * chunkLength; k < stop; k++) {
+                sorted[offsets[cellOf[k]]++] = k;
+            }
+            return true;
+        });
+    }
+
+    private static int getCell(float coordinate) {
+        int cell = (int) (coordinate * CELLS_PER_AXIS);
+        return Math.max(0, Math.min(CELLS_PER_AXIS - 1, cell));
+    }
+
+    /**
+     * Collects the particles in all cells that overlap the box, see {@link #getIndices()}.
+     * Must be called after {@link #build}.
+     *
+     * @param box  part of the world, may reach beyond [0, 1]
+     * @param wrap whether the world repeats, so that e.g. a box left of 0 selects the cells on the right
+     * @param step only select particles whose index is a multiple of this
+     * @return the number of selected particles
+     */
+    int select(CamOperations.BoundingBox box, boolean wrap, int step) {
+        int[] columns = getCellRange(box.left, box.right, wrap);
+        int[] rows = getCellRange(box.top, box.bottom, wrap);
+
+        int count = 0;
+        for (int cy : rows) {
+            for (int cx : columns) {
+                int c = cy * CELLS_PER_AXIS + cx;
+                count += cellStart[c + 1] - cellStart[c];
+            }
+        }
+        if (indices.length < count) {
+            indices = new int[Math.max(count, indices.length + indices.length / 2)];
+        }
+        int k = 0;
+        for (int cy : rows) {
+            // the cells of a row that are next to each other are next to each other in the array as well
+            int i = 0;
+            while (i < columns.length) {
+                int j = i + 1;
+                while (j < columns.length && columns[j] == columns[j - 1] + 1) j++;
+                int start = cellStart[cy * CELLS_PER_AXIS + columns[i]];
+                int stop = cellStart[cy * CELLS_PER_AXIS + columns[j - 1] + 1];
+                System.arraycopy(sorted, start, indices, k, stop - start);
+                k += stop - start;
+                i = j;
+            }
+        }
+        if (step > 1) {
+            k = 0;
+            for (int i = 0; i < count; i++) {
+                if (indices[i] % step == 0) indices[k++] = indices[i];
+            }
+            count = k;
+        }
+        return count;
+    }
+
+    /**
+     * @return the cells between <code>min</code> and <code>max</code> along one axis, each at most once
+     */
+    private static int[] getCellRange(double min, double max, boolean wrap) {
+        int first = (int) Math.floor(min * CELLS_PER_AXIS);
+        int last = (int) Math.floor(max * CELLS_PER_AXIS);
+        if (wrap) {
+            if (last - first + 1 >= CELLS_PER_AXIS) {
+                first = 0;
+                last = CELLS_PER_AXIS - 1;
+            }
+        } else {
+            first = Math.max(first, 0);
+            last = Math.min(last, CELLS_PER_AXIS - 1);
+        }
+        if (last < first) return new int[0];
+        int[] cells = new int[last - first + 1];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = Math.floorMod(first + i, CELLS_PER_AXIS);
+        }
+        return cells;
+    }
+
+    /**
+     * @return the particle indices that the last {@link #select} found (may be longer than needed)
+     */
+    int[] getIndices() {
+        return indices;
+    }
+}
@@ -0,0 +1,423 @@
+package com.particle_life.app;
+
+import com.particle_life.LoadDistributor;
+import com.particle_life.app.color.Color;
+
+import java.util.Arrays;
+
+/**
+ * Draws particles as antialiased discs into an ARGB image on the CPU,
+ * e.g. for thumbnails, or on machines without a graphics card.<br>
+ * Example:
+ * <pre>
+ * ParticleRasterizer rasterizer = new ParticleRasterizer();
+ * int[] argb = rasterizer.render(positions, dimensions, types, particleCount, colors, 256, 256, 0.015, wrap);
+ * </pre>
+ * The whole world is drawn, with x and y from 0 to 1 from the top left to the bottom right of the image.
+ * The discs are blended like the default shader with normal blending would do,
+ * i.e. later particles are drawn on top of earlier ones.
+ * <p>
+ * The image is split into bands of rows that are drawn on multiple threads.
+ * Within a band, the particles are drawn from the last to the first, and once a pixel is opaque,
+ * particles further back don't change it anymore.
+ * Particles that would only land on opaque pixels are skipped after a few checks,
+ * and once a band is opaque, no more particles are drawn in it.
+ * The particles are sorted into bands in batches from the back, so with many particles per pixel,
+ * most particles are never even looked at.
+ */
+public class ParticleRasterizer {
+
+    private static final int ROWS_PER_BAND = 16;
+    /**
+     * Tiles of this many pixels in each direction remember whether all their pixels are opaque.
+     * Must divide {@link #ROWS_PER_BAND}.
+     */
+    private static final int TILE_SIZE = 4;
+    /**
+     * Positions within a pixel are rounded to this many steps in each direction,
+     * and a disc is precomputed for each of them.
+     */
+    private static final int SUBPIXEL_STEPS = 4;
+    private static final int DISC_COUNT = SUBPIXEL_STEPS * SUBPIXEL_STEPS;
+    private static final float OPAQUE = 1 - 1f / 512;
+    /**
+     * Number of particles (from the last one) that are drawn before checking whether the image is opaque.
+     * After each batch, the next one is twice as large.
+     */
+    private static final int FIRST_BATCH_SIZE = 1 << 15;
+
+    private final int threadCount = Runtime.getRuntime().availableProcessors();
+    private final LoadDistributor loadDistributor = new LoadDistributor();
+
+    // the top left pixel of the disc of each particle of a batch, and which of the precomputed discs to use
+    private int[] discX = new int[0];
+    private int[] discY = new int[0];
+    private int[] discIndex = new int[0];
+
+    /**
+     * The discs of a batch that overlap a band, sorted by band and then by particle index,
+     * with everything that is needed to draw them, so that a band reads them one after the other.
+     * A particle may appear in several bands, or twice in one band if its wrapped copy is there as well.
+     */
+    private int[] entryX = new int[0];
+    private int[] entryY = new int[0];
+    private int[] entryDiscAndType = new int[0];
+    private int[][] chunkOffsets = new int[0][];
+    private int[] bandStart = new int[0];
+
+    private float[] pixelColors = new float[0];  // r, g, b, premultiplied with alpha
+    private float[] pixelAlphas = new float[0];
+    /**
+     * Counts down to 0 when all pixels of the tile are opaque.
+     */
+    private int[] transparentPixelsPerTile = new int[0];
+    /**
+     * Counts down to 0 when all tiles of the band are opaque, so that no more particles are drawn in the band.
+     */
+    private int[] transparentTilesPerBand = new int[0];
+
+    /**
+     * @param x             positions, <code>dimensions</code> per particle (may be longer than needed)
+     * @param dimensions    2 or 3, only x and y are used
+     * @param types         type of each particle, unsigned (may be longer than needed)
+     * @param particleCount number of particles in the arrays
+     * @param colors        color of each type
+     * @param width         width of the image in pixels
+     * @param height        height of the image in pixels
+     * @param particleSize  diameter of the discs, relative to the world size
+     * @param wrap          whether discs on the border of the world also appear on the opposite side
+     * @return ARGB pixels (not premultiplied), row by row from the top
+     */
+    public int[] render(float[] x, int dimensions, short[] types, int particleCount, Color[] colors,
+                        int width, int height, double particleSize, boolean wrap) {
+
+        // precompute the discs
+        // at least one pixel wide, so that every particle is visible
+        final double radiusX = Math.max(0.5, 0.5 * particleSize * width);
+        final double radiusY = Math.max(0.5, 0.5 * particleSize * height);
+        final int margin = (int) Math.ceil(Math.max(radiusX, radiusY)) + 1;
+        final int discSize = 2 * margin + 1;
+        final float[][] discs = makeDiscs(radiusX, radiusY, margin, discSize);
+
+        final float[] typeColors = new float[4 * colors.length];
+        for (int type = 0; type < colors.length; type++) {
+            typeColors[4 * type] = colors[type].r;
+            typeColors[4 * type + 1] = colors[type].g;
+            typeColors[4 * type + 2] = colors[type].b;
+            typeColors[4 * type + 3] = colors[type].a;
+        }
+
+        final int pixelCount = width * height;
+        if (pixelAlphas.length < pixelCount) {
+            pixelColors = new float[3 * pixelCount];
+            pixelAlphas = new float[pixelCount];
+        }
+        final int tilesPerRow = (width + TILE_SIZE - 1) / TILE_SIZE;
+        final int tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        if (transparentPixelsPerTile.length < tilesPerRow * tileRows) {
+            transparentPixelsPerTile = new int[tilesPerRow * tileRows];
+        }
+
+        final int bands = (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        if (bandStart.length < bands + 1) {
+            bandStart = new int[bands + 1];
+            transparentTilesPerBand = new int[bands];
+        }
+
+        // clear the image
+        final float[] pixelColors = this.pixelColors;
+        final float[] pixelAlphas = this.pixelAlphas;
+        final int[] transparentPixelsPerTile = this.transparentPixelsPerTile;
+        final int[] transparentTilesPerBand = this.transparentTilesPerBand;
+        loadDistributor.distributeLoadEvenly(bands, threadCount, band -> {
+            final int firstRow = band * ROWS_PER_BAND;
+            final int stopRow = Math.min(height, firstRow + ROWS_PER_BAND);
+            Arrays.fill(pixelColors, 3 * firstRow * width, 3 * stopRow * width, 0);
+            Arrays.fill(pixelAlphas, firstRow * width, stopRow * width, 0);
+            int tiles = 0;
+            for (int ty = firstRow / TILE_SIZE; ty < (stopRow + TILE_SIZE - 1) / TILE_SIZE; ty++) {
+                int tileHeight = Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+                for (int tx = 0; tx < tilesPerRow; tx++) {
+                    transparentPixelsPerTile[ty * tilesPerRow + tx] = tileHeight * Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+                    tiles++;
+                }
+            }
+            transparentTilesPerBand[band] = tiles;
+            return true;
+        });
+
+        // Draw the particles from the last to the first in batches of growing size,
+        // until every band is opaque, so that the particles further back aren't even sorted into bands.
+        int stop = particleCount;
+        int batchSize = FIRST_BATCH_SIZE;
+        while (stop > 0 && !isOpaque(bands)) {
+            int start = Math.max(0, stop - batchSize);
+            drawBatch(x, dimensions, types, start, stop, width, height, wrap,
+                    discs, margin, discSize, typeColors, tilesPerRow, bands);
+            stop = start;
+            batchSize *= 2;
+        }
+
+        final int[] pixels = new int[pixelCount];
+        loadDistributor.distributeLoadEvenly(bands, threadCount, band -> {
+            final int firstRow = band * ROWS_PER_BAND;
+            final int stopRow = Math.min(height, firstRow + ROWS_PER_BAND);
+            for (int p = firstRow * width; p < stopRow * width; p++) {
+                float a = pixelAlphas[p];
+                if (a <= 0) continue;
+                pixels[p] = toByte(a) << 24
+                        | toByte(pixelColors[3 * p] / a) << 16
+                        | toByte(pixelColors[3 * p + 1] / a) << 8
+                        | toByte(pixelColors[3 * p + 2] / a);
+            }
+            return true;
+        });
+
+        return pixels;
+    }
+
+    private boolean isOpaque(int bands) {
+        for (int band = 0; band < bands; band++) {
+            if (transparentTilesPerBand[band] > 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Draws the particles from <code>start</code> to <code>stop - 1</code>
+     * behind everything that was drawn so far, skipping bands that are opaque already.
+     */
+    private void drawBatch(float[] x, int dimensions, short[] types, int start, int stop, int width, int height, boolean wrap,
+                           float[][] discs, int margin, int discSize, float[] typeColors, int tilesPerRow, int bands) {
+        final int count = stop - start;
+        if (discX.length < count) {
+            int capacity = Math.max(count, discX.length + discX.length / 2);
+            discX = new int[capacity];
+            discY = new int[capacity];
+            discIndex = new int[capacity];
+        }
+        final int chunks = Math.max(1, Math.min(threadCount, count / 4096));
+        final int chunkLength = (count + chunks - 1) / chunks;
+        if (chunkOffsets.length != chunks || chunkOffsets[0].length < bands) {
+            chunkOffsets = new int[chunks][bands];
+        }
+
+        // find the discs and count how many overlap each band that isn't opaque yet
+        // (the previous batches are drawn completely, so discs that are hidden by them can be left out right away)
+        final int[] discX = this.discX;
+        final int[] discY = this.discY;
+        final int[] discIndex = this.discIndex;
+        final int[] transparentTilesPerBand = this.transparentTilesPerBand;
+        loadDistributor.distributeLoadEvenly(chunks, chunks, chunk -> {
+            int[] histogram = chunkOffsets[chunk];
+            Arrays.fill(histogram, 0);
+            int chunkStop = Math.min(count, (chunk + 1) * chunkLength);
+            for (int k = chunk * chunkLength; k < chunkStop; k++) {
+                int i = start + k;
+                double cx = x[dimensions * i] * (double) width;
+                double cy = x[dimensions * i + 1] * (double) height;
+                int px = (int) Math.floor(cx);
+                int py = (int) Math.floor(cy);
+                int sx = Math.min(SUBPIXEL_STEPS - 1, (int) ((cx - px) * SUBPIXEL_STEPS));
+                int sy = Math.min(SUBPIXEL_STEPS - 1, (int) ((cy - py) * SUBPIXEL_STEPS));
+                int x0 = px - margin;
+                int y0 = py - margin;
+                if (x0 >= 0 && y0 >= 0 && x0 + discSize <= width && y0 + discSize <= height
+                        && isHidden(x0, x0 + discSize, y0, y0 + discSize, tilesPerRow)) {
+                    discIndex[k] = -1;
+                    continue;
+                }
+                discX[k] = x0;
+                discY[k] = y0;
+                discIndex[k] = sy * SUBPIXEL_STEPS + sx;
+                forEachBand(y0, discSize, height, bands, wrap, (band, y) -> {
+                    if (transparentTilesPerBand[band] > 0) histogram[band]++;
+                });
+            }
+            return true;
+        });
+
+        // turn the counts into offsets, band by band and within a band chunk by chunk
+        int offset = 0;
+        for (int band = 0; band < bands; band++) {
+            bandStart[band] = offset;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int n = chunkOffsets[chunk][band];
+                chunkOffsets[chunk][band] = offset;
+                offset += n;
+            }
+        }
+        bandStart[bands] = offset;
+        if (entryX.length < offset) {
+            int capacity = Math.max(offset, entryX.length + entryX.length / 2);
+            entryX = new int[capacity];
+            entryY = new int[capacity];
+            entryDiscAndType = new int[capacity];
+        }
+
+        final int[] entryX = this.entryX;
+        final int[] entryY = this.entryY;
+        final int[] entryDiscAndType = this.entryDiscAndType;
+        loadDistributor.distributeLoadEvenly(chunks, chunks, chunk -> {
+            int[] offsets = chunkOffsets[chunk];
+            int chunkStop = Math.min(count, (chunk + 1) * chunkLength);
+            for (int k = chunk * chunkLength; k < chunkStop; k++) {
+                if (discIndex[k] < 0) continue;  // hidden
+                final int x0 = discX[k];
+                final int discAndType = (types[start + k] & 0xffff) * DISC_COUNT + discIndex[k];
+                forEachBand(discY[k], discSize, height, bands, wrap, (band, y) -> {
+                    if (transparentTilesPerBand[band] == 0) return;
+                    int e = offsets[band]++;
+                    entryX[e] = x0;
+                    entryY[e] = y;
+                    entryDiscAndType[e] = discAndType;
+                });
+            }
+            return true;
+        });
+
+        // draw each band from the last particle to the first
+        loadDistributor.distributeLoadEvenly(bands, threadCount, band -> {
+            final int firstRow = band * ROWS_PER_BAND;
+            final int stopRow = Math.min(height, firstRow + ROWS_PER_BAND);
+            int transparentTiles = transparentTilesPerBand[band];
+
+            for (int k = bandStart[band + 1] - 1; k >= bandStart[band] && transparentTiles > 0; k--) {
+                final int y0 = entryY[k];
+                final int rowFrom = Math.max(firstRow, y0);
+                final int rowTo = Math.min(stopRow, y0 + discSize);
+                final float[] disc = discs[entryDiscAndType[k] % DISC_COUNT];
+                final int t4 = 4 * (entryDiscAndType[k] / DISC_COUNT);
+                final int x0 = entryX[k];
+
+                transparentTiles -= drawDisc(disc, discSize, x0, y0, rowFrom, rowTo, width, typeColors, t4, tilesPerRow);
+                if (wrap) {
+                    if (x0 < 0) {
+                        transparentTiles -= drawDisc(disc, discSize, x0 + width, y0, rowFrom, rowTo, width, typeColors, t4, tilesPerRow);
+                    } else if (x0 + discSize > width) {
+                        transparentTiles -= drawDisc(disc, discSize, x0 - width, y0, rowFrom, rowTo, width, typeColors, t4, tilesPerRow);
+                    }
+                }
+            }
+            transparentTilesPerBand[band] = transparentTiles;
+            return true;
+        });
+    }
+
+    private interface BandConsumer {
+        void accept(int band, int y);
+    }
+
+    /**
+     * Calls <code>consumer</code> for each band that the rows <code>y</code> to <code>y + size - 1</code> overlap,
+     * and for the bands of the wrapped copy if the rows reach beyond the image and <code>wrap</code> is true.
+     * The consumer gets the first row of the disc or of its copy.
+     */
+    private static void forEachBand(int y, int size, int height, int bands, boolean wrap, BandConsumer consumer) {
+        forEachBand(y, size, height, bands, consumer);
+        if (wrap) {
+            if (y < 0) {
+                forEachBand(y + height, size, height, bands, consumer);
+            } else if (y + size > height) {
+                forEachBand(y - height, size, height, bands, consumer);
+            }
+        }
+    }
+
+    private static void forEachBand(int y, int size, int height, int bands, BandConsumer consumer) {
+        int first = Math.max(0, y) / ROWS_PER_BAND;
+        int last = Math.min(height - 1, y + size - 1);
+        if (last < 0) return;
+        last /= ROWS_PER_BAND;
+        for (int band = first; band <= Math.min(last, bands - 1); band++) {
+            consumer.accept(band, y);
+        }
+    }
+
+    /**
+     * Blends the disc behind the pixels that were drawn so far, within the given rows.
+     *
+     * @return the number of tiles that became opaque
+     */
+    private int drawDisc(float[] disc, int discSize, int x0, int y0, int rowFrom, int rowTo,
+                          int width, float[] typeColors, int t4, int tilesPerRow) {
+        final int colFrom = Math.max(0, x0);
+        final int colTo = Math.min(width, x0 + discSize);
+        if (colFrom >= colTo || rowFrom >= rowTo) return 0;
+
+        // skip the disc if it would only land on opaque pixels
+        if (isHidden(colFrom, colTo, rowFrom, rowTo, tilesPerRow)) return 0;
+
+        final int[] transparentPixelsPerTile = this.transparentPixelsPerTile;
+        final float r = typeColors[t4];
+        final float g = typeColors[t4 + 1];
+        final float b = typeColors[t4 + 2];
+        final float alpha = typeColors[t4 + 3];
+        final float[] pixelColors = this.pixelColors;
+        final float[] pixelAlphas = this.pixelAlphas;
+        int opaqueTiles = 0;
+        for (int row = rowFrom; row < rowTo; row++) {
+            final int discRow = (row - y0) * discSize - x0;
+            for (int col = colFrom; col < colTo; col++) {
+                final float coverage = disc[discRow + col];
+                if (coverage <= 0) continue;
+                final int p = row * width + col;
+                final float behind = pixelAlphas[p];
+                if (behind >= OPAQUE) continue;
+                // "under" operator: what is drawn first stays in front
+                final float w = (1 - behind) * coverage * alpha;
+                pixelColors[3 * p] += w * r;
+                pixelColors[3 * p + 1] += w * g;
+                pixelColors[3 * p + 2] += w * b;
+                pixelAlphas[p] = behind + w;
+                if (behind + w >= OPAQUE && --transparentPixelsPerTile[row / TILE_SIZE * tilesPerRow + col / TILE_SIZE] == 0) {
+                    opaqueTiles++;
+                }
+            }
+        }
+        return opaqueTiles;
+    }
+
+    /**
+     * @return whether all pixels in the columns <code>colFrom</code> to <code>colTo - 1</code>
+     * and rows <code>rowFrom</code> to <code>rowTo - 1</code> are opaque (checked tile by tile)
+     */
+    private boolean isHidden(int colFrom, int colTo, int rowFrom, int rowTo, int tilesPerRow) {
+        for (int ty = rowFrom / TILE_SIZE; ty <= (rowTo - 1) / TILE_SIZE; ty++) {
+            for (int tx = colFrom / TILE_SIZE; tx <= (colTo - 1) / TILE_SIZE; tx++) {
+                if (transparentPixelsPerTile[ty * tilesPerRow + tx] > 0) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return for each subpixel position, how much of each pixel in a square of <code>size</code> pixels
+     * the disc covers, row by row. The disc's center is in pixel <code>margin</code> of the square.
+     */
+    private static float[][] makeDiscs(double radiusX, double radiusY, int margin, int size) {
+        float[][] discs = new float[DISC_COUNT][size * size];
+        for (int sy = 0; sy < SUBPIXEL_STEPS; sy++) {
+            for (int sx = 0; sx < SUBPIXEL_STEPS; sx++) {
+                float[] disc = discs[sy * SUBPIXEL_STEPS + sx];
+                double cx = margin + (sx + 0.5) / SUBPIXEL_STEPS;
+                double cy = margin + (sy + 0.5) / SUBPIXEL_STEPS;
+                for (int row = 0; row < size; row++) {
+                    for (int col = 0; col < size; col++) {
+                        // distance of the pixel center to the edge, in pixels
+                        double dx = (col + 0.5 - cx) / radiusX;
+                        double dy = (row + 0.5 - cy) / radiusY;
+                        double distance = Math.sqrt(dx * dx + dy * dy);
+                        double edge = (1 - distance) * Math.min(radiusX, radiusY);
+                        disc[row * size + col] = (float) Math.max(0, Math.min(1, edge + 0.5));
+                    }
+                }
+            }
+        }
+        return discs;
+    }
+
+    private static int toByte(float value) {
+        return Math.max(0, Math.min(255, (int) (value * 255 + 0.5f)));
+    }
+}
@@ -1,10 +1,16 @@
 package com.particle_life.app;
 
+import com.particle_life.LoadDistributor;
 import com.particle_life.app.shaders.ParticleShader;
+import com.particle_life.app.utils.CamOperations;
+import org.lwjgl.BufferUtils;
 
-import static org.lwjgl.opengl.GL11.GL_DOUBLE;
-import static org.lwjgl.opengl.GL11.GL_INT;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_POINTS;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
 import static org.lwjgl.opengl.GL11.glDrawArrays;
 import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15.GL_DYNAMIC_DRAW;
@@ -15,91 +21,357 @@ import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjecti64;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
+/**
+ * Uploads the particles in a compact format and draws them.
+ * <p>
+ * All attributes of a particle are interleaved in one buffer object:
+ * <ul>
+ *     <li>the position as floats, or as 16-bit normalized integers if {@link #quantizePositions} is set
+ *     (z only in 3D, the shader gets 0 otherwise),</li>
+ *     <li>the type as a 16-bit integer,</li>
+ *     <li>the velocity as half floats, but only if the shader reads it (z only in 3D).</li>
+ * </ul>
+ * That's 8 to 24 bytes per particle instead of 52 for doubles and ints.
+ * <p>
+ * When zoomed in, only the particles in the visible part of the world can be uploaded,
+ * see {@link #bufferParticleData(ParticleShader, double[], double[], int[], int, int, ParticleCuller, CamOperations.BoundingBox, boolean)}.
+ * <p>
+ * The particles are drawn as points that the shader's geometry shader expands into quads,
+ * or as instances of quads if the shader is {@link ParticleShader#instanced}.
+ */
 class ParticleRenderer {
     private int vao;
-    private int vboX;
-    private int vboV;
-    private int vboT;
+    private int vbo;
 
     /**
-     * Remember the last buffered size in order to use subBufferData instead of bufferData whenever possible.
+     * Number of bytes that fit into the buffer object.
+     * The buffer object only grows (by at least half), so that changing the particle count
+     * e.g. while brushing only updates its contents instead of allocating it again.
+     */
+    private int capacity = 0;
+    /**
+     * The data is packed here before it is uploaded. Grows like the buffer object.
      */
-    private int lastBufferedSize = -1;
+    private ByteBuffer staging = BufferUtils.createByteBuffer(0);
+
+    private int bufferedCount = 0;
+    private int bufferedLayout = 0;
     private int lastShaderProgram = -1;
+    /**
+     * The layout that the attribute pointers were set up for, see {@link #getLayout}.
+     */
+    private int lastLayout = -1;
+
+    /**
+     * Only every n-th particle is buffered and drawn, to save time with many particles.
+     * Takes effect at the next {@link #bufferParticleData}.
+     */
+    int decimation = 1;
+    /**
+     * Whether positions are uploaded as 16-bit integers instead of floats,
+     * which is about 1/65536 of the world size exact, so it may become visible when zoomed in a lot.
+     * Takes effect at the next {@link #bufferParticleData}.
+     */
+    boolean quantizePositions = false;
+
+    /**
+     * A few timer queries are used in turns, as the result of a query is only available some frames later.
+     */
+    private final int[] drawTimeQueries = new int[4];
+    private final boolean[] queryPending = new boolean[drawTimeQueries.length];
+    private int nextQuery = 0;
+    private double drawMillis = Double.NaN;
+    /**
+     * Which path each query measures: 0 for the geometry shader, 1 for instanced quads,
+     * or -1 if it was started before the last {@link #resetDrawTimeAverages()}.
+     */
+    private final int[] queryPath = new int[drawTimeQueries.length];
+    private final double[] drawMillisSum = new double[2];
+    private final int[] drawTimeCount = new int[2];
+
+    /**
+     * Below this number of particles, packing them on multiple threads isn't worth it.
+     */
+    private static final int PARALLEL_PACK_MIN_COUNT = 50_000;
+    private final int threadCount = Runtime.getRuntime().availableProcessors();
+    private final LoadDistributor loadDistributor = new LoadDistributor();
+
+    private static final int LAYOUT_QUANTIZED = 1;
+    private static final int LAYOUT_3D = 2;
+    private static final int LAYOUT_VELOCITY = 4;
 
     void init() {
         vao = glGenVertexArrays();
-        vboX = glGenBuffers();
-        vboV = glGenBuffers();
-        vboT = glGenBuffers();
+        vbo = glGenBuffers();
+        for (int i = 0; i < drawTimeQueries.length; i++) {
+            drawTimeQueries[i] = glGenQueries();
+        }
+    }
+
+    /**
+     * @param x             positions, <code>dimensions</code> per particle (may be longer than needed)
+     * @param v             velocities as half floats, <code>dimensions</code> per particle (may be longer than needed),
+     *                      or null if there are none
+     * @param types         type of each particle, unsigned (may be longer than needed)
+     * @param particleCount number of particles in the arrays
+     * @param dimensions    2 or 3
+     */
+    void bufferParticleData(ParticleShader particleShader, float[] x, short[] v, short[] types, int particleCount,
+                            int dimensions) {
+        bufferParticleData(particleShader, x, v, types, particleCount, dimensions, null, null, false);
     }
 
-    void bufferParticleData(ParticleShader particleShader, double[] x, double[] v, int[] types) {
+    /**
+     * Like {@link #bufferParticleData(ParticleShader, float[], short[], short[], int, int)},
+     * but only buffers the particles that are roughly inside the given part of the world.
+     * Particles outside of it may be buffered as well.
+     *
+     * @param cells   the particles sorted into cells, or null to buffer all particles
+     * @param visible part of the world, or null to buffer all particles
+     * @param wrap    whether the world repeats, so that the particles on the opposite side are visible as well
+     */
+    void bufferParticleData(ParticleShader particleShader, float[] x, short[] v, short[] types, int particleCount,
+                            int dimensions, ParticleCuller cells, CamOperations.BoundingBox visible, boolean wrap) {
+        final int step = decimation;
+        final int[] indices;
+        final int count;
+        if (cells != null && visible != null) {
+            count = cells.select(visible, wrap, step);
+            indices = cells.getIndices();
+        } else {
+            count = (particleCount + step - 1) / step;
+            indices = null;
+        }
+        final int layout = getLayout(particleShader, dimensions, v != null);
+        final int stride = getStride(layout);
+        pack(x, v, types, indices, count, step, layout, stride);
+
         glBindVertexArray(vao);
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
 
-        // detect change
-        boolean shaderChanged = particleShader.shaderProgram != lastShaderProgram;
-        boolean bufferSizeChanged = types.length != lastBufferedSize;
-        lastBufferedSize = types.length;
+        int bytes = count * stride;
+        if (bytes > capacity) {
+            capacity = grow(capacity, bytes);
+            glBufferData(GL_ARRAY_BUFFER, capacity, GL_DYNAMIC_DRAW);
+        }
+        glBufferSubData(GL_ARRAY_BUFFER, 0, staging);
+
+        bufferedCount = count;
+        bufferedLayout = layout;
+        ensureAttributes(particleShader);
+    }
+
+    /**
+     * If the shader or the layout changed, the attributes have to be bound again.
+     * Must be called while the vertex array is bound.
+     */
+    private void ensureAttributes(ParticleShader particleShader) {
+        if (particleShader.shaderProgram == lastShaderProgram && bufferedLayout == lastLayout) return;
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        bindAttributes(particleShader, bufferedLayout, getStride(bufferedLayout));
         lastShaderProgram = particleShader.shaderProgram;
+        lastLayout = bufferedLayout;
+    }
 
-        if (shaderChanged) {
-            // if the shader changed, we have to rebind the attribute locations
+    private int getLayout(ParticleShader particleShader, int dimensions, boolean withVelocities) {
+        int layout = 0;
+        if (quantizePositions) layout |= LAYOUT_QUANTIZED;
+        if (dimensions == 3) layout |= LAYOUT_3D;
+        if (particleShader.vAttribLocation != -1 && withVelocities) layout |= LAYOUT_VELOCITY;
+        return layout;
+    }
 
-            if (particleShader.xAttribLocation != -1) {
-                glBindBuffer(GL_ARRAY_BUFFER, vboX);
-                glVertexAttribPointer(particleShader.xAttribLocation, 3, GL_DOUBLE, false, 0, 0);
-                glEnableVertexAttribArray(particleShader.xAttribLocation);
-            }
-            if (particleShader.vAttribLocation != -1) {
-                glBindBuffer(GL_ARRAY_BUFFER, vboV);
-                glVertexAttribPointer(particleShader.vAttribLocation, 3, GL_DOUBLE, false, 0, 0);
-                glEnableVertexAttribArray(particleShader.vAttribLocation);
-            }
-            if (particleShader.typeAttribLocation != -1) {
-                glBindBuffer(GL_ARRAY_BUFFER, vboT);
-                glVertexAttribIPointer(particleShader.typeAttribLocation, 1, GL_INT, 0, 0);
-                glEnableVertexAttribArray(particleShader.typeAttribLocation);
-            }
-        }
+    private static int getComponents(int layout) {
+        return (layout & LAYOUT_3D) != 0 ? 3 : 2;
+    }
+
+    private static int getPositionBytes(int layout) {
+        return getComponents(layout) * ((layout & LAYOUT_QUANTIZED) != 0 ? Short.BYTES : Float.BYTES);
+    }
 
-        final int usage = GL_DYNAMIC_DRAW;
+    /**
+     * Every attribute starts at a multiple of 4 bytes, as some drivers are slow otherwise.
+     */
+    private static int getStride(int layout) {
+        int stride = align(getPositionBytes(layout)) + align(Short.BYTES);
+        if ((layout & LAYOUT_VELOCITY) != 0) stride += align(getComponents(layout) * Short.BYTES);
+        return stride;
+    }
 
-        if (particleShader.xAttribLocation != -1) {
-            glBindBuffer(GL_ARRAY_BUFFER, vboX);
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
 
-            if (bufferSizeChanged || shaderChanged) {
-                glBufferData(GL_ARRAY_BUFFER, x, usage);
+    private void bindAttributes(ParticleShader particleShader, int layout, int stride) {
+        final int components = getComponents(layout);
+        final boolean quantized = (layout & LAYOUT_QUANTIZED) != 0;
+        final int typeOffset = align(getPositionBytes(layout));
+        final int velocityOffset = typeOffset + align(Short.BYTES);
+        // instanced quads advance to the next particle once per instance instead of once per vertex
+        final int divisor = particleShader.instanced ? 1 : 0;
+
+        if (particleShader.xAttribLocation != -1) {
+            glVertexAttribPointer(particleShader.xAttribLocation, components,
+                    quantized ? GL_UNSIGNED_SHORT : GL_FLOAT, quantized, stride, 0);
+            glVertexAttribDivisor(particleShader.xAttribLocation, divisor);
+            glEnableVertexAttribArray(particleShader.xAttribLocation);
+        }
+        if (particleShader.typeAttribLocation != -1) {
+            glVertexAttribIPointer(particleShader.typeAttribLocation, 1, GL_UNSIGNED_SHORT, stride, typeOffset);
+            glVertexAttribDivisor(particleShader.typeAttribLocation, divisor);
+            glEnableVertexAttribArray(particleShader.typeAttribLocation);
+        }
+        if (particleShader.vAttribLocation != -1) {
+            if ((layout & LAYOUT_VELOCITY) != 0) {
+                glVertexAttribPointer(particleShader.vAttribLocation, components, GL_HALF_FLOAT, false, stride, velocityOffset);
+                glVertexAttribDivisor(particleShader.vAttribLocation, divisor);
+                glEnableVertexAttribArray(particleShader.vAttribLocation);
             } else {
-                glBufferSubData(GL_ARRAY_BUFFER, 0, x);
+                // drawn with another shader than the data was buffered for, or the snapshot had no velocities
+                glDisableVertexAttribArray(particleShader.vAttribLocation);
             }
         }
+    }
 
-        if (particleShader.vAttribLocation != -1) {
-            glBindBuffer(GL_ARRAY_BUFFER, vboV);
+    private static int grow(int capacity, int needed) {
+        return Math.max(needed, capacity + capacity / 2);
+    }
 
-            if (bufferSizeChanged || shaderChanged) {
-                glBufferData(GL_ARRAY_BUFFER, v, usage);
-            } else {
-                glBufferSubData(GL_ARRAY_BUFFER, 0, v);
-            }
+    /**
+     * Packs the particles with the given indices, or every <code>step</code>-th particle if there are no indices,
+     * into the staging buffer.
+     */
+    private void pack(float[] x, short[] v, short[] types, int[] indices, int count, int step, int layout, int stride) {
+        final int bytes = count * stride;
+        if (staging.capacity() < bytes) {
+            staging = BufferUtils.createByteBuffer(grow(staging.capacity(), bytes));
         }
+        final ByteBuffer buffer = staging;
+        final int components = getComponents(layout);
+        final boolean quantized = (layout & LAYOUT_QUANTIZED) != 0;
+        final boolean velocity = (layout & LAYOUT_VELOCITY) != 0;
+        final int typeOffset = align(getPositionBytes(layout));
+        final int velocityOffset = typeOffset + align(Short.BYTES);
 
-        if (particleShader.typeAttribLocation != -1) {
-            glBindBuffer(GL_ARRAY_BUFFER, vboT);
+        buffer.clear();
+        // each particle has its own part of the buffer, so they can be written in any order
+        final int threads = count >= PARALLEL_PACK_MIN_COUNT ? threadCount : 1;
+        loadDistributor.distributeLoadEvenly(count, threads, k -> {
+            final int i = indices != null ? indices[k] : k * step;
+            final int offset = k * stride;
+            // the snapshot has as many components per particle as the layout
+            final int first = components * i;
+            for (int c = 0; c < components; c++) {
+                if (quantized) {
+                    // positions are within [0, 1]
+                    buffer.putShort(offset + c * Short.BYTES, (short) (int) (x[first + c] * 65535 + 0.5f));
+                } else {
+                    buffer.putFloat(offset + c * Float.BYTES, x[first + c]);
+                }
+            }
+            buffer.putShort(offset + typeOffset, types[i]);
+            if (velocity) {
+                for (int c = 0; c < components; c++) {
+                    buffer.putShort(offset + velocityOffset + c * Short.BYTES, v[first + c]);
+                }
+            }
+            return true;
+        });
+        buffer.limit(bytes);
+    }
 
-            if (bufferSizeChanged || shaderChanged) {
-                glBufferData(GL_ARRAY_BUFFER, types, usage);
-            } else {
-                glBufferSubData(GL_ARRAY_BUFFER, 0, types);
+    /**
+     * Draws the particles that were buffered last.
+     * The shader must be in use and may differ from the one that the data was buffered for.
+     *
+     * @param wrap whether periodic copies may be needed (only used for instanced shaders,
+     *             the geometry shader reads it from its uniform)
+     */
+    void drawParticles(ParticleShader particleShader, boolean wrap) {
+        if (bufferedCount <= 0) return;
+        glBindVertexArray(vao);
+        ensureAttributes(particleShader);
+
+        readDrawTime();
+        // skip the measurement if the graphics card is too far behind and the query is still in use
+        boolean measure = !queryPending[nextQuery];
+        if (measure) {
+            glBeginQuery(GL_TIME_ELAPSED, drawTimeQueries[nextQuery]);
+            queryPath[nextQuery] = particleShader.instanced ? 1 : 0;
+        }
+        if (particleShader.instanced) {
+            // 6 vertices per quad, and 3 more quads for the periodic copies
+            glDrawArraysInstanced(GL_TRIANGLES, 0, wrap ? 24 : 6, bufferedCount);
+        } else {
+            glDrawArrays(GL_POINTS, 0, bufferedCount);
+        }
+        if (measure) {
+            glEndQuery(GL_TIME_ELAPSED);
+            queryPending[nextQuery] = true;
+            nextQuery = (nextQuery + 1) % drawTimeQueries.length;
+        }
+    }
+
+    /**
+     * Takes the results of earlier measurements that are ready, without waiting for the graphics card.
+     */
+    private void readDrawTime() {
+        for (int i = 0; i < drawTimeQueries.length; i++) {
+            if (queryPending[i] && glGetQueryObjecti(drawTimeQueries[i], GL_QUERY_RESULT_AVAILABLE) != GL_FALSE) {
+                long nanos = glGetQueryObjecti64(drawTimeQueries[i], GL_QUERY_RESULT);
+                drawMillis = nanos / 1e6;
+                queryPending[i] = false;
+                if (queryPath[i] >= 0) {
+                    drawMillisSum[queryPath[i]] += drawMillis;
+                    drawTimeCount[queryPath[i]]++;
+                }
             }
         }
     }
 
-    void drawParticles() {
-        if (lastBufferedSize <= 0) return;
-        glBindVertexArray(vao);
-        glDrawArrays(GL_POINTS, 0, lastBufferedSize);
+    /**
+     * @return the number of particles that were buffered last, after decimation and culling
+     */
+    int getBufferedCount() {
+        return bufferedCount;
+    }
+
+    /**
+     * @return how long the graphics card took to draw the particles in one of the last frames,
+     * or NaN if that wasn't measured yet
+     */
+    double getDrawMillis() {
+        return drawMillis;
+    }
+
+    /**
+     * Starts new averages for {@link #getAverageDrawMillis(boolean)},
+     * leaving out the measurements that are still pending.
+     */
+    void resetDrawTimeAverages() {
+        Arrays.fill(queryPath, -1);
+        Arrays.fill(drawMillisSum, 0);
+        Arrays.fill(drawTimeCount, 0);
+    }
+
+    /**
+     * @param instanced whether to average the draws with instanced quads or with the geometry shader
+     * @return the average draw time since {@link #resetDrawTimeAverages()}, or NaN if nothing was measured
+     */
+    double getAverageDrawMillis(boolean instanced) {
+        int path = instanced ? 1 : 0;
+        return drawTimeCount[path] == 0 ? Double.NaN : drawMillisSum[path] / drawTimeCount[path];
+    }
+
+    /**
+     * @return the number of draws that {@link #getAverageDrawMillis(boolean)} averages
+     */
+    int getDrawTimeCount(boolean instanced) {
+        return drawTimeCount[instanced ? 1 : 0];
     }
 }
@@ -0,0 +1,33 @@
+package com.particle_life.app;
+
+import com.particle_life.Physics;
+import com.particle_life.PhysicsKernel;
+import com.particle_life.app.selection.InfoWrapper;
+import com.particle_life.app.selection.InfoWrapperProvider;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Each entry picks one of the kernels of a {@link Physics}, or <code>null</code> to let the physics choose.
+ */
+public class PhysicsKernelProvider implements InfoWrapperProvider<Function<Physics, PhysicsKernel>> {
+
+    @Override
+    public List<InfoWrapper<Function<Physics, PhysicsKernel>>> create() {
+        return List.of(
+                new InfoWrapper<>("auto",
+                        "Uses 'brute force' for few particles with a large radius, otherwise 'optimized'.",
+                        physics -> null),
+                new InfoWrapper<>("optimized",
+                        "Sorts the particles into containers and uses the 'Threads', 'Tiles' and 'Sleeping' settings.",
+                        physics -> physics.optimizedKernel),
+                new InfoWrapper<>("reference",
+                        "Simple and slow, on a single thread. Use it to check the other engines.",
+                        physics -> physics.referenceKernel),
+                new InfoWrapper<>("brute force",
+                        "Compares every particle with every other particle.",
+                        physics -> physics.bruteForceKernel)
+        );
+    }
+}
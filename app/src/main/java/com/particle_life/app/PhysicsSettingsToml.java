@@ -14,6 +14,8 @@ public class PhysicsSettingsToml extends TomlFile {
     public double friction = 0.85;
     @TomlKey("force")
     public double force = 1.0;
+    @TomlKey("dimensions")
+    public int dimensions = 2;
 
     public static PhysicsSettingsToml fromPhysicsSettings(PhysicsSettings s) {
         PhysicsSettingsToml toml = new PhysicsSettingsToml();
@@ -21,6 +23,7 @@ public class PhysicsSettingsToml extends TomlFile {
         toml.rmax = s.rmax;
         toml.friction = s.friction;
         toml.force = s.force;
+        toml.dimensions = s.dimensions;
         return toml;
     }
 
@@ -29,6 +32,7 @@ public class PhysicsSettingsToml extends TomlFile {
         s.rmax = rmax;
         s.friction = friction;
         s.force = force;
+        s.dimensions = dimensions == 3 ? 3 : 2;
         // Note: PhysicsSettings.dt is not saved in the toml file.
         // Instead, it is read from AppSettings.dt and re-set each iteration.
     }
@@ -1,60 +1,66 @@
 package com.particle_life.app;
 
-import com.particle_life.LoadDistributor;
-import com.particle_life.Particle;
+import com.particle_life.ParticleState;
 import com.particle_life.PhysicsSettings;
 
-class PhysicsSnapshot {
-
-    private static final int PREFERRED_NUMBER_OF_THREADS = 12;
-
-    double[] positions;
-    double[] velocities;
-    int[] types;
+class PhysicsSnapshot extends ParticleState {
 
     PhysicsSettings settings;
-    int particleCount;
-    int[] typeCount;
+    int awakeCount;
+    String kernelName;
+    double maxDeviation;
+    int preferredNumberOfThreads;
+    int tileCount;
+    int crossValidationInterval;
+    /**
+     * Number of worker processes that update the physics, or 0 if it's updated in this process.
+     */
+    int workerProcessCount;
 
     /**
-     * unix timestamp from when this snapshot was taken (milliseconds)
+     * {@link System#nanoTime()} from when this snapshot was taken, for interpolating between snapshots
      */
-    long snapshotTime;
+    long stepTime;
 
-    void take(ExtendedPhysics p, LoadDistributor loadDistributor) {
-        write(p.particles, loadDistributor);
-        settings = p.settings.deepCopy();
-        particleCount = p.particles.length;
-        typeCount = p.getTypeCount();
+    /**
+     * The particles sorted into cells, only valid if {@link #hasCells} is true.
+     */
+    final ParticleCuller cells = new ParticleCuller();
+    boolean hasCells = false;
 
-        snapshotTime = System.currentTimeMillis();
+    /**
+     * Must be called from the physics thread.
+     *
+     * @param workerProcessCount see {@link #workerProcessCount}
+     */
+    void take(ExtendedPhysics p, int workerProcessCount) {
+        p.writeState(this);
+        takeMetadata(p, workerProcessCount);
     }
 
-    private void write(Particle[] particles, LoadDistributor loadDistributor) {
-        int n = particles.length;
-
-        if (types == null || types.length != n) {
-            positions = new double[n * 3];
-            velocities = new double[n * 3];
-            types = new int[n];
-        }
-
-        loadDistributor.distributeLoadEvenly(n, PREFERRED_NUMBER_OF_THREADS, i -> {
-            Particle p = particles[i];
-
-            final int i3 = 3 * i;
-
-            positions[i3] = p.position.x;
-            positions[i3 + 1] = p.position.y;
-            positions[i3 + 2] = p.position.z;
-
-            velocities[i3] = p.velocity.x;
-            velocities[i3 + 1] = p.velocity.y;
-            velocities[i3 + 2] = p.velocity.z;
-
-            types[i] = p.type;
+    /**
+     * Takes everything except the particles,
+     * for when they were already written by {@link com.particle_life.Physics#update()}.
+     */
+    void takeMetadata(ExtendedPhysics p, int workerProcessCount) {
+        settings = p.settings.deepCopy();
+        awakeCount = p.getAwakeCount();
+        kernelName = p.getActiveKernel().getName();
+        maxDeviation = p.getMaxDeviation();
+        preferredNumberOfThreads = p.preferredNumberOfThreads;
+        tileCount = p.tileCount;
+        crossValidationInterval = p.crossValidationInterval;
+        this.workerProcessCount = workerProcessCount;
+        stepTime = System.nanoTime();
+        hasCells = false;
+    }
 
-            return true;
-        });
+    /**
+     * Sorts the particles into {@link #cells}, e.g. so that the render thread can quickly find the visible ones.
+     * Must be called from the physics thread, after the particles were taken.
+     */
+    void sortIntoCells() {
+        cells.build(positions, dimensions, particleCount);
+        hasCells = true;
     }
 }
@@ -19,10 +19,25 @@ public class PositionSetterProvider implements InfoWrapperProvider<PositionSette
                     float scale = 0.3f;
                     position.x = random.nextGaussian() * scale;
                     position.y = random.nextGaussian() * scale;
+                    position.z = random.nextGaussian() * scale;
                     position.x = position.x * 0.5 + 0.5;
                     position.y = position.y * 0.5 + 0.5;
+                    position.z = position.z * 0.5 + 0.5;
                 }),
                 new InfoWrapper<>("uniform", new DefaultPositionSetter()),
+                new InfoWrapper<>("uniform ball", (position, type, nTypes) -> {
+                    // in 2D, this is the same as "uniform circle", but with a different distribution
+                    double maxRadius = 0.5;
+                    do {
+                        position.set(2 * Math.random() - 1, 2 * Math.random() - 1, 2 * Math.random() - 1);
+                    } while (position.lengthSquared() > 1);
+                    position.mul(maxRadius * 0.5).add(0.5, 0.5, 0.5);
+                }),
+                new InfoWrapper<>("sphere", (position, type, nTypes) -> {
+                    double radius = 0.7 + 0.02 * random.nextGaussian();
+                    position.set(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+                    position.normalize().mul(radius * 0.5).add(0.5, 0.5, 0.5);
+                }),
                 new InfoWrapper<>("uniform circle", (position, type, nTypes) -> {
                     double maxRadius = 0.5;
                     double angle = Math.random() * 2 * Math.PI;
@@ -0,0 +1,240 @@
+package com.particle_life.app;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps the physics step rate and the graphics framerate at their targets by lowering the quality when needed.
+ * <p>
+ * The quality is changed by a list of {@link Lever levers}, each with a few levels (0 = full quality).
+ * If a target was missed during the last second, the first lever that helps with the missed target
+ * is lowered by one level. After every change, the governor waits a bit for the rates to settle.
+ * <p>
+ * If there is enough headroom for a while, the lever that was lowered last is raised again.
+ * If that makes a target miss again, the governor waits twice as long before the next attempt.
+ * <p>
+ * Every change is printed and kept in {@link #getLog()}.
+ * Must only be used by the render thread.
+ */
+class QualityGovernor {
+
+    static final class Lever {
+        final String name;
+        /**
+         * Description of each level, starting with full quality.
+         */
+        final String[] levels;
+        final boolean helpsPhysics;
+        final boolean helpsRendering;
+        private final IntConsumer apply;
+        private int level = 0;
+
+        /**
+         * @param apply called with the new level whenever it changes
+         */
+        Lever(String name, boolean helpsPhysics, boolean helpsRendering, IntConsumer apply, String... levels) {
+            this.name = name;
+            this.levels = levels;
+            this.helpsPhysics = helpsPhysics;
+            this.helpsRendering = helpsRendering;
+            this.apply = apply;
+        }
+
+        int getLevel() {
+            return level;
+        }
+
+        private boolean canLower() {
+            return level < levels.length - 1;
+        }
+    }
+
+    private static final long WINDOW_MILLIS = 1000;
+    /**
+     * How long to wait after a change before the rates are judged again.
+     */
+    private static final long SETTLE_MILLIS = 2000;
+    private static final long MIN_PROBE_DELAY_MILLIS = 5000;
+    private static final long MAX_PROBE_DELAY_MILLIS = 120000;
+    /**
+     * A target is missed if the rate is below this fraction of it.
+     */
+    private static final double MISS_FRACTION = 0.9;
+    /**
+     * The physics has headroom if a step takes less than this fraction of the time that one step may take.
+     */
+    private static final double PHYSICS_HEADROOM_LOAD = 0.6;
+    /**
+     * The graphics have headroom if the framerate is at least this fraction of the target.
+     * The framerate is usually limited by vsync, so there is no better way to tell.
+     */
+    private static final double RENDER_HEADROOM_FRACTION = 0.97;
+    private static final int LOG_SIZE = 8;
+
+    double targetStepRate = 30;
+    double targetFramerate = 60;
+
+    private final List<Lever> levers;
+    /**
+     * Lowered levers, the last lowered first. A lever appears once per lowered level.
+     */
+    private final Deque<Lever> lowered = new ArrayDeque<>();
+    private final Deque<String> log = new ArrayDeque<>();
+
+    private long windowStart = -1;
+    private long windowStartSteps;
+    private long windowStartWorkNanos;
+    private int windowFrames;
+    private long lastChange = 0;
+    private long healthySince = -1;
+    private long probeDelay = MIN_PROBE_DELAY_MILLIS;
+    private Lever lastRaised = null;
+
+    private double stepRate = 0;
+    private double framerate = 0;
+    private double physicsLoad = 0;
+
+    /**
+     * @param levers in the order in which they should be lowered
+     */
+    QualityGovernor(List<Lever> levers) {
+        this.levers = new ArrayList<>(levers);
+    }
+
+    /**
+     * Must be called once per frame.
+     *
+     * @param stepCount      total number of physics steps so far
+     * @param workNanos      total time spent in physics steps so far
+     * @param physicsRunning false if the physics is paused, in which case only the framerate is judged
+     */
+    void update(long now, long stepCount, long workNanos, boolean physicsRunning) {
+        windowFrames++;
+        if (windowStart < 0 || stepCount < windowStartSteps) {
+            startWindow(now, stepCount, workNanos);
+            return;
+        }
+        if (now - windowStart < WINDOW_MILLIS) return;
+
+        double seconds = (now - windowStart) / 1000.0;
+        long steps = stepCount - windowStartSteps;
+        stepRate = steps / seconds;
+        framerate = windowFrames / seconds;
+        // how much of the time available per step at the target rate a step needs
+        physicsLoad = steps == 0 ? 0 : (workNanos - windowStartWorkNanos) / 1e9 / steps * targetStepRate;
+        startWindow(now, stepCount, workNanos);
+
+        if (now - lastChange < SETTLE_MILLIS) return;
+
+        boolean physicsMissed = physicsRunning && stepRate < MISS_FRACTION * targetStepRate;
+        boolean renderMissed = framerate < MISS_FRACTION * targetFramerate;
+        if (physicsMissed || renderMissed) {
+            healthySince = -1;
+            if (lastRaised != null) {
+                // the last raise was too much, so try again later
+                probeDelay = Math.min(2 * probeDelay, MAX_PROBE_DELAY_MILLIS);
+                lastRaised = null;
+            }
+            for (Lever lever : levers) {
+                if (lever.canLower() && (physicsMissed && lever.helpsPhysics || renderMissed && lever.helpsRendering)) {
+                    lowered.push(lever);
+                    setLevel(lever, lever.level + 1, now, String.format("%s%s%s",
+                            physicsMissed ? String.format("%.0f steps/s < %.0f", stepRate, targetStepRate) : "",
+                            physicsMissed && renderMissed ? ", " : "",
+                            renderMissed ? String.format("%.0f FPS < %.0f", framerate, targetFramerate) : ""));
+                    break;
+                }
+            }
+            return;
+        }
+
+        if (healthySince < 0) healthySince = now;
+        if (now - healthySince >= SETTLE_MILLIS) lastRaised = null;  // the last raise worked out
+        Lever lever = lowered.peek();
+        if (lever == null) {
+            probeDelay = MIN_PROBE_DELAY_MILLIS;
+            return;
+        }
+        boolean physicsHeadroom = !physicsRunning || physicsLoad < PHYSICS_HEADROOM_LOAD;
+        boolean renderHeadroom = framerate >= RENDER_HEADROOM_FRACTION * targetFramerate;
+        if (lever.helpsPhysics && !physicsHeadroom || lever.helpsRendering && !renderHeadroom) return;
+        if (now - healthySince < probeDelay) return;
+
+        lowered.pop();
+        lastRaised = lever;
+        healthySince = now;
+        setLevel(lever, lever.level - 1, now, String.format("headroom: %.0f steps/s at %.0f%% load, %.0f FPS",
+                stepRate, 100 * physicsLoad, framerate));
+    }
+
+    private void startWindow(long now, long stepCount, long workNanos) {
+        windowStart = now;
+        windowStartSteps = stepCount;
+        windowStartWorkNanos = workNanos;
+        windowFrames = 0;
+    }
+
+    private void setLevel(Lever lever, int level, long now, String reason) {
+        String message = String.format("%s: %s -> %s (%s)",
+                lever.name, lever.levels[lever.level], lever.levels[level], reason);
+        System.out.println("Quality governor: " + message);
+        if (log.size() >= LOG_SIZE) log.removeFirst();
+        log.addLast(message);
+
+        lever.level = level;
+        lever.apply.accept(level);
+        lastChange = now;
+    }
+
+    /**
+     * Sets all levers back to full quality, e.g. when the governor is switched off.
+     */
+    void reset() {
+        for (Lever lever : levers) {
+            if (lever.level != 0) {
+                lever.level = 0;
+                lever.apply.accept(0);
+            }
+        }
+        lowered.clear();
+        lastRaised = null;
+        healthySince = -1;
+        probeDelay = MIN_PROBE_DELAY_MILLIS;
+        windowStart = -1;
+    }
+
+    List<Lever> getLevers() {
+        return levers;
+    }
+
+    /**
+     * @return the last changes, the oldest first
+     */
+    Iterable<String> getLog() {
+        return log;
+    }
+
+    /**
+     * @return the step rate measured in the last second
+     */
+    double getStepRate() {
+        return stepRate;
+    }
+
+    /**
+     * @return the framerate measured in the last second
+     */
+    double getFramerate() {
+        return framerate;
+    }
+
+    /**
+     * @return how much of the time available per step at {@link #targetStepRate} a step needed in the last second
+     */
+    double getPhysicsLoad() {
+        return physicsLoad;
+    }
+}
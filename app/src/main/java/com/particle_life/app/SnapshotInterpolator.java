@@ -0,0 +1,99 @@
+package com.particle_life.app;
+
+/**
+ * Smooths the motion of the particles if the physics produces fewer snapshots than frames are rendered.
+ * <p>
+ * Keeps the positions of the previous snapshot and blends from them to the current snapshot
+ * over the time that passed between the two snapshots.
+ * So the particles are displayed one snapshot interval late, but they move in every frame.
+ * If the world wraps around, particles that crossed the border move the short way.
+ * <p>
+ * All arrays are reused and only grow (by at least half), so a changing particle count rarely allocates.
+ * Must only be used by the render thread.
+ */
+class SnapshotInterpolator {
+
+    /**
+     * If two snapshots are further apart than this (e.g. because the physics was paused in between),
+     * the current snapshot is displayed right away.
+     */
+    private static final long MAX_INTERVAL_NANOS = 250_000_000L;
+
+    private float[] previousPositions = new float[0];
+    private long previousTime;
+    private long previousSlotVersion = -2;
+    private int previousCount = -1;
+    private int previousDimensions = -1;
+
+    private float[] interpolated = new float[0];
+
+    /**
+     * Remembers the positions of the snapshot that is about to be replaced by a newer one.
+     * Must be called before the snapshot is handed back to the physics thread.
+     */
+    void keep(PhysicsSnapshot snapshot) {
+        int length = snapshot.dimensions * snapshot.particleCount;
+        if (previousPositions.length < length) previousPositions = new float[grow(previousPositions.length, length)];
+        System.arraycopy(snapshot.positions, 0, previousPositions, 0, length);
+        previousTime = snapshot.stepTime;
+        previousSlotVersion = snapshot.slotVersion;
+        previousCount = snapshot.particleCount;
+        previousDimensions = snapshot.dimensions;
+    }
+
+    /**
+     * @return how far (0 to 1) the display has come from the previous to the current snapshot at time <code>now</code>,
+     * or 1 if there is nothing to interpolate
+     */
+    double getProgress(PhysicsSnapshot current, long now) {
+        if (current.particleCount != previousCount || current.slotVersion != previousSlotVersion
+                || current.dimensions != previousDimensions) return 1;
+        long interval = current.stepTime - previousTime;
+        if (interval <= 0 || interval > MAX_INTERVAL_NANOS) return 1;
+        return Math.min(1, Math.max(0, (now - current.stepTime) / (double) interval));
+    }
+
+    /**
+     * @param progress as returned by {@link #getProgress(PhysicsSnapshot, long)}
+     * @return the interpolated positions, or the positions of <code>current</code> if <code>progress</code> is 1,
+     * with {@link PhysicsSnapshot#dimensions} coordinates per particle.
+     * The returned array may be longer than needed and is reused by the next call.
+     */
+    float[] interpolate(PhysicsSnapshot current, double progress) {
+        if (progress >= 1) return current.positions;
+
+        final int length = current.dimensions * current.particleCount;
+        if (interpolated.length < length) interpolated = new float[grow(interpolated.length, length)];
+        final float[] a = previousPositions;
+        final float[] b = current.positions;
+        final float[] result = interpolated;
+        final float t = (float) progress;
+
+        if (current.settings.wrap) {
+            for (int i = 0; i < length; i++) {
+                float delta = b[i] - a[i];
+                if (delta >= 0.5) {
+                    delta -= 1;
+                } else if (delta < -0.5) {
+                    delta += 1;
+                }
+                float x = a[i] + t * delta;
+                if (x < 0) {
+                    x += 1;
+                } else if (x >= 1) {
+                    x -= 1;
+                }
+                result[i] = x;
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                result[i] = a[i] + t * (b[i] - a[i]);
+            }
+        }
+        return result;
+    }
+
+    private static int grow(int capacity, int needed) {
+        return Math.max(needed, capacity + capacity / 2);
+    }
+}
@@ -14,9 +14,15 @@ public class Cursor {
     public CursorShape shape;
 
     public boolean isInside(Particle particle, boolean wrap) {
+        return isInside(particle.position, wrap);
+    }
+
+    public boolean isInside(Vector3d particlePosition, boolean wrap) {
         if (size == 0.0) return false;
 
-        Vector3d delta = new Vector3d(particle.position).sub(position);
+        Vector3d delta = new Vector3d(particlePosition).sub(position);
+        // the world is seen along the z-axis, so in 3D, the cursor reaches through the whole depth
+        delta.z = 0;
 
         if (wrap) {
             // wrapping the connection gives us the shortest possible distance
@@ -34,18 +40,30 @@ public class Cursor {
         return shape.isInside(deltaNormalized);
     }
 
-    public List<Particle> getSelection(Particle[] particles, boolean wrap) {
+    /**
+     * @return the particles inside the cursor, without those that were removed
+     * (see {@link Particle#isRemoved()})
+     */
+    public List<Particle> getSelection(Particle[] particles, int particleCount, boolean wrap) {
         List<Particle> selectedParticles = new ArrayList<>();
-        for (Particle particle : particles) {
-            if (isInside(particle, wrap)) selectedParticles.add(particle);
+        for (int i = 0; i < particleCount; i++) {
+            Particle particle = particles[i];
+            if (!particle.isRemoved() && isInside(particle, wrap)) selectedParticles.add(particle);
         }
         return selectedParticles;
     }
 
-    public int countSelection(Particle[] particles, boolean wrap) {
+    /**
+     * @param positions  x, y (and z in 3D) of each particle, one after the other
+     * @param dimensions 2 or 3
+     */
+    public int countSelection(float[] positions, int dimensions, int particleCount, boolean wrap) {
         int count = 0;
-        for (Particle particle : particles) {
-            if (isInside(particle, wrap)) count++;
+        Vector3d particlePosition = new Vector3d();
+        for (int i = 0; i < particleCount; i++) {
+            int offset = dimensions * i;
+            particlePosition.set(positions[offset], positions[offset + 1], dimensions == 3 ? positions[offset + 2] : 0);
+            if (isInside(particlePosition, wrap)) count++;
         }
         return count;
     }
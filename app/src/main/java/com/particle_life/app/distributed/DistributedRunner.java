@@ -0,0 +1,258 @@
+package com.particle_life.app.distributed;
+
+import com.particle_life.Matrix;
+import com.particle_life.Particle;
+import com.particle_life.Physics;
+import com.particle_life.PhysicsSettings;
+import com.particle_life.RegionStepper;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Runs the physics in several worker processes on this machine instead of in this process.
+ * <p>
+ * The world is split into horizontal strips of container rows, one per {@link RegionWorker}.
+ * The workers exchange border rows and particles that changed strips directly with each other.
+ * This class only sends changes of the settings and collects all particles after each step,
+ * so that {@link Physics#particles} stays up-to-date for the rest of the app.
+ * <p>
+ * If the particles were changed in this process (e.g. by the cursor or by setting new positions),
+ * all particles are sent to the workers again.
+ * Sleeping and tiles (see {@link Physics#sleeping}, {@link Physics#tileCount}) are not used by the workers.
+ * The workers only simulate 2D worlds.
+ */
+public class DistributedRunner implements AutoCloseable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+
+    private final int workerCount;
+    private final Process[] processes;
+    private final Socket[] sockets;
+    private final DataInputStream[] in;
+    private final DataOutputStream[] out;
+
+    /**
+     * The particles as they were last sent to the workers, indexed by the id that the workers know them by.
+     */
+    private Particle[] particlesById = new Particle[0];
+    /**
+     * The array last assigned to {@link Physics#particles}, and the state of its particles at that time.
+     */
+    private Particle[] gathered = null;
+    private long gatheredVersion = -1;
+    private Particle[] gatherBuffer = new Particle[0];
+    private double[] gatheredState = new double[0];
+    private int rowCount = -1;
+    private Matrix sentMatrix = null;
+    private String sentForceFunction = null;
+
+    /**
+     * Starts the worker processes and connects them to each other.
+     *
+     * @throws IOException if a worker could not be started or didn't connect in time
+     */
+    public DistributedRunner(int workerCount) throws IOException {
+        this.workerCount = workerCount;
+        processes = new Process[workerCount];
+        sockets = new Socket[workerCount];
+        in = new DataInputStream[workerCount];
+        out = new DataOutputStream[workerCount];
+
+        try (ServerSocket server = new ServerSocket(0, workerCount, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+
+            String java = ProcessHandle.current().info().command().orElse("java");
+            for (int i = 0; i < workerCount; i++) {
+                processes[i] = new ProcessBuilder(java,
+                        "-cp", System.getProperty("java.class.path"),
+                        RegionWorker.class.getName(),
+                        String.valueOf(server.getLocalPort()),
+                        String.valueOf(i),
+                        String.valueOf(workerCount))
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+            }
+
+            // workers may connect in any order
+            int[] listenPorts = new int[workerCount];
+            for (int k = 0; k < workerCount; k++) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream socketIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                RegionProtocol.expect(socketIn, RegionProtocol.HELLO);
+                int index = socketIn.readInt();
+                sockets[index] = socket;
+                in[index] = socketIn;
+                out[index] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                listenPorts[index] = socketIn.readInt();
+            }
+
+            for (int i = 0; i < workerCount; i++) {
+                out[i].writeByte(RegionProtocol.CONNECT);
+                out[i].writeInt(listenPorts[(i + 1) % workerCount]);
+                out[i].flush();
+            }
+        } catch (SocketTimeoutException e) {
+            close();
+            throw new IOException("Worker processes didn't connect in time", e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Does one step of the physics in the worker processes and stores the result in <code>physics.particles</code>.
+     * If the world is 3D or has fewer than two container rows per worker,
+     * {@link Physics#update()} is called instead.
+     *
+     * @param forceFunction source of the force function that the accelerator of <code>physics</code> was compiled from
+     * @throws IOException if the connection to a worker broke
+     */
+    public void update(Physics physics, String forceFunction) throws IOException {
+        PhysicsSettings settings = physics.settings;
+
+        int rowCount = RegionStepper.getRowCount(settings.rmax);
+        // Strips need at least two rows: a worker sends its border row before it received
+        // the particles from the other neighbor, which can only enter the opposite border row.
+        if (settings.dimensions != 2 || rowCount < 2 * workerCount) {
+            physics.update();
+            gathered = null;
+            return;
+        }
+
+        if (rowCount != this.rowCount || physics.particles != gathered
+                || physics.getParticlesVersion() != gatheredVersion || changedSinceGather()) {
+            this.rowCount = rowCount;
+            scatter(physics.getParticles(), settings.rmax);
+        }
+
+        if (!settings.matrix.equals(sentMatrix)) {
+            sentMatrix = settings.matrix.deepCopy();
+            for (DataOutputStream o : out) {
+                o.writeByte(RegionProtocol.MATRIX);
+                RegionProtocol.writeMatrix(o, sentMatrix);
+            }
+        }
+        if (!forceFunction.equals(sentForceFunction)) {
+            sentForceFunction = forceFunction;
+            for (DataOutputStream o : out) {
+                o.writeByte(RegionProtocol.FORCE_FUNCTION);
+                o.writeUTF(forceFunction);
+            }
+        }
+        for (DataOutputStream o : out) {
+            o.writeByte(RegionProtocol.STEP);
+            RegionProtocol.writeSettings(o, settings);
+            o.flush();
+        }
+
+        physics.setParticles(gather());
+        gatheredVersion = physics.getParticlesVersion();
+    }
+
+    private void scatter(Particle[] particles, double rmax) throws IOException {
+        particlesById = particles.clone();
+
+        int[] worker = new int[particles.length];
+        int[] workerParticleCount = new int[workerCount];
+        for (int id = 0; id < particles.length; id++) {
+            int row = RegionStepper.getRow(particles[id].position.y, rmax);
+            // rows are split like in RegionWorker.step(), so the worker can be guessed and corrected
+            int w = row * workerCount / rowCount;
+            while (w * rowCount / workerCount > row) w--;
+            while ((w + 1) * rowCount / workerCount <= row) w++;
+            worker[id] = w;
+            workerParticleCount[w]++;
+        }
+
+        for (int w = 0; w < workerCount; w++) {
+            out[w].writeByte(RegionProtocol.PARTICLES);
+            out[w].writeInt(workerParticleCount[w]);
+        }
+        for (int id = 0; id < particles.length; id++) {
+            RegionProtocol.writeParticle(out[worker[id]], id, particles[id]);
+        }
+    }
+
+    private Particle[] gather() throws IOException {
+        // alternate between two arrays, like Physics does when sorting
+        Particle[] result = gatherBuffer.length == particlesById.length ? gatherBuffer : new Particle[particlesById.length];
+        if (gatheredState.length != 5 * result.length) {
+            gatheredState = new double[5 * result.length];
+        }
+
+        int k = 0;
+        for (DataInputStream i : in) {
+            RegionProtocol.expect(i, RegionProtocol.REGION);
+            int n = i.readInt();
+            for (int m = 0; m < n; m++) {
+                Particle p = particlesById[i.readInt()];
+                RegionProtocol.readParticle(i, p);
+                result[k] = p;
+                gatheredState[5 * k] = p.position.x;
+                gatheredState[5 * k + 1] = p.position.y;
+                gatheredState[5 * k + 2] = p.velocity.x;
+                gatheredState[5 * k + 3] = p.velocity.y;
+                gatheredState[5 * k + 4] = p.type;
+                k++;
+            }
+        }
+        if (k != result.length) {
+            throw new IOException("Workers returned " + k + " particles instead of " + result.length);
+        }
+
+        gatherBuffer = gathered != null ? gathered : new Particle[0];
+        gathered = result;
+        return result;
+    }
+
+    private boolean changedSinceGather() {
+        for (int k = 0; k < gathered.length; k++) {
+            Particle p = gathered[k];
+            if (p.position.x != gatheredState[5 * k]
+                    || p.position.y != gatheredState[5 * k + 1]
+                    || p.velocity.x != gatheredState[5 * k + 2]
+                    || p.velocity.y != gatheredState[5 * k + 3]
+                    || p.type != gatheredState[5 * k + 4]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops the worker processes.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < workerCount; i++) {
+            if (out[i] != null) {
+                try {
+                    out[i].writeByte(RegionProtocol.SHUTDOWN);
+                    out[i].flush();
+                } catch (IOException ignored) {
+                    // worker is already gone
+                }
+            }
+            if (sockets[i] != null) {
+                try {
+                    sockets[i].close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (processes[i] != null) {
+                processes[i].destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.particle_life.app.distributed;
+
+import com.particle_life.DefaultMatrix;
+import com.particle_life.Matrix;
+import com.particle_life.Particle;
+import com.particle_life.PhysicsSettings;
+import com.particle_life.SparseMatrix;
+
+import java.io.*;
+
+/**
+ * Binary messages between the {@link DistributedRunner coordinator} and the {@link RegionWorker workers},
+ * all sent over localhost TCP connections with {@link DataOutputStream}.
+ * <p>
+ * Coordinator &rarr; worker:
+ * <ul>
+ * <li>{@link #CONNECT}: port of the next worker (the one below)</li>
+ * <li>{@link #PARTICLES}: replaces all particles of the worker</li>
+ * <li>{@link #MATRIX}, {@link #FORCE_FUNCTION}: only sent when they changed</li>
+ * <li>{@link #STEP}: the scalar settings, then the worker does one step and answers with {@link #REGION}</li>
+ * <li>{@link #SHUTDOWN}</li>
+ * </ul>
+ * Worker &rarr; coordinator: {@link #HELLO} once, then one {@link #REGION} per step with all of its particles.
+ * <p>
+ * Between neighboring workers, each step, one frame in each direction:
+ * the particles that move over to the neighbor, followed by the border row of the sender
+ * (only position and type, see {@link #writeHaloParticle}).
+ */
+final class RegionProtocol {
+
+    static final byte HELLO = 1;
+    static final byte CONNECT = 2;
+    static final byte PARTICLES = 3;
+    static final byte MATRIX = 4;
+    static final byte FORCE_FUNCTION = 5;
+    static final byte STEP = 6;
+    static final byte REGION = 7;
+    static final byte SHUTDOWN = 8;
+
+    private static final byte DENSE_MATRIX = 0;
+    private static final byte SPARSE_MATRIX = 1;
+
+    private RegionProtocol() {
+    }
+
+    static void expect(DataInput in, byte tag) throws IOException {
+        byte actual = in.readByte();
+        if (actual != tag) {
+            throw new IOException("Expected message " + tag + ", got " + actual);
+        }
+    }
+
+    /**
+     * 40 bytes: id, x, y, vx, vy, type.
+     */
+    static void writeParticle(DataOutput out, int id, Particle p) throws IOException {
+        out.writeInt(id);
+        out.writeDouble(p.position.x);
+        out.writeDouble(p.position.y);
+        out.writeDouble(p.velocity.x);
+        out.writeDouble(p.velocity.y);
+        out.writeInt(p.type);
+    }
+
+    /**
+     * Reads what {@link #writeParticle} wrote, except for the id, which must have been read already.
+     */
+    static void readParticle(DataInput in, Particle p) throws IOException {
+        p.position.set(in.readDouble(), in.readDouble(), 0);
+        p.velocity.set(in.readDouble(), in.readDouble(), 0);
+        p.type = in.readInt();
+    }
+
+    /**
+     * 20 bytes: x, y, type.
+     */
+    static void writeHaloParticle(DataOutput out, Particle p) throws IOException {
+        out.writeDouble(p.position.x);
+        out.writeDouble(p.position.y);
+        out.writeInt(p.type);
+    }
+
+    static void readHaloParticle(DataInput in, Particle p) throws IOException {
+        p.position.set(in.readDouble(), in.readDouble(), 0);
+        p.type = in.readInt();
+    }
+
+    /**
+     * Everything except the matrix.
+     */
+    static void writeSettings(DataOutput out, PhysicsSettings settings) throws IOException {
+        out.writeBoolean(settings.wrap);
+        out.writeDouble(settings.rmax);
+        out.writeDouble(settings.friction);
+        out.writeDouble(settings.force);
+        out.writeDouble(settings.dt);
+    }
+
+    static void readSettings(DataInput in, PhysicsSettings settings) throws IOException {
+        settings.wrap = in.readBoolean();
+        settings.rmax = in.readDouble();
+        settings.friction = in.readDouble();
+        settings.force = in.readDouble();
+        settings.dt = in.readDouble();
+    }
+
+    /**
+     * Sparse matrices are sent as their stored entries, everything else entry by entry.
+     */
+    static void writeMatrix(DataOutput out, Matrix matrix) throws IOException {
+        int size = matrix.size();
+        if (matrix instanceof SparseMatrix sparse) {
+            out.writeByte(SPARSE_MATRIX);
+            out.writeInt(size);
+            out.writeDouble(sparse.getDefaultValue());
+            out.writeInt(sparse.getEntryCount());
+            try {
+                sparse.forEachEntry((i, j, value) -> {
+                    try {
+                        out.writeInt(i);
+                        out.writeInt(j);
+                        out.writeDouble(value);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            out.writeByte(DENSE_MATRIX);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    out.writeDouble(matrix.get(i, j));
+                }
+            }
+        }
+    }
+
+    static Matrix readMatrix(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        int size = in.readInt();
+        if (kind == SPARSE_MATRIX) {
+            SparseMatrix matrix = new SparseMatrix(size, in.readDouble());
+            int count = in.readInt();
+            int[] rows = new int[count];
+            int[] columns = new int[count];
+            double[] values = new double[count];
+            for (int k = 0; k < count; k++) {
+                rows[k] = in.readInt();
+                columns[k] = in.readInt();
+                values[k] = in.readDouble();
+            }
+            matrix.setAll(rows, columns, values, count);
+            return matrix;
+        } else if (kind == DENSE_MATRIX) {
+            DefaultMatrix matrix = new DefaultMatrix(size);
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    matrix.values[i][j] = in.readDouble();
+                }
+            }
+            return matrix;
+        } else {
+            throw new IOException("Unknown matrix kind " + kind);
+        }
+    }
+}
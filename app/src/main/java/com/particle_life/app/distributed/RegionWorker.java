@@ -0,0 +1,324 @@
+package com.particle_life.app.distributed;
+
+import com.particle_life.Accelerator;
+import com.particle_life.Particle;
+import com.particle_life.PhysicsSettings;
+import com.particle_life.RegionStepper;
+import com.particle_life.app.AppSettings;
+import com.particle_life.app.forces.ForceCompiler;
+import com.particle_life.app.forces.ForceExpressionException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Process that simulates one horizontal strip of the world, started by {@link DistributedRunner}.
+ * <p>
+ * The workers form a ring: each one is connected to the worker above and the worker below
+ * (with one worker, it is connected to itself).
+ * In each step, a worker sends the particles that left its strip and its border rows to its neighbors,
+ * and uses the border rows it receives as the halo for {@link RegionStepper}.
+ * <p>
+ * Particles that moved further than into the neighboring strip in one step are passed on
+ * in the next step and are not updated while they are on their way.
+ * <p>
+ * Usage: <code>RegionWorker &lt;coordinator port&gt; &lt;index&gt; &lt;number of workers&gt;</code>
+ */
+public final class RegionWorker {
+
+    private static final class RegionParticle extends Particle {
+        final int id;
+
+        RegionParticle(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Connection to a neighboring worker.
+     * Frames are read on their own thread, so that neighbors can send to each other at the same time
+     * without blocking each other when the socket buffers are full.
+     */
+    private static final class Link {
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        private final DataOutputStream frameOut = new DataOutputStream(frame);
+
+        private Particle[] halo = new Particle[0];
+        private int haloCount;
+
+        Link(Socket socket, String name) throws IOException {
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        received.put(bytes);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // connection closed, the main thread notices through the coordinator
+                }
+            });
+            reader.setDaemon(true);
+            reader.setName(name);
+            reader.start();
+        }
+
+        void send(ArrayList<RegionParticle> migrants, Particle[] particles, int count, int row, double rmax) throws IOException {
+            frame.reset();
+            frameOut.writeInt(migrants.size());
+            for (RegionParticle p : migrants) {
+                RegionProtocol.writeParticle(frameOut, p.id, p);
+            }
+            int haloCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (RegionStepper.getRow(particles[i].position.y, rmax) == row) haloCount++;
+            }
+            frameOut.writeInt(haloCount);
+            for (int i = 0; i < count; i++) {
+                if (RegionStepper.getRow(particles[i].position.y, rmax) == row) {
+                    RegionProtocol.writeHaloParticle(frameOut, particles[i]);
+                }
+            }
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+            out.flush();
+        }
+
+        /**
+         * Reads the next frame: the migrants are added to <code>migrants</code>, the border row is kept as halo.
+         */
+        void receive(ArrayList<RegionParticle> migrants) throws IOException, InterruptedException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(received.take()));
+            int migrantCount = in.readInt();
+            for (int k = 0; k < migrantCount; k++) {
+                RegionParticle p = new RegionParticle(in.readInt());
+                RegionProtocol.readParticle(in, p);
+                migrants.add(p);
+            }
+            haloCount = in.readInt();
+            ensureHaloCapacity(haloCount);
+            for (int k = 0; k < haloCount; k++) {
+                RegionProtocol.readHaloParticle(in, halo[k]);
+            }
+        }
+
+        /**
+         * Appends copies of the particles that this worker sent to the neighbor and that ended up in its border row,
+         * so that the halo is the border row after the migration.
+         */
+        void addToHalo(ArrayList<RegionParticle> sent, int row, double rmax) {
+            for (RegionParticle p : sent) {
+                if (RegionStepper.getRow(p.position.y, rmax) != row) continue;
+                ensureHaloCapacity(haloCount + 1);
+                halo[haloCount].position.set(p.position);
+                halo[haloCount].type = p.type;
+                haloCount++;
+            }
+        }
+
+        private void ensureHaloCapacity(int capacity) {
+            if (halo.length < capacity) {
+                int oldLength = halo.length;
+                halo = Arrays.copyOf(halo, Math.max(capacity, 2 * oldLength));
+                for (int k = oldLength; k < halo.length; k++) {
+                    halo[k] = new Particle();
+                }
+            }
+        }
+    }
+
+    private final int index;
+    private final int workerCount;
+
+    private final PhysicsSettings settings = new PhysicsSettings();
+    private Accelerator accelerator;
+    private final RegionStepper stepper = new RegionStepper();
+
+    private Particle[] particles = new Particle[0];
+    private int count = 0;
+    /**
+     * Particles that arrived here but belong to a strip further away.
+     */
+    private final ArrayList<RegionParticle> passingThrough = new ArrayList<>();
+    private final ArrayList<RegionParticle> migrantsUp = new ArrayList<>();
+    private final ArrayList<RegionParticle> migrantsDown = new ArrayList<>();
+    private final ArrayList<RegionParticle> arrived = new ArrayList<>();
+
+    private Link above;
+    private Link below;
+
+    private RegionWorker(int index, int workerCount) {
+        this.index = index;
+        this.workerCount = workerCount;
+        setForceFunction(new AppSettings().forceFunction);
+        stepper.preferredNumberOfThreads = Runtime.getRuntime().availableProcessors();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3) {
+            System.err.println("Usage: RegionWorker <coordinator port> <index> <number of workers>");
+            System.exit(1);
+        }
+        int coordinatorPort = Integer.parseInt(args[0]);
+        new RegionWorker(Integer.parseInt(args[1]), Integer.parseInt(args[2])).run(coordinatorPort);
+    }
+
+    private void run(int coordinatorPort) throws IOException, InterruptedException {
+        InetAddress localhost = InetAddress.getLoopbackAddress();
+        try (ServerSocket server = new ServerSocket(0, 1, localhost);
+             Socket coordinator = new Socket(localhost, coordinatorPort)) {
+
+            coordinator.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(coordinator.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(coordinator.getOutputStream()));
+
+            out.writeByte(RegionProtocol.HELLO);
+            out.writeInt(index);
+            out.writeInt(server.getLocalPort());
+            out.flush();
+
+            RegionProtocol.expect(in, RegionProtocol.CONNECT);
+            int belowPort = in.readInt();
+            // the server socket already listens, so connecting doesn't wait for the worker below to accept
+            below = new Link(new Socket(localhost, belowPort), "Region-Link-Below");
+            above = new Link(server.accept(), "Region-Link-Above");
+
+            while (true) {
+                byte tag;
+                try {
+                    tag = in.readByte();
+                } catch (EOFException e) {
+                    return;  // coordinator is gone
+                }
+                switch (tag) {
+                    case RegionProtocol.PARTICLES -> readParticles(in);
+                    case RegionProtocol.MATRIX -> settings.matrix = RegionProtocol.readMatrix(in);
+                    case RegionProtocol.FORCE_FUNCTION -> setForceFunction(in.readUTF());
+                    case RegionProtocol.STEP -> {
+                        RegionProtocol.readSettings(in, settings);
+                        step();
+                        writeRegion(out);
+                    }
+                    case RegionProtocol.SHUTDOWN -> {
+                        return;
+                    }
+                    default -> throw new IOException("Unknown message " + tag);
+                }
+            }
+        }
+    }
+
+    private void setForceFunction(String source) {
+        try {
+            accelerator = ForceCompiler.createAccelerator(source);
+        } catch (ForceExpressionException e) {
+            System.err.println("Worker " + index + ": " + e.getMessage());
+        }
+    }
+
+    private void readParticles(DataInput in) throws IOException {
+        Arrays.fill(particles, 0, count, null);
+        count = 0;
+        passingThrough.clear();
+        int n = in.readInt();
+        for (int k = 0; k < n; k++) {
+            RegionParticle p = new RegionParticle(in.readInt());
+            RegionProtocol.readParticle(in, p);
+            add(p);
+        }
+    }
+
+    private void add(Particle p) {
+        if (count == particles.length) {
+            particles = Arrays.copyOf(particles, Math.max(16, 2 * count));
+        }
+        particles[count++] = p;
+    }
+
+    private void step() throws IOException, InterruptedException {
+        final double rmax = settings.rmax;
+        final int ny = RegionStepper.getRowCount(rmax);
+        final int firstRow = index * ny / workerCount;
+        final int rows = (index + 1) * ny / workerCount - firstRow;
+        final int lastRow = firstRow + rows - 1;
+
+        // hand over the particles that left this strip
+        migrantsUp.clear();
+        migrantsDown.clear();
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            RegionParticle p = (RegionParticle) particles[i];
+            if (!sortOut(p, firstRow, lastRow, ny)) particles[kept++] = p;
+        }
+        Arrays.fill(particles, kept, count, null);
+        count = kept;
+        for (RegionParticle p : passingThrough) {
+            if (!sortOut(p, firstRow, lastRow, ny)) add(p);
+        }
+        passingThrough.clear();
+
+        // The border rows are sent before the migrants from the neighbors arrived.
+        // That's fine because DistributedRunner only uses strips of at least two rows,
+        // so migrants from below can't enter the first row, and migrants from above can't enter the last row.
+        above.send(migrantsUp, particles, count, firstRow, rmax);
+        below.send(migrantsDown, particles, count, lastRow, rmax);
+
+        arrived.clear();
+        above.receive(arrived);
+        below.receive(arrived);
+        above.addToHalo(migrantsUp, (firstRow + ny - 1) % ny, rmax);
+        below.addToHalo(migrantsDown, (lastRow + 1) % ny, rmax);
+        for (RegionParticle p : arrived) {
+            int row = RegionStepper.getRow(p.position.y, rmax);
+            if (row >= firstRow && row <= lastRow) {
+                add(p);
+            } else {
+                passingThrough.add(p);
+            }
+        }
+
+        stepper.update(settings, accelerator, particles, count, firstRow, rows,
+                above.halo, above.haloCount, below.halo, below.haloCount);
+    }
+
+    /**
+     * @return whether the particle is outside the strip and was added to the migrants
+     */
+    private boolean sortOut(RegionParticle p, int firstRow, int lastRow, int ny) {
+        int row = RegionStepper.getRow(p.position.y, settings.rmax);
+        if (row >= firstRow && row <= lastRow) return false;
+
+        boolean up;
+        if (settings.wrap) {
+            up = Math.floorMod(firstRow - row, ny) <= Math.floorMod(row - lastRow, ny);
+        } else {
+            up = row < firstRow;
+        }
+        (up ? migrantsUp : migrantsDown).add(p);
+        return true;
+    }
+
+    private void writeRegion(DataOutputStream out) throws IOException {
+        out.writeByte(RegionProtocol.REGION);
+        out.writeInt(count + passingThrough.size());
+        for (int i = 0; i < count; i++) {
+            RegionParticle p = (RegionParticle) particles[i];
+            RegionProtocol.writeParticle(out, p.id, p);
+        }
+        for (RegionParticle p : passingThrough) {
+            RegionProtocol.writeParticle(out, p.id, p);
+        }
+        out.flush();
+    }
+}
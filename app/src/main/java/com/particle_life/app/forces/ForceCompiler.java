@@ -0,0 +1,415 @@
+package com.particle_life.app.forces;
+
+import com.particle_life.Accelerator;
+import com.particle_life.app.forces.ForceExpression.*;
+import org.joml.Vector3d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns a {@link ForceExpression} into an {@link Accelerator}.
+ * <p>
+ * The expression is compiled to JVM bytecode and loaded as a hidden class,
+ * so the JIT can inline it into the physics loop just like a handwritten accelerator.
+ * The generated class is equivalent to
+ * <pre>
+ * (a, pos) -> {
+ *     double d = pos.length();
+ *     // definitions ...
+ *     return pos.mul(expression / d);
+ * }
+ * </pre>
+ * If the hidden class can't be defined for some reason,
+ * {@link #createAccelerator(String)} falls back to interpreting the expression.
+ */
+public final class ForceCompiler {
+
+    /**
+     * Hidden classes must be in the same package as the lookup class.
+     */
+    private static final String CLASS_NAME = ForceCompiler.class.getPackageName().replace('.', '/') + "/CompiledForce";
+    private static final String VECTOR_CLASS = "org/joml/Vector3d";
+    private static final String ACCELERATOR_CLASS = Accelerator.class.getName().replace('.', '/');
+
+    /**
+     * Version 49 (Java 5) doesn't require stack map frames,
+     * so we don't have to compute them for the branches of conditionals.
+     */
+    private static final int CLASS_FILE_VERSION = 49;
+
+    // local variable slots of accelerate(double a, Vector3d pos)
+    private static final int LOCAL_A = 1;
+    private static final int LOCAL_POS = 3;
+    private static final int LOCAL_D = 4;
+    private static final int LOCAL_B = 6;
+    private static final int FIRST_LOCAL_DEFINITION = 8;
+
+    /**
+     * Parses and compiles the given source.
+     * The compiled accelerator is validated against the interpreter on a few samples.
+     *
+     * @param source force expression, see {@link ForceExpression}
+     * @return an accelerator that computes the given force
+     * @throws ForceExpressionException if the expression can't be parsed
+     */
+    public static Accelerator createAccelerator(String source) throws ForceExpressionException {
+        ForceExpression expression = ForceExpression.parse(source);
+        Accelerator compiled;
+        try {
+            compiled = compile(expression);
+        } catch (ForceExpressionException e) {
+            System.err.println(e.getMessage() + ". Falling back to interpreter.");
+            return new InterpretedAccelerator(expression);
+        }
+        if (!matchesInterpreter(compiled, expression)) {
+            System.err.printf("Compiled force '%s' doesn't match interpreter. Falling back to interpreter.%n", source);
+            return new InterpretedAccelerator(expression);
+        }
+        return compiled;
+    }
+
+    public static Accelerator compile(ForceExpression expression) throws ForceExpressionException {
+        byte[] classFile;
+        try {
+            classFile = new ClassFileWriter(expression).write();
+        } catch (IOException e) {
+            throw new ForceExpressionException("Could not generate class file", e);
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (Accelerator) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new ForceExpressionException("Could not load compiled force", e);
+        }
+    }
+
+    private static boolean matchesInterpreter(Accelerator compiled, ForceExpression expression) {
+        Accelerator interpreted = new InterpretedAccelerator(expression);
+        for (double a = -1; a <= 1; a += 0.25) {
+            for (double d = 0.01; d <= 1; d += 0.01) {
+                double x = compiled.accelerate(a, new Vector3d(d, 0, 0)).x;
+                double y = interpreted.accelerate(a, new Vector3d(d, 0, 0)).x;
+                if (!(x == y || (Double.isNaN(x) && Double.isNaN(y)))) return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class ClassFileWriter {
+
+        private final ForceExpression expression;
+
+        private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+        private final Map<String, Integer> constantIndices = new HashMap<>();
+        private int constantCount = 1;  // index 0 is unused
+
+        private DataOutputStream code;
+        private ByteArrayOutputStream codeBytes;
+        private int stackDepth;
+        private int maxStackDepth;
+
+        ClassFileWriter(ForceExpression expression) {
+            this.expression = expression;
+        }
+
+        byte[] write() throws IOException, ForceExpressionException {
+            int thisClass = classConstant(CLASS_NAME);
+            int superClass = classConstant("java/lang/Object");
+            int acceleratorInterface = classConstant(ACCELERATOR_CLASS);
+
+            byte[] constructor = method(0x0001, "<init>", "()V", this::writeConstructor, 1);
+            int maxLocals = FIRST_LOCAL_DEFINITION + 2 * (expression.slotCount - ForceExpression.PREDEFINED_VARIABLES.size());
+            if (maxLocals > 255) {
+                throw new ForceExpressionException("Too many definitions", -1);
+            }
+            byte[] accelerate = method(0x0001, "accelerate",
+                    "(DL" + VECTOR_CLASS + ";)L" + VECTOR_CLASS + ";", this::writeAccelerate, maxLocals);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_VERSION);
+            out.writeShort(constantCount);
+            out.write(constantPoolBytes.toByteArray());
+            out.writeShort(0x0001 | 0x0010 | 0x0020);  // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);  // interfaces
+            out.writeShort(acceleratorInterface);
+            out.writeShort(0);  // fields
+            out.writeShort(2);  // methods
+            out.write(constructor);
+            out.write(accelerate);
+            out.writeShort(0);  // attributes
+            return bytes.toByteArray();
+        }
+
+        private interface CodeWriter {
+            void write() throws IOException, ForceExpressionException;
+        }
+
+        private byte[] method(int access, String name, String descriptor, CodeWriter codeWriter, int maxLocals)
+                throws IOException, ForceExpressionException {
+            codeBytes = new ByteArrayOutputStream();
+            code = new DataOutputStream(codeBytes);
+            stackDepth = 0;
+            maxStackDepth = 0;
+            codeWriter.write();
+            byte[] instructions = codeBytes.toByteArray();
+            if (instructions.length > 0xFFFF) {
+                throw new ForceExpressionException("Expression is too long", -1);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(1);  // attributes
+            out.writeShort(utf8Constant("Code"));
+            out.writeInt(12 + instructions.length);
+            out.writeShort(maxStackDepth);
+            out.writeShort(maxLocals);
+            out.writeInt(instructions.length);
+            out.write(instructions);
+            out.writeShort(0);  // exception table
+            out.writeShort(0);  // attributes
+            return bytes.toByteArray();
+        }
+
+        private void writeConstructor() throws IOException {
+            instruction(0x2a, 1);  // aload_0
+            instruction(0xb7, -1);  // invokespecial
+            code.writeShort(methodConstant("java/lang/Object", "<init>", "()V"));
+            instruction(0xb1, 0);  // return
+        }
+
+        private void writeAccelerate() throws IOException, ForceExpressionException {
+            // double d = pos.length();
+            instruction(0x19, 1);  // aload
+            code.writeByte(LOCAL_POS);
+            instruction(0xb6, 1);  // invokevirtual: ref -> double
+            code.writeShort(methodConstant(VECTOR_CLASS, "length", "()D"));
+            storeDouble(LOCAL_D);
+
+            // double b = 0.3;
+            pushConstant(ForceExpression.DEFAULT_BETA);
+            storeDouble(LOCAL_B);
+
+            for (Definition definition : expression.definitions) {
+                writeNode(definition.value());
+                storeDouble(local(definition.slot()));
+            }
+
+            // return pos.mul(result / d);
+            instruction(0x19, 1);  // aload
+            code.writeByte(LOCAL_POS);
+            writeNode(expression.result);
+            loadDouble(LOCAL_D);
+            instruction(0x6f, -2);  // ddiv
+            instruction(0xb6, -2);  // invokevirtual: ref, double -> ref
+            code.writeShort(methodConstant(VECTOR_CLASS, "mul", "(D)L" + VECTOR_CLASS + ";"));
+            instruction(0xb0, -1);  // areturn
+        }
+
+        private void writeNode(Node node) throws IOException, ForceExpressionException {
+            if (node instanceof Constant c) {
+                pushConstant(c.value());
+            } else if (node instanceof Variable v) {
+                loadDouble(local(v.slot()));
+            } else if (node instanceof Negate n) {
+                writeNode(n.operand());
+                instruction(0x77, 0);  // dneg
+            } else if (node instanceof Binary b) {
+                writeNode(b.left());
+                writeNode(b.right());
+                int opcode = switch (b.operator()) {
+                    case '+' -> 0x63;  // dadd
+                    case '-' -> 0x67;  // dsub
+                    case '*' -> 0x6b;  // dmul
+                    case '/' -> 0x6f;  // ddiv
+                    default -> throw new IllegalStateException("Unknown operator " + b.operator());
+                };
+                instruction(opcode, -2);
+            } else if (node instanceof Call c) {
+                for (Node argument : c.arguments()) {
+                    writeNode(argument);
+                }
+                int arity = c.arguments().size();
+                instruction(0xb8, 2 - 2 * arity);  // invokestatic
+                code.writeShort(methodConstant("java/lang/Math", c.function().name, "(" + "D".repeat(arity) + ")D"));
+            } else if (node instanceof Conditional c) {
+                writeConditional(c);
+            } else {
+                throw new IllegalStateException("Unknown node " + node);
+            }
+        }
+
+        private void writeConditional(Conditional c) throws IOException, ForceExpressionException {
+            writeNode(c.left());
+            writeNode(c.right());
+            // dcmpg pushes 1 for NaN, dcmpl pushes -1 for NaN,
+            // so that comparisons with NaN are always false
+            // (the branch jumps to the "otherwise" part if the comparison is false)
+            int compareOpcode;
+            int branchOpcode;
+            switch (c.comparison()) {
+                case LESS -> {
+                    compareOpcode = 0x98;  // dcmpg
+                    branchOpcode = 0x9c;  // ifge
+                }
+                case LESS_EQUAL -> {
+                    compareOpcode = 0x98;  // dcmpg
+                    branchOpcode = 0x9d;  // ifgt
+                }
+                case GREATER -> {
+                    compareOpcode = 0x97;  // dcmpl
+                    branchOpcode = 0x9e;  // ifle
+                }
+                default -> {
+                    compareOpcode = 0x97;  // dcmpl
+                    branchOpcode = 0x9b;  // iflt
+                }
+            }
+            instruction(compareOpcode, -3);  // double, double -> int
+
+            int branch = codeBytes.size();
+            instruction(branchOpcode, -1);
+            code.writeShort(0);  // placeholder
+
+            int depthBefore = stackDepth;
+            writeNode(c.then());
+
+            int jump = codeBytes.size();
+            instruction(0xa7, 0);  // goto
+            code.writeShort(0);  // placeholder
+
+            stackDepth = depthBefore;  // the "then" result is not on the stack in the other branch
+            int otherwise = codeBytes.size();
+            writeNode(c.otherwise());
+            int end = codeBytes.size();
+
+            patchBranchOffset(branch, otherwise - branch);
+            patchBranchOffset(jump, end - jump);
+        }
+
+        private void patchBranchOffset(int instructionPosition, int offset) throws ForceExpressionException {
+            if (offset > Short.MAX_VALUE) {
+                throw new ForceExpressionException("Expression is too long", -1);
+            }
+            // ByteArrayOutputStream has no random access, so we have to go through a copy
+            byte[] bytes = codeBytes.toByteArray();
+            bytes[instructionPosition + 1] = (byte) (offset >> 8);
+            bytes[instructionPosition + 2] = (byte) offset;
+            codeBytes.reset();
+            codeBytes.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * @return the local variable index of the given {@link ForceExpression} slot
+         */
+        private static int local(int slot) {
+            return switch (slot) {
+                case ForceExpression.SLOT_A -> LOCAL_A;
+                case ForceExpression.SLOT_D -> LOCAL_D;
+                case ForceExpression.SLOT_B -> LOCAL_B;
+                default -> FIRST_LOCAL_DEFINITION + 2 * (slot - ForceExpression.PREDEFINED_VARIABLES.size());
+            };
+        }
+
+        private void pushConstant(double value) throws IOException {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                instruction(0x0e, 2);  // dconst_0
+            } else if (value == 1.0) {
+                instruction(0x0f, 2);  // dconst_1
+            } else {
+                instruction(0x14, 2);  // ldc2_w
+                code.writeShort(doubleConstant(value));
+            }
+        }
+
+        private void loadDouble(int local) throws IOException {
+            instruction(0x18, 2);  // dload
+            code.writeByte(local);
+        }
+
+        private void storeDouble(int local) throws IOException {
+            instruction(0x39, -2);  // dstore
+            code.writeByte(local);
+        }
+
+        /**
+         * @param stackChange by how many slots the operand stack grows (doubles take two slots)
+         */
+        private void instruction(int opcode, int stackChange) throws IOException {
+            code.writeByte(opcode);
+            stackDepth += stackChange;
+            maxStackDepth = Math.max(maxStackDepth, stackDepth);
+        }
+
+        private int utf8Constant(String value) throws IOException {
+            Integer index = constantIndices.get("utf8:" + value);
+            if (index != null) return index;
+            constantPool.writeByte(1);
+            constantPool.writeUTF(value);
+            return addConstant("utf8:" + value, 1);
+        }
+
+        private int classConstant(String internalName) throws IOException {
+            Integer index = constantIndices.get("class:" + internalName);
+            if (index != null) return index;
+            int name = utf8Constant(internalName);
+            constantPool.writeByte(7);
+            constantPool.writeShort(name);
+            return addConstant("class:" + internalName, 1);
+        }
+
+        private int methodConstant(String owner, String name, String descriptor) throws IOException {
+            String key = "method:" + owner + "." + name + descriptor;
+            Integer index = constantIndices.get(key);
+            if (index != null) return index;
+            int ownerIndex = classConstant(owner);
+            int nameAndType = nameAndTypeConstant(name, descriptor);
+            constantPool.writeByte(10);  // Methodref
+            constantPool.writeShort(ownerIndex);
+            constantPool.writeShort(nameAndType);
+            return addConstant(key, 1);
+        }
+
+        private int nameAndTypeConstant(String name, String descriptor) throws IOException {
+            String key = "nameAndType:" + name + descriptor;
+            Integer index = constantIndices.get(key);
+            if (index != null) return index;
+            int nameIndex = utf8Constant(name);
+            int descriptorIndex = utf8Constant(descriptor);
+            constantPool.writeByte(12);
+            constantPool.writeShort(nameIndex);
+            constantPool.writeShort(descriptorIndex);
+            return addConstant(key, 1);
+        }
+
+        private int doubleConstant(double value) throws IOException {
+            String key = "double:" + Double.doubleToRawLongBits(value);
+            Integer index = constantIndices.get(key);
+            if (index != null) return index;
+            constantPool.writeByte(6);
+            constantPool.writeDouble(value);
+            return addConstant(key, 2);  // doubles take two entries in the constant pool
+        }
+
+        private int addConstant(String key, int size) {
+            int index = constantCount;
+            constantIndices.put(key, index);
+            constantCount += size;
+            return index;
+        }
+    }
+}
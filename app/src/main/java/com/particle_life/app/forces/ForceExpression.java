@@ -0,0 +1,197 @@
+package com.particle_life.app.forces;
+
+import java.util.List;
+
+/**
+ * A parsed force function, e.g.
+ * <pre>
+ *     d &lt; b ? d/b-1 : a*(1-abs(1+b-2*d)/(1-b))
+ * </pre>
+ * The expression computes the strength of the force between two particles.
+ * The following variables are available:
+ * <ul>
+ *     <li><code>a</code>: the matrix entry for the two particle types, usually in [-1, 1]</li>
+ *     <li><code>d</code>: the distance between the two particles relative to rmax, in (0, 1]</li>
+ *     <li><code>b</code>: 0.3 by default (the "beta" of the default force), can be redefined</li>
+ * </ul>
+ * Further values can be defined before the actual expression,
+ * separated by semicolons:
+ * <pre>
+ *     b = 0.2; s = 2 * d - 1; d &lt; b ? d/b-1 : a*(1-abs(s+b)/(1-b))
+ * </pre>
+ * Supported are the operators <code>+ - * /</code>,
+ * the conditional <code>x &lt; y ? u : v</code> (also with <code>&lt;= &gt; &gt;=</code>),
+ * and the functions <code>abs, sqrt, exp, min, max, pow</code>.
+ * <p>
+ * Use {@link ForceCompiler} to turn an expression into an {@link com.particle_life.Accelerator}.
+ */
+public final class ForceExpression {
+
+    /**
+     * Variables that are always present, in the order of their slots.
+     * The slots of user definitions follow after these.
+     */
+    static final List<String> PREDEFINED_VARIABLES = List.of("a", "d", "b");
+    static final double DEFAULT_BETA = 0.3;
+
+    static final int SLOT_A = 0;
+    static final int SLOT_D = 1;
+    static final int SLOT_B = 2;
+
+    sealed interface Node permits Constant, Variable, Negate, Binary, Call, Conditional {
+    }
+
+    record Constant(double value) implements Node {
+    }
+
+    record Variable(String name, int slot) implements Node {
+    }
+
+    record Negate(Node operand) implements Node {
+    }
+
+    /**
+     * @param operator one of <code>+ - * /</code>
+     */
+    record Binary(char operator, Node left, Node right) implements Node {
+    }
+
+    record Call(Function function, List<Node> arguments) implements Node {
+    }
+
+    record Conditional(Comparison comparison, Node left, Node right, Node then, Node otherwise) implements Node {
+    }
+
+    enum Comparison {
+        LESS("<"),
+        LESS_EQUAL("<="),
+        GREATER(">"),
+        GREATER_EQUAL(">=");
+
+        final String symbol;
+
+        Comparison(String symbol) {
+            this.symbol = symbol;
+        }
+
+        boolean test(double x, double y) {
+            return switch (this) {
+                case LESS -> x < y;
+                case LESS_EQUAL -> x <= y;
+                case GREATER -> x > y;
+                case GREATER_EQUAL -> x >= y;
+            };
+        }
+    }
+
+    /**
+     * All functions map directly to a static method of {@link Math}.
+     */
+    enum Function {
+        ABS("abs", 1),
+        SQRT("sqrt", 1),
+        EXP("exp", 1),
+        MIN("min", 2),
+        MAX("max", 2),
+        POW("pow", 2);
+
+        final String name;
+        final int arity;
+
+        Function(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        double apply(double[] args) {
+            return switch (this) {
+                case ABS -> Math.abs(args[0]);
+                case SQRT -> Math.sqrt(args[0]);
+                case EXP -> Math.exp(args[0]);
+                case MIN -> Math.min(args[0], args[1]);
+                case MAX -> Math.max(args[0], args[1]);
+                case POW -> Math.pow(args[0], args[1]);
+            };
+        }
+    }
+
+    /**
+     * A user definition like <code>b = 0.2</code>.
+     * Its value is stored in the given slot.
+     */
+    record Definition(String name, int slot, Node value) {
+    }
+
+    final String source;
+    final List<Definition> definitions;
+    final Node result;
+    /**
+     * Total number of variable slots, including {@link #PREDEFINED_VARIABLES}.
+     */
+    final int slotCount;
+
+    ForceExpression(String source, List<Definition> definitions, Node result, int slotCount) {
+        this.source = source;
+        this.definitions = definitions;
+        this.result = result;
+        this.slotCount = slotCount;
+    }
+
+    public static ForceExpression parse(String source) throws ForceExpressionException {
+        return new ForceExpressionParser(source).parse();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Evaluates the expression by walking the syntax tree.
+     * This is much slower than the compiled version
+     * and mostly used to validate it.
+     *
+     * @param a matrix entry
+     * @param d distance relative to rmax
+     * @return the strength of the force
+     */
+    public double evaluate(double a, double d) {
+        double[] slots = new double[slotCount];
+        slots[SLOT_A] = a;
+        slots[SLOT_D] = d;
+        slots[SLOT_B] = DEFAULT_BETA;
+        for (Definition definition : definitions) {
+            slots[definition.slot()] = evaluate(definition.value(), slots);
+        }
+        return evaluate(result, slots);
+    }
+
+    private static double evaluate(Node node, double[] slots) {
+        if (node instanceof Constant c) {
+            return c.value();
+        } else if (node instanceof Variable v) {
+            return slots[v.slot()];
+        } else if (node instanceof Negate n) {
+            return -evaluate(n.operand(), slots);
+        } else if (node instanceof Binary b) {
+            double x = evaluate(b.left(), slots);
+            double y = evaluate(b.right(), slots);
+            return switch (b.operator()) {
+                case '+' -> x + y;
+                case '-' -> x - y;
+                case '*' -> x * y;
+                case '/' -> x / y;
+                default -> throw new IllegalStateException("Unknown operator " + b.operator());
+            };
+        } else if (node instanceof Call c) {
+            double[] args = new double[c.arguments().size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = evaluate(c.arguments().get(i), slots);
+            }
+            return c.function().apply(args);
+        } else if (node instanceof Conditional c) {
+            boolean condition = c.comparison().test(evaluate(c.left(), slots), evaluate(c.right(), slots));
+            return evaluate(condition ? c.then() : c.otherwise(), slots);
+        }
+        throw new IllegalStateException("Unknown node " + node);
+    }
+}
@@ -0,0 +1,26 @@
+package com.particle_life.app.forces;
+
+/**
+ * Thrown if a force expression can't be parsed or compiled.
+ * The message is meant to be displayed to the user as is.
+ */
+public class ForceExpressionException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Index of the character in the source string where the error was detected,
+     * or -1 if the error is not related to a specific position.
+     */
+    public final int position;
+
+    public ForceExpressionException(String message, int position) {
+        super(position >= 0 ? "%s (at character %d)".formatted(message, position + 1) : message);
+        this.position = position;
+    }
+
+    public ForceExpressionException(String message, Throwable cause) {
+        super(message + ": " + cause.getMessage(), cause);
+        this.position = -1;
+    }
+}
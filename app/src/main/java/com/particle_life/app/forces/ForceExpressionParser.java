@@ -0,0 +1,287 @@
+package com.particle_life.app.forces;
+
+import com.particle_life.app.forces.ForceExpression.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recursive descent parser for {@link ForceExpression}.
+ * <pre>
+ * program     := (identifier '=' conditional ';')* conditional ';'?
+ * conditional := sum (comparison sum '?' conditional ':' conditional)?
+ * sum         := product (('+' | '-') product)*
+ * product     := unary (('*' | '/') unary)*
+ * unary       := '-' unary | primary
+ * primary     := number | identifier | identifier '(' arguments ')' | '(' conditional ')'
+ * </pre>
+ * Expressions are limited to {@link #MAX_DEPTH} levels of nesting,
+ * because parsing, compiling and interpreting them are all recursive
+ * and would otherwise run out of stack.
+ */
+class ForceExpressionParser {
+
+    static final int MAX_DEPTH = 200;
+
+    private final String source;
+    private int pos = 0;
+    /**
+     * How deeply the parse methods are nested at the moment, e.g. because of parentheses.
+     */
+    private int nesting = 0;
+    /**
+     * Height of each node that is not a leaf.
+     */
+    private final Map<Node, Integer> depths = new IdentityHashMap<>();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int slotCount;
+
+    ForceExpressionParser(String source) {
+        this.source = source;
+        for (String name : ForceExpression.PREDEFINED_VARIABLES) {
+            slots.put(name, slots.size());
+        }
+        slotCount = slots.size();
+    }
+
+    ForceExpression parse() throws ForceExpressionException {
+        List<Definition> definitions = new ArrayList<>();
+
+        while (true) {
+            int start = pos;
+            String name = tryIdentifier();
+            if (name != null && tryConsume('=')) {
+                if (name.equals("a") || name.equals("d")) {
+                    throw new ForceExpressionException("Can't redefine '%s'".formatted(name), start);
+                }
+                Node value = parseConditional();
+                expect(';');
+                int slot = slots.computeIfAbsent(name, n -> slotCount++);
+                definitions.add(new Definition(name, slot, value));
+            } else {
+                pos = start;  // not a definition, parse again as expression
+                break;
+            }
+        }
+
+        Node result = parseConditional();
+        tryConsume(';');
+        skipWhitespace();
+        if (pos < source.length()) {
+            throw new ForceExpressionException("Unexpected '%c'".formatted(source.charAt(pos)), pos);
+        }
+
+        return new ForceExpression(source, List.copyOf(definitions), result, slotCount);
+    }
+
+    private Node parseConditional() throws ForceExpressionException {
+        int start = pos;
+        if (++nesting > MAX_DEPTH) throw tooDeep(start);
+        try {
+            Node left = parseSum();
+
+            Comparison comparison = tryComparison();
+            if (comparison == null) return left;
+
+            Node right = parseSum();
+            expect('?');
+            Node then = parseConditional();
+            expect(':');
+            Node otherwise = parseConditional();
+            return withDepth(new Conditional(comparison, left, right, then, otherwise), start,
+                    left, right, then, otherwise);
+        } finally {
+            nesting--;
+        }
+    }
+
+    private Node parseSum() throws ForceExpressionException {
+        int start = pos;
+        Node node = parseProduct();
+        while (true) {
+            if (tryConsume('+')) {
+                Node right = parseProduct();
+                node = withDepth(new Binary('+', node, right), start, node, right);
+            } else if (tryConsume('-')) {
+                Node right = parseProduct();
+                node = withDepth(new Binary('-', node, right), start, node, right);
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private Node parseProduct() throws ForceExpressionException {
+        int start = pos;
+        Node node = parseUnary();
+        while (true) {
+            if (tryConsume('*')) {
+                Node right = parseUnary();
+                node = withDepth(new Binary('*', node, right), start, node, right);
+            } else if (tryConsume('/')) {
+                Node right = parseUnary();
+                node = withDepth(new Binary('/', node, right), start, node, right);
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private Node parseUnary() throws ForceExpressionException {
+        int start = pos;
+        if (tryConsume('-')) {
+            if (++nesting > MAX_DEPTH) throw tooDeep(start);
+            try {
+                Node operand = parseUnary();
+                if (operand instanceof Constant c) return new Constant(-c.value());
+                return withDepth(new Negate(operand), start, operand);
+            } finally {
+                nesting--;
+            }
+        }
+        return parsePrimary();
+    }
+
+    /**
+     * Remembers the height of the node, so that long chains like <code>d + d + ... + d</code> are limited as well.
+     *
+     * @throws ForceExpressionException if the node is higher than {@link #MAX_DEPTH}
+     */
+    private Node withDepth(Node node, int start, Node... children) throws ForceExpressionException {
+        int depth = 0;
+        for (Node child : children) {
+            depth = Math.max(depth, depths.getOrDefault(child, 1));
+        }
+        depth++;
+        if (depth > MAX_DEPTH) throw tooDeep(start);
+        depths.put(node, depth);
+        return node;
+    }
+
+    private static ForceExpressionException tooDeep(int position) {
+        return new ForceExpressionException("Expression is nested more than %d levels deep".formatted(MAX_DEPTH), position);
+    }
+
+    private Node parsePrimary() throws ForceExpressionException {
+        skipWhitespace();
+        int start = pos;
+
+        if (tryConsume('(')) {
+            Node node = parseConditional();
+            expect(')');
+            return node;
+        }
+
+        if (pos < source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos) == '.')) {
+            return new Constant(parseNumber());
+        }
+
+        String name = tryIdentifier();
+        if (name == null) {
+            if (pos >= source.length()) {
+                throw new ForceExpressionException("Unexpected end of expression", pos);
+            }
+            throw new ForceExpressionException("Unexpected '%c'".formatted(source.charAt(pos)), pos);
+        }
+
+        if (tryConsume('(')) {
+            Function function = null;
+            for (Function f : Function.values()) {
+                if (f.name.equals(name)) function = f;
+            }
+            if (function == null) {
+                throw new ForceExpressionException("Unknown function '%s'".formatted(name), start);
+            }
+            List<Node> arguments = new ArrayList<>();
+            arguments.add(parseConditional());
+            while (tryConsume(',')) {
+                arguments.add(parseConditional());
+            }
+            expect(')');
+            if (arguments.size() != function.arity) {
+                throw new ForceExpressionException("Function '%s' takes %d argument(s), got %d"
+                        .formatted(name, function.arity, arguments.size()), start);
+            }
+            return withDepth(new Call(function, List.copyOf(arguments)), start, arguments.toArray(new Node[0]));
+        }
+
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            throw new ForceExpressionException("Unknown variable '%s'".formatted(name), start);
+        }
+        return new Variable(name, slot);
+    }
+
+    private double parseNumber() throws ForceExpressionException {
+        int start = pos;
+        while (pos < source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos) == '.')) {
+            pos++;
+        }
+        // exponent, e.g. 1e-3
+        if (pos < source.length() && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+            pos++;
+            if (pos < source.length() && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) pos++;
+            while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+        }
+        try {
+            return Double.parseDouble(source.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw new ForceExpressionException("Invalid number '%s'".formatted(source.substring(start, pos)), start);
+        }
+    }
+
+    private Comparison tryComparison() {
+        skipWhitespace();
+        if (pos >= source.length()) return null;
+        char c = source.charAt(pos);
+        if (c != '<' && c != '>') return null;
+        boolean orEqual = pos + 1 < source.length() && source.charAt(pos + 1) == '=';
+        pos += orEqual ? 2 : 1;
+        if (c == '<') {
+            return orEqual ? Comparison.LESS_EQUAL : Comparison.LESS;
+        } else {
+            return orEqual ? Comparison.GREATER_EQUAL : Comparison.GREATER;
+        }
+    }
+
+    /**
+     * @return the identifier at the current position, or null if there is none
+     */
+    private String tryIdentifier() {
+        skipWhitespace();
+        int start = pos;
+        if (pos < source.length() && (Character.isLetter(source.charAt(pos)) || source.charAt(pos) == '_')) {
+            pos++;
+            while (pos < source.length() && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_')) {
+                pos++;
+            }
+            return source.substring(start, pos);
+        }
+        return null;
+    }
+
+    private boolean tryConsume(char c) {
+        skipWhitespace();
+        if (pos < source.length() && source.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws ForceExpressionException {
+        if (!tryConsume(c)) {
+            throw new ForceExpressionException("Expected '%c'".formatted(c), pos);
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+            pos++;
+        }
+    }
+}
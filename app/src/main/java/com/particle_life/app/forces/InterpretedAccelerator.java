@@ -0,0 +1,24 @@
+package com.particle_life.app.forces;
+
+import com.particle_life.Accelerator;
+import org.joml.Vector3d;
+
+/**
+ * Evaluates a {@link ForceExpression} by walking its syntax tree.
+ * Used as a reference for the compiled version,
+ * and as a fallback if compiling fails.
+ */
+class InterpretedAccelerator implements Accelerator {
+
+    private final ForceExpression expression;
+
+    InterpretedAccelerator(ForceExpression expression) {
+        this.expression = expression;
+    }
+
+    @Override
+    public Vector3d accelerate(double a, Vector3d pos) {
+        double dist = pos.length();
+        return pos.mul(expression.evaluate(a, dist) / dist);
+    }
+}
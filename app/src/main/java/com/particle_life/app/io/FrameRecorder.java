@@ -0,0 +1,453 @@
+package com.particle_life.app.io;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a sequence of frames to files in the background, without making the thread that captures them wait.<br>
+ * Example:
+ * <pre>
+ * FrameRecorder recorder = new FrameRecorder(8, FrameRecorder.Backpressure.DROP);
+ * recorder.start(new File("recordings/2024-01-01"), FrameRecorder.Format.PNG, 60);
+ *
+ * // e.g. once per rendered frame
+ * if (recorder.wantsFrame()) {
+ *     int[] argb = ...;  // must not be changed afterwards
+ *     recorder.offer(argb, width, height, false);
+ * }
+ *
+ * recorder.stop();  // the frames in the queue are still written
+ * </pre>
+ * <p>
+ * The frames wait in a bounded queue and are encoded by a pool of worker threads.
+ * If the queue is full, the frame is dropped (see {@link Backpressure}),
+ * so capturing never waits for the encoders.
+ * PNG frames are written as numbered files in any order.
+ * A Y4M stream is a single file, so its frames are encoded in parallel but written in order.
+ */
+public class FrameRecorder {
+
+    public enum Format {
+        /**
+         * Numbered PNG files with alpha channel in a directory.
+         */
+        PNG,
+        /**
+         * One uncompressed YUV4MPEG2 file (4:2:0, full range), which e.g. ffmpeg can read directly.
+         * The frames are composited onto black. All frames must have the size of the first one,
+         * others are dropped.
+         */
+        Y4M,
+    }
+
+    public enum Backpressure {
+        /**
+         * Capture every frame and drop those that don't fit into the queue.
+         */
+        DROP,
+        /**
+         * Don't capture new frames while the queue is more than half full,
+         * so that the cost of capturing is saved as well and hardly any frames are dropped,
+         * but the recording has fewer frames than were rendered.
+         */
+        THROTTLE,
+    }
+
+    private record Frame(long index, int[] argb, int width, int height, boolean bottomUp) {
+    }
+
+    /**
+     * Put into the queue once per worker to stop them.
+     */
+    private static final Frame END = new Frame(-1, null, 0, 0, false);
+
+    private final int queueCapacity;
+    private final Backpressure backpressure;
+    private final int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * The current or last recording. A recording that was stopped may still be writing its last frames
+     * while the next one starts.
+     */
+    private Recording recording = null;
+
+    private long rateTime = 0;
+    private long rateFrames = 0;
+    private double writtenFramerate = 0;
+
+    /**
+     * @param queueCapacity how many frames may wait for the encoders
+     * @param backpressure  what to do if the encoders can't keep up
+     */
+    public FrameRecorder(int queueCapacity, Backpressure backpressure) {
+        this.queueCapacity = queueCapacity;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Starts a new recording. Must not be called while recording.
+     *
+     * @param target          directory for {@link Format#PNG}, file for {@link Format#Y4M}
+     * @param framesPerSecond only written into the Y4M header, doesn't change how often frames are captured
+     */
+    public void start(File target, Format format, int framesPerSecond) throws IOException {
+        if (isRecording()) throw new IllegalStateException("Already recording.");
+        recording = new Recording(target, format, framesPerSecond);
+        rateTime = System.nanoTime();
+        rateFrames = 0;
+        writtenFramerate = 0;
+    }
+
+    /**
+     * Stops capturing. The frames that are already in the queue are still written in the background.
+     */
+    public void stop() {
+        if (!isRecording()) return;
+        recording.stop();
+    }
+
+    /**
+     * Stops capturing and waits until the queued frames are written, e.g. before the app closes.
+     *
+     * @return whether everything was written in time
+     */
+    public boolean finish(long millis) {
+        stop();
+        if (recording == null) return true;
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread worker : recording.workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return recording.runningWorkers.get() == 0;
+    }
+
+    public boolean isRecording() {
+        return recording != null && recording.capturing;
+    }
+
+    /**
+     * @return whether a frame should be captured now, i.e. whether it's worth reading the pixels
+     */
+    public boolean wantsFrame() {
+        if (!isRecording()) return false;
+        if (backpressure == Backpressure.THROTTLE) {
+            return getQueueDepth() <= queueCapacity / 2;
+        }
+        return true;
+    }
+
+    /**
+     * Hands a frame to the encoders, or drops it if the queue is full.
+     * Never waits.
+     *
+     * @param argb     pixels, row by row; the recorder keeps the array, so it must not be changed afterwards
+     * @param bottomUp whether the first row is the bottom row, as with <code>glReadPixels</code>
+     * @return whether the frame was queued
+     */
+    public boolean offer(int[] argb, int width, int height, boolean bottomUp) {
+        if (!isRecording()) return false;
+        return recording.offer(argb, width, height, bottomUp);
+    }
+
+    private class Recording {
+
+        final File target;
+        final Format format;
+        final int framesPerSecond;
+        final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(queueCapacity + workerCount);  // room for END
+        final Thread[] workers = new Thread[workerCount];
+        final AtomicInteger runningWorkers = new AtomicInteger(workerCount);
+        volatile boolean capturing = true;
+        long nextIndex = 0;
+
+        final AtomicLong capturedFrames = new AtomicLong();
+        final AtomicLong droppedFrames = new AtomicLong();
+        final AtomicLong writtenFrames = new AtomicLong();
+        final AtomicLong writtenBytes = new AtomicLong();
+        final AtomicInteger inProgress = new AtomicInteger();
+        volatile IOException error = null;
+
+        // only for Y4M, guarded by this
+        OutputStream y4mOut = null;
+        int y4mWidth = -1;
+        int y4mHeight = -1;
+        boolean y4mHeaderWritten = false;
+        /**
+         * Encoded frames that wait until the frames before them are written,
+         * or null for frames that were dropped by a worker.
+         */
+        final Map<Long, byte[]> y4mPending = new HashMap<>();
+        long y4mNextIndex = 0;
+
+        Recording(File target, Format format, int framesPerSecond) throws IOException {
+            this.target = target;
+            this.format = format;
+            this.framesPerSecond = framesPerSecond;
+            if (format == Format.PNG) {
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("Could not create directory " + target);
+                }
+            } else {
+                File parent = target.getParentFile();
+                if (parent != null) parent.mkdirs();
+                y4mOut = new BufferedOutputStream(new FileOutputStream(target), 1 << 20);
+            }
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Thread(this::work, "Frame-Encoder-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+        }
+
+        void stop() {
+            capturing = false;
+            for (int i = 0; i < workerCount; i++) {
+                // the queue has room for these even if it is full of frames
+                queue.offer(END);
+            }
+        }
+
+        boolean offer(int[] argb, int width, int height, boolean bottomUp) {
+            capturedFrames.incrementAndGet();
+            if (queue.size() >= queueCapacity) {
+                droppedFrames.incrementAndGet();
+                return false;
+            }
+            queue.offer(new Frame(nextIndex++, argb, width, height, bottomUp));
+            return true;
+        }
+
+        int getQueueDepth() {
+            return queue.size() + inProgress.get();
+        }
+
+        private void work() {
+            try {
+                encodeFrames();
+            } finally {
+                // the last worker closes the stream
+                if (runningWorkers.decrementAndGet() == 0 && format == Format.Y4M) {
+                    synchronized (this) {
+                        try {
+                            writePendingY4m(true);
+                            y4mOut.close();
+                        } catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void encodeFrames() {
+            while (true) {
+                Frame frame;
+                try {
+                    frame = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (frame == END) break;
+                inProgress.incrementAndGet();
+                try {
+                    if (format == Format.PNG) {
+                        writePng(frame);
+                    } else {
+                        writeY4m(frame);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                    droppedFrames.incrementAndGet();
+                } finally {
+                    inProgress.decrementAndGet();
+                }
+            }
+        }
+
+        private void writePng(Frame frame) throws IOException {
+            File file = new File(target, String.format("frame_%06d.png", frame.index));
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                encodePng(frame.argb, frame.width, frame.height, frame.bottomUp, out);
+            }
+            writtenBytes.addAndGet(file.length());
+            writtenFrames.incrementAndGet();
+        }
+
+        private void writeY4m(Frame frame) throws IOException {
+            final int width = frame.width & ~1;  // 4:2:0 needs an even size, so the last row or column is cut off
+            final int height = frame.height & ~1;
+            boolean sameSize;
+            synchronized (this) {
+                if (y4mWidth == -1) {
+                    y4mWidth = width;
+                    y4mHeight = height;
+                }
+                sameSize = width == y4mWidth && height == y4mHeight;
+            }
+            // the frame is put into the pending frames even if it is dropped,
+            // so that the frames after it aren't held back
+            byte[] bytes = sameSize ? encodeY4mFrame(frame.argb, frame.width, width, height, frame.bottomUp) : null;
+            if (bytes == null) droppedFrames.incrementAndGet();
+            synchronized (this) {
+                y4mPending.put(frame.index, bytes);
+                if (!y4mHeaderWritten) {
+                    String header = String.format("YUV4MPEG2 W%d H%d F%d:1 Ip A1:1 C420jpeg XCOLORRANGE=FULL\n",
+                            y4mWidth, y4mHeight, framesPerSecond);
+                    y4mOut.write(header.getBytes(StandardCharsets.US_ASCII));
+                    y4mHeaderWritten = true;
+                }
+                writePendingY4m(false);
+            }
+        }
+
+        /**
+         * Writes the pending frames that are next in line.
+         *
+         * @param all also write those after a gap, i.e. after a frame that was lost to an error
+         */
+        private void writePendingY4m(boolean all) throws IOException {
+            while (!y4mPending.isEmpty()) {
+                if (!y4mPending.containsKey(y4mNextIndex)) {
+                    if (!all) return;
+                    y4mNextIndex = y4mPending.keySet().stream().min(Long::compare).orElseThrow();
+                }
+                byte[] bytes = y4mPending.remove(y4mNextIndex++);
+                if (bytes == null) continue;
+                y4mOut.write("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+                y4mOut.write(bytes);
+                writtenBytes.addAndGet(bytes.length + 6);
+                writtenFrames.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the Y, U and V planes of the frame, composited onto black (BT.601, full range)
+     */
+    private static byte[] encodeY4mFrame(int[] argb, int stride, int width, int height, boolean bottomUp) {
+        final int pixelCount = width * height;
+        final int chromaWidth = width / 2;
+        byte[] yuv = new byte[pixelCount + pixelCount / 2];
+        int uOffset = pixelCount;
+        int vOffset = pixelCount + pixelCount / 4;
+        for (int row = 0; row < height; row += 2) {
+            for (int col = 0; col < width; col += 2) {
+                int uSum = 0;
+                int vSum = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    int sourceRow = bottomUp ? height - 1 - (row + dy) : row + dy;
+                    for (int dx = 0; dx < 2; dx++) {
+                        int c = argb[sourceRow * stride + col + dx];
+                        int a = c >>> 24;
+                        int r = ((c >> 16) & 0xff) * a / 255;
+                        int g = ((c >> 8) & 0xff) * a / 255;
+                        int b = (c & 0xff) * a / 255;
+                        yuv[(row + dy) * width + col + dx] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+                        uSum += -43 * r - 85 * g + 128 * b;
+                        vSum += 128 * r - 107 * g - 21 * b;
+                    }
+                }
+                int chroma = row / 2 * chromaWidth + col / 2;
+                yuv[uOffset + chroma] = (byte) clampByte(128 + ((uSum + 512) >> 10));
+                yuv[vOffset + chroma] = (byte) clampByte(128 + ((vSum + 512) >> 10));
+            }
+        }
+        return yuv;
+    }
+
+    private static int clampByte(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Encodes ARGB pixels (not premultiplied) as PNG.
+     * This is slow for large images, so better call it outside the physics and render threads.
+     *
+     * @param bottomUp whether the first row is the bottom row, as with <code>glReadPixels</code>
+     */
+    public static void encodePng(int[] argb, int width, int height, boolean bottomUp, OutputStream out) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        if (bottomUp) {
+            for (int row = 0; row < height; row++) {
+                image.setRGB(0, height - 1 - row, width, 1, argb, row * width, width);
+            }
+        } else {
+            image.setRGB(0, 0, width, height, argb, 0, width);
+        }
+        ImageIO.write(image, "png", out);
+    }
+
+    /**
+     * @return frames of the current or last recording that wait in the queue or are being encoded
+     */
+    public int getQueueDepth() {
+        return recording == null ? 0 : recording.getQueueDepth();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getCapturedFrames() {
+        return recording == null ? 0 : recording.capturedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return recording == null ? 0 : recording.droppedFrames.get();
+    }
+
+    public long getWrittenFrames() {
+        return recording == null ? 0 : recording.writtenFrames.get();
+    }
+
+    public long getWrittenBytes() {
+        return recording == null ? 0 : recording.writtenBytes.get();
+    }
+
+    /**
+     * Frames written per second, averaged over about the last second.
+     * Should only be called from one thread.
+     */
+    public double getWrittenFramerate() {
+        long now = System.nanoTime();
+        double seconds = (now - rateTime) / 1e9;
+        if (seconds >= 1) {
+            long frames = getWrittenFrames();
+            writtenFramerate = (frames - rateFrames) / seconds;
+            rateFrames = frames;
+            rateTime = now;
+        }
+        return writtenFramerate;
+    }
+
+    /**
+     * @return the last error while writing the current or last recording, or null
+     */
+    public IOException getError() {
+        return recording == null ? null : recording.error;
+    }
+
+    /**
+     * @return the directory or file of the current or last recording, or null
+     */
+    public File getTarget() {
+        return recording == null ? null : recording.target;
+    }
+}
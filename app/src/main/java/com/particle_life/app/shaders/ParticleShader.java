@@ -4,10 +4,18 @@ import com.particle_life.app.color.Color;
 import org.joml.Matrix4d;
 
 import java.io.IOException;
+import java.util.Arrays;
 
-import static org.lwjgl.opengl.GL20C.*;
+import static org.lwjgl.opengl.GL30C.*;
 
 public class ParticleShader {
+
+    /**
+     * The palette is stored in a 1D texture.
+     * OpenGL 4.1 guarantees that textures can be at least this wide.
+     */
+    public static final int MAX_PALETTE_SIZE = 16384;
+
     public final int shaderProgram;
 
     private final int timeUniformLocation;
@@ -23,14 +31,49 @@ public class ParticleShader {
 
     private final float[] transform = new float[16];
 
+    private int paletteTexture = 0;
+    private float[] uploadedPalette = null;
+
     public final BlendMode blendMode;
 
+    /**
+     * If true, this program expects each particle as an instance of quads
+     * (see {@link ShaderUtil#makeInstancedShaderProgram(String, String)}),
+     * otherwise as a point that the geometry shader expands.
+     */
+    public final boolean instanced;
+    /**
+     * The same shader without a geometry shader, drawing instanced quads instead, or null if it doesn't support that.
+     */
+    public final ParticleShader instancedVariant;
+
     public ParticleShader(String vertexShaderSource,
                           String geometryShaderResource,
                           String fragmentShaderResource,
                           BlendMode blendMode) throws IOException {
+        this(vertexShaderSource, geometryShaderResource, fragmentShaderResource, blendMode, false);
+    }
+
+    /**
+     * @param supportsInstancing whether to make an {@link #instancedVariant} as well,
+     *                           which only makes sense if the geometry shader does the same as default.geom
+     */
+    public ParticleShader(String vertexShaderSource,
+                          String geometryShaderResource,
+                          String fragmentShaderResource,
+                          BlendMode blendMode,
+                          boolean supportsInstancing) throws IOException {
+        this(ShaderUtil.makeShaderProgram(vertexShaderSource, geometryShaderResource, fragmentShaderResource),
+                false, blendMode,
+                supportsInstancing ? new ParticleShader(
+                        ShaderUtil.makeInstancedShaderProgram(vertexShaderSource, fragmentShaderResource),
+                        true, blendMode, null) : null);
+    }
 
-        shaderProgram = ShaderUtil.makeShaderProgram(vertexShaderSource, geometryShaderResource, fragmentShaderResource);
+    private ParticleShader(int shaderProgram, boolean instanced, BlendMode blendMode, ParticleShader instancedVariant) {
+        this.shaderProgram = shaderProgram;
+        this.instanced = instanced;
+        this.instancedVariant = instancedVariant;
 
         // GET LOCATIONS
         timeUniformLocation = glGetUniformLocation(shaderProgram, "time");
@@ -67,7 +110,22 @@ public class ParticleShader {
             colorArray[4 * i + 3] = palette[i].a;
         }
 
-        glUniform4fv(paletteUniformLocation, colorArray);
+        glActiveTexture(GL_TEXTURE0);
+        if (paletteTexture == 0) {
+            paletteTexture = glGenTextures();
+            glBindTexture(GL_TEXTURE_1D, paletteTexture);
+            glTexParameteri(GL_TEXTURE_1D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_1D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+            glTexParameteri(GL_TEXTURE_1D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        } else {
+            glBindTexture(GL_TEXTURE_1D, paletteTexture);
+        }
+        // only upload if the colors changed
+        if (!Arrays.equals(colorArray, uploadedPalette)) {
+            glTexImage1D(GL_TEXTURE_1D, 0, GL_RGBA32F, palette.length, 0, GL_RGBA, GL_FLOAT, colorArray);
+            uploadedPalette = colorArray;
+        }
+        glUniform1i(paletteUniformLocation, 0);
     }
 
     public void setSize(float size) {
@@ -24,6 +24,11 @@ public class ShaderProvider implements InfoWrapperProvider<ParticleShader> {
         public String geometry = "default.geom";
         public String fragment = "default.frag";
         public BlendMode blend = BlendMode.normal;
+        /**
+         * Whether the shader can also be drawn as instanced quads instead of with the geometry shader.
+         * By default, only shaders with the default geometry shader can.
+         */
+        public Boolean instanced = null;
     }
 
     @Override
@@ -53,6 +58,11 @@ public class ShaderProvider implements InfoWrapperProvider<ParticleShader> {
             if (config.description == null) {
                 config.description = "";
             }
+
+            // the instanced path does what default.geom does
+            if (config.instanced == null) {
+                config.instanced = config.geometry.equals("default.geom");
+            }
         }
 
         return configs.stream()
@@ -78,7 +88,8 @@ public class ShaderProvider implements InfoWrapperProvider<ParticleShader> {
                                         "shaders/" + config.vertex,
                                         "shaders/" + config.geometry,
                                         "shaders/" + config.fragment,
-                                        config.blend
+                                        config.blend,
+                                        config.instanced
                                 )
                         );
                     } catch (IOException e) {
@@ -8,6 +8,12 @@ import static org.lwjgl.opengl.GL20C.*;
 import static org.lwjgl.opengl.GL32C.*;
 
 final class ShaderUtil {
+
+    /**
+     * Turns each particle into quads, see {@link #makeInstancedShaderProgram(String, String)}.
+     */
+    private static final String INSTANCED_VERTEX_SHADER = ".internal/particle_shaders/instanced.vert";
+
     public static int makeShaderProgram(String vertexShaderSource,
                                         String geometryShaderResource,
                                         String fragmentShaderResource) throws IOException {
@@ -23,8 +29,45 @@ final class ShaderUtil {
         return program;
     }
 
+    /**
+     * Makes a program that draws each particle as an instance of a quad, without a geometry shader.
+     * <p>
+     * The vertex shader is linked with an internal vertex shader that turns the particle into quads
+     * like default.geom does. For that, its <code>main()</code> is renamed to <code>particleMain()</code>,
+     * and its output <code>vColor</code> is renamed to <code>fColor</code>, which the fragment shader reads.
+     */
+    public static int makeInstancedShaderProgram(String vertexShaderResource,
+                                                 String fragmentShaderResource) throws IOException {
+        int program = glCreateProgram();
+
+        String vertexSource = ResourceAccess.readTextFile(vertexShaderResource);
+        glAttachShader(program, makeShaderObjectFromSource(
+                insertAfterVersion(vertexSource, "#define main particleMain\n#define vColor fColor\n"),
+                GL_VERTEX_SHADER, "vertex"));
+        glAttachShader(program, makeShaderObject(INSTANCED_VERTEX_SHADER, GL_VERTEX_SHADER, "instancing vertex"));
+        glAttachShader(program, makeShaderObject(fragmentShaderResource, GL_FRAGMENT_SHADER, "fragment"));
+        glLinkProgram(program);
+        printProgramErrors(program);
+
+        return program;
+    }
+
+    /**
+     * The <code>#version</code> directive must come first, so the lines are inserted after it.
+     */
+    private static String insertAfterVersion(String src, String lines) {
+        int version = src.indexOf("#version");
+        if (version == -1) return lines + src;
+        int lineEnd = src.indexOf('\n', version);
+        if (lineEnd == -1) return src + "\n" + lines;
+        return src.substring(0, lineEnd + 1) + lines + src.substring(lineEnd + 1);
+    }
+
     private static int makeShaderObject(String resource, int type, String name) throws IOException {
-        String src = ResourceAccess.readTextFile(resource);
+        return makeShaderObjectFromSource(ResourceAccess.readTextFile(resource), type, name);
+    }
+
+    private static int makeShaderObjectFromSource(String src, int type, String name) {
         int shaderObject = glCreateShader(type);
         glShaderSource(shaderObject, src);
         glCompileShader(shaderObject);
@@ -44,4 +87,11 @@ final class ShaderUtil {
             System.err.println(infoLog);
         }
     }
+
+    private static void printProgramErrors(int program) {
+        if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+            System.err.println("Error while linking shader program. Info log:");
+            System.err.println(glGetProgramInfoLog(program));
+        }
+    }
 }
\ No newline at end of file
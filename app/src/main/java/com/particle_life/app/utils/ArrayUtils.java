@@ -13,8 +13,16 @@ public final class ArrayUtils {
      * Arrays must be of the same size.
      */
     public static int findFirstIndexWithLess(int[] a, int[] b) {
+        return findFirstIndexWithLess(a, b, 0);
+    }
+
+    /**
+     * Returns the first index <code>i >= start</code>, where <code>a[i] < b[i]</code>, or -1.
+     * Arrays must be of the same size.
+     */
+    public static int findFirstIndexWithLess(int[] a, int[] b, int start) {
         assert a.length == b.length;
-        for (int i = 0; i < a.length; i++) {
+        for (int i = start; i < a.length; i++) {
             if (a[i] < b[i]) {
                 return i;
             }
@@ -0,0 +1,69 @@
+#version 410
+
+/* Draws each particle as an instance of a quad, like default.geom, but without a geometry shader.
+ *
+ * This is linked with the vertex shader of the particle shader,
+ * whose main() is renamed to particleMain() and whose output vColor is renamed to fColor.
+ * particleMain() sets the color and the position of the particle, and this turns it into a quad.
+ *
+ * Each instance has 6 vertices (two triangles) per quad, and 4 quads if the world wraps around:
+ * the original one and its 3 periodic copies.
+ * Copies that are not needed are moved outside the screen, so they are clipped away.
+ */
+
+uniform mat4 transform;
+uniform vec2 camTopLeft;
+uniform bool wrap;
+uniform float size;
+
+out vec2 texCoord;
+
+void particleMain();
+
+const vec2 corners[6] = vec2[](
+    vec2(-1.0, -1.0), vec2(1.0, -1.0), vec2(-1.0, 1.0),
+    vec2(-1.0, 1.0), vec2(1.0, -1.0), vec2(1.0, 1.0)
+);
+
+void main(void) {
+    particleMain();
+
+    vec4 center = gl_Position - vec4(camTopLeft, 0.0, 0.0);
+    float r = 0.5 * size;
+    int copy = gl_VertexID / 6;  // 0: original, 1: shifted in x, 2: shifted in y, 3: shifted in x and y
+    vec2 corner = corners[gl_VertexID % 6];
+    texCoord = corner;
+
+    vec2 shift = vec2(0.0, 0.0);
+    if (copy != 0) {
+        // Some particles are so close to the edge of the world
+        // that they already appear on the other side.
+        float dx = 0.0;
+        float dy = 0.0;
+        if (wrap) {
+            if (center.x < r) {
+                dx = 1.0;
+            } else if (center.x > 1 - r) {
+                dx = -1.0;
+            }
+            if (center.y < r) {
+                dy = 1.0;
+            } else if (center.y > 1 - r) {
+                dy = -1.0;
+            }
+        }
+        if (copy == 1) {
+            shift = vec2(dx, 0.0);
+        } else if (copy == 2) {
+            shift = vec2(0.0, dy);
+        } else {
+            shift = dx != 0.0 && dy != 0.0 ? vec2(dx, dy) : vec2(0.0, 0.0);
+        }
+        if (shift == vec2(0.0, 0.0)) {
+            gl_Position = vec4(2.0, 2.0, 2.0, 1.0);  // not needed, outside of the clip volume
+            return;
+        }
+    }
+
+    gl_Position = transform * (center + vec4(shift + r * corner, 0.0, 0.0));
+}
@@ -1,6 +1,6 @@
 #version 410
 
-uniform vec4 palette[256];
+uniform sampler1D palette;
 
 in vec3 x;
 in int type;
@@ -8,6 +8,6 @@ in int type;
 out vec4 vColor;
 
 void main(void) {
-    vColor = palette[type];
+    vColor = texelFetch(palette, type, 0);
     gl_Position = vec4(x, 1.0);
 }
\ No newline at end of file
@@ -2,7 +2,7 @@
 
 #define FACTOR 10
 
-uniform vec4 palette[256];
+uniform sampler1D palette;
 uniform float time = 0.0;
 uniform mat4 transform;
 
@@ -14,6 +14,6 @@ out vec4 vColor;
 
 void main(void) {
     float speed = sqrt(v.x * v.x + v.y * v.y + v.z * v.z);
-    vColor = vec4(palette[type].xyz * (1 - exp(-FACTOR * speed)), 1.0);
+    vColor = vec4(texelFetch(palette, type, 0).xyz * (1 - exp(-FACTOR * speed)), 1.0);
     gl_Position = vec4(x, 1.0);
 }
\ No newline at end of file